@@ -3,20 +3,29 @@ package reghzy.breezeui;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.opengl.GL;
 import reghzy.breezeui.core.ContextLayoutManager;
+import reghzy.breezeui.core.SpatialIndex;
 import reghzy.breezeui.core.UIElement;
 import reghzy.breezeui.dispatcher.Dispatcher;
 import reghzy.breezeui.dispatcher.DispatcherPriority;
 import reghzy.breezeui.dispatcher.Messages;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.render.DamageRegion;
+import reghzy.breezeui.render.FrameCommandList;
+import reghzy.breezeui.render.FrameQueue;
+import reghzy.breezeui.render.LayerCache;
 import reghzy.breezeui.render.RenderContext;
-import reghzy.breezeui.utils.Linq;
+import reghzy.breezeui.render.RenderCuller;
 import reghzy.breezeui.window.Window;
+import reghzy.breezeui.window.WindowRenderThread;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.system.MemoryUtil.NULL;
 
 public class Application {
     private static Application CURRENT;
@@ -32,6 +41,22 @@ public class Application {
     private final Object layoutLock = new Object();
 
     private final ArrayList<Object> messageQueue;
+    private final SpatialIndex spatialIndex;
+
+    // callbacks waiting for the next tick, which stops the application waiting for events
+    private final ArrayList<Runnable> animationFrames = new ArrayList<Runnable>();
+
+    // reused by drawDamage to collect the elements to draw, and to skip the ones that cannot be seen
+    private final ArrayList<UIElement> drawList = new ArrayList<UIElement>();
+    private final RenderCuller culler = new RenderCuller();
+
+    // the fraction of the window that can be damaged before it is cheaper to draw all of it
+    private static final double FULL_DRAW_DAMAGE_RATIO = 0.6d;
+
+    // when enabled, frames are recorded on this thread and drawn by the render thread, which owns the GL context
+    private boolean isRenderThreadEnabled;
+    private FrameQueue frameQueue;
+    private WindowRenderThread renderThread;
 
     public Application() {
         if (CURRENT != null) {
@@ -41,6 +66,7 @@ public class Application {
         CURRENT = this;
 
         this.messageQueue = new ArrayList<Object>();
+        this.spatialIndex = new SpatialIndex();
 
         Window.app_init();
     }
@@ -64,6 +90,8 @@ public class Application {
         this.mainWindow = mainWindow;
         this.mainWindow.glfwMakeContextCurrent();
         glfwSetWindowRefreshCallback(this.mainWindow.getWindowId(), w -> {
+            // the OS lost the window's contents (e.g. it was uncovered), so it all has to be presented again
+            this.mainWindow.getDamageRegion().addAll();
             pushMessage(null);
         });
 
@@ -74,6 +102,9 @@ public class Application {
         onStartupStage1(); // setup OpenGL stuff
         onStartupStage2(); // setup other application stuff
         onStartupStage3(); // create OpenGL stuff
+        if (this.isRenderThreadEnabled) {
+            startRenderThread();
+        }
 
         this.isRunning = true;
         this.mainWindow.show();
@@ -88,11 +119,19 @@ public class Application {
                     break;
                 }
 
-                glfwWaitEvents();
+                // an animation wants the next frame, so do not wait for an event. When a render thread is used, the
+                // next frame can only be recorded once it has taken the last one, which wakes the application up
+                if (hasAnimationFrames() && (this.frameQueue == null || !this.frameQueue.deferUntilTaken())) {
+                    glfwPollEvents();
+                }
+                else {
+                    glfwWaitEvents();
+                }
             } while (true);
         }
         finally {
             this.isRunning = false;
+            stopRenderThread();
             if (this.mainWindow != null) {
                 this.mainWindow.dispose();
             }
@@ -141,6 +180,9 @@ public class Application {
         processInputsPost();
         // -----------------------------------------------------------------
 
+        // before layout, so that the changes animations make are laid out and drawn in this frame
+        runAnimationFrames();
+
         // Application arrangement
         synchronized (this.layoutManager != null ? this.layoutManager : this.layoutLock) {
             if (this.layoutManager != null) {
@@ -150,19 +192,44 @@ public class Application {
             }
 
             // -------------------- Invoke render callbacks --------------------
+            if (this.layoutManager != null) {
+                this.layoutManager.publishAsyncLayouts();
+            }
+
             this.dispatcher.getQueue().process(DispatcherPriority.RENDER_PRE);
             processRenderPre();
 
+            // a frame is only produced if something was drawn again or the window was damaged; otherwise,
+            // nothing is submitted to the GPU (and swapping, which may wait for vsync, is skipped)
+            DamageRegion damage = this.mainWindow.getDamageRegion();
             if (this.layoutManager != null) {
+                for (UIElement element : this.layoutManager.getRenderQueue()) {
+                    element.addDamage(damage);
+                }
+            }
+
+            if (this.renderThread != null) {
+                Throwable error = this.renderThread.getError();
+                if (error != null) {
+                    throw new RuntimeException("Render thread failed", error);
+                }
+
+                // if the last frame has not been taken yet, the damage is kept and recorded once it has been
+                if (!damage.isEmpty() && !this.frameQueue.deferUntilTaken()) {
+                    recordFrame(this.mainWindow, damage);
+                }
+            }
+            else if (!damage.isEmpty()) {
                 RenderContext.setActiveWindow(this.mainWindow);
-                ArrayList<UIElement> elements = Linq.of(this.layoutManager.getRenderQueue()).sortByMin(UIElement::getTreeIndex).toList();
 
-                for (UIElement element : elements) {
-                    RenderContext context = element.openRender();
-                    RenderContext.beginRender();
-                    element.render(context, element.getActualWidth(), element.getActualHeight());
-                    element.closeRender(context);
+                // every element is drawn into the same frame, so that NanoVG only flushes once
+                RenderContext.beginRender();
+                try {
+                    drawDamage(this.mainWindow, damage);
+                }
+                finally {
                     RenderContext.endRender();
+                    damage.clear();
                 }
 
                 RenderContext.setActiveWindow(null);
@@ -174,13 +241,23 @@ public class Application {
 
             // -----------------------------------------------------------------
 
-            this.layoutManager = null;
+            if (this.layoutManager != null && this.layoutManager.hasPendingLayout()) {
+                // the layout time budget ran out or an async layout is still running; keep the
+                // remaining work for the next tick. If there are elements left to measure, wake up
+                // straight away (async layouts wake the application up themselves when they finish)
+                this.layoutManager.carryOverPendingLayout();
+                if (!this.layoutManager.getRearrangeQueue().isEmpty()) {
+                    pushMessageInternal(null);
+                }
+            }
+            else {
+                this.layoutManager = null;
+            }
         }
 
         this.dispatcher.getQueue().process(DispatcherPriority.APPLICATION_IDLE);
         this.dispatcher.getQueue().process(DispatcherPriority.CONTEXT_IDLE);
         this.dispatcher.getQueue().process(DispatcherPriority.APP_POST_TICK);
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
     }
 
     protected void processMessages() {
@@ -188,11 +265,15 @@ public class Application {
             for (int i = this.messageQueue.size() - 1; i >= 0; i--) {
                 processMessage(this.messageQueue.get(i));
             }
+
+            this.messageQueue.clear();
         }
     }
 
     protected void processInputsPre() {
-
+        if (this.mainWindow != null) {
+            this.mainWindow.updateMouseOver(this.spatialIndex);
+        }
     }
 
     protected void processInputsPost() {
@@ -200,15 +281,172 @@ public class Application {
     }
 
     protected void processRenderPre() {
-        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+
     }
 
     protected void processRenderPost() {
 
     }
 
+    /**
+     * Runs the given callback at the start of the next tick, and makes sure that tick happens straight away instead of
+     * waiting for an event. Animations should request a frame from their callback for as long as they are running,
+     * so that the application goes back to waiting for events (and stops drawing) as soon as they stop
+     */
+    public void requestAnimationFrame(Runnable callback) {
+        synchronized (this.animationFrames) {
+            this.animationFrames.add(callback);
+        }
+
+        pushMessageInternal(null);
+    }
+
+    /**
+     * Returns whether any animation frames have been requested for the next tick
+     */
+    public boolean hasAnimationFrames() {
+        synchronized (this.animationFrames) {
+            return !this.animationFrames.isEmpty();
+        }
+    }
+
+    private void runAnimationFrames() {
+        ArrayList<Runnable> callbacks;
+        synchronized (this.animationFrames) {
+            if (this.animationFrames.isEmpty()) {
+                return;
+            }
+
+            callbacks = new ArrayList<Runnable>(this.animationFrames);
+            this.animationFrames.clear();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Records the damaged areas of the given window into the frame queue's next frame, and publishes it to the render thread
+     */
+    private void recordFrame(Window window, DamageRegion damage) {
+        FrameCommandList frame = this.frameQueue.getWriteFrame();
+        RenderContext.beginRender(frame, window.getActualWidth(), window.getActualHeight(), window.getPixelScale());
+        try {
+            drawDamage(window, damage);
+        }
+        finally {
+            RenderContext.endRender();
+            damage.clear();
+        }
+
+        this.frameQueue.publish();
+    }
+
+    /**
+     * Sets whether frames are drawn on a separate render thread, which takes over the main window's OpenGL context.
+     * Frames are then only recorded on the application's thread, so a slow buffer swap or driver stall does not delay
+     * input or layout. This must be set before the application runs
+     */
+    public void setRenderThreadEnabled(boolean enabled) {
+        if (this.isRunning) {
+            throw new IllegalStateException("Cannot change the render thread while the application is running");
+        }
+
+        this.isRenderThreadEnabled = enabled;
+    }
+
+    public boolean isRenderThreadEnabled() {
+        return this.isRenderThreadEnabled;
+    }
+
+    private void startRenderThread() {
+        // the context can only be current on one thread at a time
+        glfwMakeContextCurrent(NULL);
+        this.frameQueue = new FrameQueue(() -> pushMessageInternal(null));
+        this.renderThread = new WindowRenderThread(this.mainWindow, this.frameQueue);
+        this.renderThread.setOnError(() -> pushMessageInternal(null));
+        this.renderThread.start();
+    }
+
+    private void stopRenderThread() {
+        if (this.renderThread == null) {
+            return;
+        }
+
+        try {
+            this.renderThread.stop();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.renderThread = null;
+        this.frameQueue = null;
+        this.mainWindow.glfwMakeContextCurrent();
+    }
+
     protected void fullDraw(Window window) {
+        window.getDamageRegion().addAll();
+    }
 
+    /**
+     * Clears and draws again the damaged areas of the given window. Every element intersecting a damaged
+     * rect is drawn (scissored to the rect) in draw order, as it may be partly covered by or cover the
+     * elements that changed. The whole window is drawn if the damaged rects cover most of it anyway
+     */
+    protected void drawDamage(Window window, DamageRegion damage) {
+        Rect bounds = new Rect(0d, 0d, window.getActualWidth(), window.getActualHeight());
+        this.culler.begin(bounds);
+        try {
+            boolean isFullDraw = damage.isFull() || damage.getArea() > bounds.w * bounds.h * FULL_DRAW_DAMAGE_RATIO;
+
+            // layers are drawn first, as drawing into them may flush the frame
+            LayerCache layerCache = RenderContext.getLayerCache();
+            if (layerCache != null) {
+                layerCache.update(this.culler, isFullDraw ? Collections.singletonList(bounds) : damage.getRects());
+            }
+
+            if (isFullDraw) {
+                RenderContext.clear(null);
+                drawArea(bounds, false);
+            }
+            else {
+                for (Rect rect : damage.getRects()) {
+                    RenderContext.clear(rect);
+                }
+
+                for (Rect rect : damage.getRects()) {
+                    drawArea(rect, true);
+                }
+            }
+        }
+        finally {
+            this.culler.end();
+        }
+    }
+
+    private void drawArea(Rect area, boolean isScissored) {
+        ArrayList<UIElement> elements = this.drawList;
+        elements.clear();
+        this.spatialIndex.queryRectInDrawOrder(area, elements);
+        if (isScissored) {
+            RenderContext.pushScissor(area);
+        }
+
+        try {
+            // elements outside of the window or their ancestors' clip are culled
+            for (UIElement element : elements) {
+                this.culler.draw(element, area);
+            }
+        }
+        finally {
+            if (isScissored) {
+                RenderContext.popScissor();
+            }
+
+            elements.clear();
+        }
     }
 
     protected void processMessage(Object message) {
@@ -300,6 +538,13 @@ public class Application {
         return this.layoutManager;
     }
 
+    /**
+     * Returns the index of the bounds of every valid element in this application
+     */
+    public SpatialIndex getSpatialIndex() {
+        return this.spatialIndex;
+    }
+
     public static Application current() {
         return CURRENT;
     }
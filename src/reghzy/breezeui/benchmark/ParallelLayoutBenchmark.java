@@ -0,0 +1,130 @@
+package reghzy.breezeui.benchmark;
+
+import reghzy.breezeui.Application;
+import reghzy.breezeui.core.ContextLayoutManager;
+import reghzy.breezeui.core.FrameworkElement;
+import reghzy.breezeui.core.ItemsControl;
+import reghzy.breezeui.core.Rectangle;
+import reghzy.breezeui.core.utils.HorizontalAlignment;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.VerticalAlignment;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the time taken to measure a synthetic tree of ~200k elements sequentially and with
+ * 1, 4 and 16 parallel layout threads. This does not create a window, so it can run without a GPU
+ * <p>
+ *     Each mode is run on two trees: one where every child fits within its parent, and one where the first child of each
+ *     group is wider than the group, so it enlarges the group's layout (and the group enlarges the root's). The children
+ *     after it have then been measured in parallel against the wrong layout, and are measured again
+ * </p>
+ */
+public class ParallelLayoutBenchmark {
+    private static final int GROUPS = 40;
+    private static final int SUB_GROUPS = 50;
+    private static final int LEAVES = 99;
+    private static final int WARMUP_PASSES = 10;
+    private static final int PASSES = 20;
+
+    public static void main(String[] args) {
+        Application application = new Application();
+        ContextLayoutManager manager = application.getCurrentLayoutManager();
+        Rect available = new Rect(0, 0, 1920, 1080);
+        for (boolean isExtending : new boolean[]{false, true}) {
+            ItemsControl root = createTree(isExtending ? available.w * 2d : 0d);
+            System.out.println("Measuring " + countElements(root) + " elements, " + PASSES + " passes each, " + (isExtending ? "first child of each group extends it" : "children fit within their parents"));
+            run("sequential", null, root, available, manager);
+            for (int threads : new int[]{1, 4, 16}) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    run(threads + " thread(s)", pool, root, available, manager);
+                }
+                finally {
+                    pool.shutdown();
+                }
+            }
+        }
+
+        ContextLayoutManager.setParallelLayout(null, ContextLayoutManager.getParallelLayoutThreshold());
+    }
+
+    private static void run(String name, ForkJoinPool pool, ItemsControl root, Rect available, ContextLayoutManager manager) {
+        ContextLayoutManager.setParallelLayout(pool, ContextLayoutManager.getParallelLayoutThreshold());
+        for (int i = 0; i < WARMUP_PASSES; i++) {
+            invalidateTree(root, manager);
+            root.measure(available);
+            manager.getRenderQueue().clear();
+        }
+
+        long total = 0, best = Long.MAX_VALUE;
+        for (int i = 0; i < PASSES; i++) {
+            invalidateTree(root, manager);
+            long start = System.nanoTime();
+            root.measure(available);
+            long time = System.nanoTime() - start;
+            manager.getRenderQueue().clear();
+            total += time;
+            best = Math.min(best, time);
+        }
+
+        System.out.printf("%-12s avg %8.3f ms, best %8.3f ms%n", name, total / (double) PASSES / 1000000d, best / 1000000d);
+    }
+
+    /**
+     * Invalidates the layout of every element in the tree, so that each pass measures all of them (clean
+     * children are otherwise skipped, which would leave every mode with almost nothing to measure)
+     */
+    private static void invalidateTree(ItemsControl root, ContextLayoutManager manager) {
+        root.invalidateLayout();
+        manager.getRearrangeQueue().clear();
+    }
+
+    /**
+     * @param extendingWidth The minimum width of the first sub group in each group, or 0 for it to fit within its group
+     */
+    private static ItemsControl createTree(double extendingWidth) {
+        ItemsControl root = createPanel();
+        root.validate(true);
+        for (int i = 0; i < GROUPS; i++) {
+            ItemsControl group = createPanel();
+            for (int j = 0; j < SUB_GROUPS; j++) {
+                ItemsControl subGroup = createPanel();
+                if (j == 0 && extendingWidth > 0d) {
+                    subGroup.setValue(FrameworkElement.MIN_WIDTH, extendingWidth);
+                }
+
+                for (int k = 0; k < LEAVES; k++) {
+                    Rectangle leaf = new Rectangle();
+                    leaf.setWidth(10d + (k % 7));
+                    leaf.setHeight(10d + (k % 5));
+                    leaf.setValue(FrameworkElement.HORIZONTAL_ALIGNMENT, HorizontalAlignment.values()[k % 3]);
+                    leaf.setValue(FrameworkElement.VERTICAL_ALIGNMENT, VerticalAlignment.values()[k % 3]);
+                    subGroup.addChild(leaf);
+                }
+
+                group.addChild(subGroup);
+            }
+
+            root.addChild(group);
+        }
+
+        return root;
+    }
+
+    private static ItemsControl createPanel() {
+        ItemsControl panel = new ItemsControl();
+        panel.setValue(FrameworkElement.HORIZONTAL_ALIGNMENT, HorizontalAlignment.Stretch);
+        panel.setValue(FrameworkElement.VERTICAL_ALIGNMENT, VerticalAlignment.Stretch);
+        return panel;
+    }
+
+    private static int countElements(ItemsControl root) {
+        int count = 1;
+        for (int i = 0; i < root.getVisualChildCount(); i++) {
+            count += root.getVisualChild(i) instanceof ItemsControl ? countElements((ItemsControl) root.getVisualChild(i)) : 1;
+        }
+
+        return count;
+    }
+}
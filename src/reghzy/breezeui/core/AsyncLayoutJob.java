@@ -0,0 +1,44 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.Application;
+
+/**
+ * Measures a {@link LayoutSnapshot} on a worker thread, and then hands the result to its layout manager to be
+ * published on the dispatcher thread (see {@link ContextLayoutManager#publishAsyncLayouts()})
+ */
+final class AsyncLayoutJob implements Runnable {
+    private final ContextLayoutManager manager;
+    private final LayoutSnapshot snapshot;
+    private volatile LayoutSnapshot.Result result;
+    private volatile Throwable error;
+
+    AsyncLayoutJob(ContextLayoutManager manager, LayoutSnapshot snapshot) {
+        this.manager = manager;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.result = this.snapshot.solve();
+        }
+        catch (Throwable e) {
+            this.error = e;
+        }
+
+        this.manager.onAsyncLayoutFinished(this);
+        Application.pushMessage(null);
+    }
+
+    LayoutSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    LayoutSnapshot.Result getResult() {
+        return this.result;
+    }
+
+    Throwable getError() {
+        return this.error;
+    }
+}
@@ -0,0 +1,80 @@
+package reghzy.breezeui.core;
+
+import org.joml.Vector2d;
+import reghzy.breezeui.core.properties.CoerceValueCallback;
+import reghzy.breezeui.core.properties.DependencyProperty;
+import reghzy.breezeui.core.properties.PropertyMeta;
+import reghzy.breezeui.core.utils.Maths;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.Thickness;
+
+import java.util.List;
+
+/**
+ * A panel that positions its children at absolute offsets (from its top left corner), set by the
+ * {@link #LEFT} and {@link #TOP} attached properties
+ * <p>
+ *     Every child's slot is as big as the canvas, so it does not depend on where the child is or how big it is.
+ *     Changing a child's position therefore just translates the child's existing layout; neither the child, the
+ *     canvas nor any other child is measured again. Likewise, a child's layout changing does not affect the canvas,
+ *     which always takes up the space it is given (if it does not have an explicit size)
+ * </p>
+ */
+public class Canvas extends Panel {
+    private static final CoerceValueCallback COERCE_OFFSET = (p, o, v) -> Maths.isInfOrNaN((Double) v) ? 0d : v;
+
+    public static final DependencyProperty LEFT = DependencyProperty.register("Canvas.Left", double.class, UIElement.class, new PropertyMeta(0d, (p, o, ov, nv) -> onOffsetChanged((UIElement) o, getDelta(ov, nv), 0d), COERCE_OFFSET));
+    public static final DependencyProperty TOP =  DependencyProperty.register("Canvas.Top", double.class, UIElement.class,  new PropertyMeta(0d, (p, o, ov, nv) -> onOffsetChanged((UIElement) o, 0d, getDelta(ov, nv)), COERCE_OFFSET));
+
+    public Canvas() {
+
+    }
+
+    public static double getLeft(UIElement element) {
+        return element.getValue(LEFT);
+    }
+
+    public static void setLeft(UIElement element, double left) {
+        element.setValue(LEFT, left);
+    }
+
+    public static double getTop(UIElement element) {
+        return element.getValue(TOP);
+    }
+
+    public static void setTop(UIElement element, double top) {
+        element.setValue(TOP, top);
+    }
+
+    private static double getDelta(Object oldValue, Object newValue) {
+        // null when the value was never set, or has been cleared
+        return (newValue != null ? (Double) newValue : 0d) - (oldValue != null ? (Double) oldValue : 0d);
+    }
+
+    private static void onOffsetChanged(UIElement element, double dx, double dy) {
+        // if the element has never been measured, then the canvas will place it once it is
+        if (element.getParent() instanceof Canvas && element.lastAvailableRect != null) {
+            element.translateLayout(dx, dy);
+        }
+    }
+
+    @Override
+    protected Vector2d arrangeChildren(List<UIElement> children, Rect area) {
+        for (int i = 0, size = children.size(); i < size; i++) {
+            UIElement child = children.get(i);
+            Thickness margin = child.getValue(MARGIN);
+            double w = Math.max(area.w - margin.getLeft() - margin.getRight(), 0d);
+            double h = Math.max(area.h - margin.getTop() - margin.getBottom(), 0d);
+            double x = area.x + getLeft(child) + margin.getLeft();
+            double y = area.y + getTop(child) + margin.getTop();
+            measureChild(child, new Rect(x, y, w, h));
+        }
+
+        return area.getSize();
+    }
+
+    @Override
+    protected void onChildLayoutInvalidated(UIElement child, int axes) {
+        // children are measured by themselves, in the slot they were last given
+    }
+}
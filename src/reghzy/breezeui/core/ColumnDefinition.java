@@ -0,0 +1,26 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.GridLength;
+
+/**
+ * Defines the width of a column in a {@link Grid}
+ */
+public class ColumnDefinition {
+    private final GridLength width;
+
+    public ColumnDefinition() {
+        this(GridLength.STAR);
+    }
+
+    public ColumnDefinition(GridLength width) {
+        if (width == null) {
+            throw new IllegalArgumentException("Width cannot be null");
+        }
+
+        this.width = width;
+    }
+
+    public GridLength getWidth() {
+        return this.width;
+    }
+}
@@ -2,6 +2,7 @@ package reghzy.breezeui.core;
 
 import reghzy.breezeui.core.properties.DependencyProperty;
 import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
+import reghzy.breezeui.core.utils.LayoutAxes;
 import reghzy.breezeui.core.utils.Rect;
 
 public class ContentControl extends Control {
@@ -32,32 +33,44 @@ public class ContentControl extends Control {
         }
     }
 
+    @Override
+    public int getVisualChildCount() {
+        return getContent() != null ? 1 : 0;
+    }
+
+    @Override
+    public UIElement getVisualChild(int index) {
+        UIElement content = getContent();
+        if (index != 0 || content == null) {
+            return super.getVisualChild(index);
+        }
+
+        return content;
+    }
+
     @Override
     public Rect measureCoreLayout(Rect rect) {
         Rect layout = super.measureCoreLayout(rect);
         UIElement child = this.getContent();
         if (child != null) {
-            layout = Rect.max(layout, child.measure(layout));
+            layout = Rect.max(layout, measureChild(child, layout));
         }
 
         return layout;
     }
 
     @Override
-    protected void onLayoutInvalidated() {
-        super.onLayoutInvalidated();
-        UIElement child = getContent();
-        if (child != null) {
-            child.invalidateLayout();
-        }
+    protected int getAffectedAxes(int axes) {
+        // the layout is enlarged to contain the content, which may change size in either axis
+        return (axes & LayoutAxes.BOTH) != 0 && getContent() != null ? axes | LayoutAxes.BOTH : axes;
     }
 
     @Override
-    protected void onRenderInvalidated() {
-        super.onRenderInvalidated();
+    protected void onLayoutInvalidated() {
+        super.onLayoutInvalidated();
         UIElement child = getContent();
-        if (child != null) {
-            child.invalidateRender();
+        if (child != null && (getInvalidatedAxes() & LayoutAxes.POSITION) == 0) {
+            child.invalidateLayout();
         }
     }
 }
@@ -1,24 +1,236 @@
 package reghzy.breezeui.core;
 
 import reghzy.breezeui.Application;
+import reghzy.breezeui.core.utils.Maths;
 import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.window.Window;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 public class ContextLayoutManager {
-    private final HashSet<UIElement> arrangeList;
-    private final HashSet<UIElement> renderList;
-    private boolean isInactive;
+    private static volatile ForkJoinPool parallelLayoutPool;
+    private static volatile int parallelLayoutThreshold = 1024;
+    private static volatile long layoutTimeBudget;
+
+    // the System.nanoTime at which the current tick's layout time budget runs out, or 0 outside a budgeted update
+    private static volatile long layoutDeadline;
 
+    // whether a child has been measured in full since the current budgeted update began
+    private static volatile boolean hasMeasuredChild;
+    private static volatile Executor asyncLayoutExecutor;
+    private static volatile int asyncLayoutThreshold = 4096;
+    private static volatile boolean isFlatLayoutEnabled;
+    private static volatile LayoutProfiler layoutProfiler;
+    private static volatile boolean isLayoutRounding;
+    private static volatile double layoutScale = 1d;
+
+    // these are concurrent, as elements may be measured (and therefore
+    // added to the render queue) on multiple threads during parallel layout
+    private final Set<UIElement> arrangeList;
+    private final Set<UIElement> renderList;
+    private final ArrayList<AsyncLayoutJob> asyncJobs;
+
+    // async jobs that have finished on their worker thread, waiting to be published on the dispatcher thread
+    private final ConcurrentLinkedQueue<AsyncLayoutJob> finishedAsyncJobs;
+    private boolean isInactive;
 
     public ContextLayoutManager() {
-        this.arrangeList = new HashSet<UIElement>();
-        this.renderList = new HashSet<UIElement>();
+        this.arrangeList = ConcurrentHashMap.newKeySet();
+        this.renderList = ConcurrentHashMap.newKeySet();
+        this.asyncJobs = new ArrayList<AsyncLayoutJob>();
+        this.finishedAsyncJobs = new ConcurrentLinkedQueue<AsyncLayoutJob>();
+    }
+
+    /**
+     * Enables parallel layout, where sibling subtrees are measured on the given pool
+     * <p>
+     *     Only subtrees containing at least the given number of elements are measured on their own task;
+     *     smaller siblings are grouped together until they reach that size, so that tiny subtrees do not
+     *     cost more to schedule than they do to measure
+     * </p>
+     * @param pool      The pool to measure on, or null to disable parallel layout
+     * @param threshold The minimum number of elements in a parallel measure task
+     */
+    public static void setParallelLayout(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be greater than 0: " + threshold);
+        }
+
+        parallelLayoutPool = pool;
+        parallelLayoutThreshold = threshold;
+    }
+
+    /**
+     * Returns the pool used for parallel layout, or null if parallel layout is disabled
+     */
+    public static ForkJoinPool getParallelLayoutPool() {
+        return parallelLayoutPool;
+    }
+
+    public static int getParallelLayoutThreshold() {
+        return parallelLayoutThreshold;
+    }
+
+    /**
+     * Sets the maximum amount of time that {@link #updateLayout()} may spend measuring dirty elements per tick.
+     * Any work remaining once the budget is spent is carried over to the next tick
+     * <p>
+     *     The budget is checked between dirty roots, and within a root's subtree each time a child is about to be
+     *     measured (see {@link UIElement#measureChild(UIElement, Rect)}), so one large invalidated subtree is also
+     *     spread across ticks. Subtrees measured by the flat layout backend or an element's own measure logic (such
+     *     as virtualized containers) are measured in full once they are started, and asynchronous layouts are not budgeted
+     * </p>
+     * @param nanos The budget in nanoseconds, or 0 for no budget (all dirty elements are measured in one tick)
+     */
+    public static void setLayoutTimeBudget(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Budget cannot be negative: " + nanos);
+        }
+
+        layoutTimeBudget = nanos;
+    }
+
+    public static long getLayoutTimeBudget() {
+        return layoutTimeBudget;
+    }
+
+    /**
+     * Returns whether the layout time budget of the current tick has been spent, in which case elements that are
+     * about to be measured should be left dirty until the next tick instead. The budget is never spent before a
+     * child has been measured in full, so that every tick finishes at least one more subtree
+     */
+    static boolean isLayoutBudgetSpent() {
+        long deadline = layoutDeadline;
+        return deadline != 0L && hasMeasuredChild && System.nanoTime() - deadline >= 0L;
+    }
+
+    /**
+     * Called once a child has been measured by {@link UIElement#measureChild(UIElement, Rect)}
+     */
+    static void onChildMeasured() {
+        if (layoutDeadline != 0L && !hasMeasuredChild) {
+            hasMeasuredChild = true;
+        }
+    }
+
+    /**
+     * Enables asynchronous layout, where dirty roots with large subtrees are measured on a background thread
+     * <p>
+     *     The subtree's layout state is captured into a {@link LayoutSnapshot}, which is measured on the executor while
+     *     the dispatcher thread carries on processing input and rendering (using the subtree's stale layout). The result
+     *     is published once, by {@link #publishAsyncLayouts()} in the following tick, unless an element in the
+     *     subtree was invalidated or re-measured in the meantime, in which case it is discarded and the root is laid out again
+     * </p>
+     * @param executor  The executor to measure snapshots on, or null to disable asynchronous layout
+     * @param threshold The minimum number of elements a dirty root's subtree must contain to be measured asynchronously
+     */
+    public static void setAsyncLayout(Executor executor, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be greater than 0: " + threshold);
+        }
+
+        asyncLayoutExecutor = executor;
+        asyncLayoutThreshold = threshold;
+    }
+
+    public static Executor getAsyncLayoutExecutor() {
+        return asyncLayoutExecutor;
+    }
+
+    public static int getAsyncLayoutThreshold() {
+        return asyncLayoutThreshold;
+    }
+
+    /**
+     * Enables the flat layout backend, where dirty roots are measured using their window's {@link FlatLayoutTree}
+     * instead of by recursively calling {@link UIElement#measure(Rect)}
+     */
+    public static void setFlatLayoutEnabled(boolean enabled) {
+        isFlatLayoutEnabled = enabled;
+    }
+
+    public static boolean isFlatLayoutEnabled() {
+        return isFlatLayoutEnabled;
+    }
+
+    /**
+     * Measures the given element using the main window's flat layout tree, if the flat layout backend is enabled
+     * @return True if the element was measured, or false if it must be measured normally
+     */
+    public static boolean tryFlatLayout(UIElement element, Rect available) {
+        if (!isFlatLayoutEnabled) {
+            return false;
+        }
+
+        Window window = Application.current().getMainWindow();
+        return window != null && window.getFlatLayoutTree().measure(element, available);
+    }
+
+    /**
+     * Sets the profiler that records each tick's layout, or null to stop profiling
+     * @see LayoutProfiler
+     */
+    public static void setLayoutProfiler(LayoutProfiler profiler) {
+        layoutProfiler = profiler;
+    }
+
+    /**
+     * Returns the profiler that records each tick's layout, or null if layout is not being profiled
+     */
+    public static LayoutProfiler getLayoutProfiler() {
+        return layoutProfiler;
+    }
+
+    /**
+     * Enables layout rounding, where the edges of every element's layout are snapped to device pixels when it is
+     * measured (see {@link #getLayoutScale()}). This avoids blurry, anti-aliased edges, and lets axis-aligned fills
+     * be drawn without anti-aliasing. Elements are laid out again by their window when this changes
+     */
+    public static void setLayoutRounding(boolean enabled) {
+        isLayoutRounding = enabled;
+    }
+
+    public static boolean isLayoutRounding() {
+        return isLayoutRounding;
+    }
+
+    /**
+     * Sets the number of device pixels per layout unit, used by layout rounding. This is set by the main window from its framebuffer size
+     */
+    public static void setLayoutScale(double scale) {
+        if (!(scale > 0d) || Double.isInfinite(scale)) {
+            throw new IllegalArgumentException("Scale must be positive and finite: " + scale);
+        }
+
+        layoutScale = scale;
+    }
+
+    public static double getLayoutScale() {
+        return layoutScale;
+    }
+
+    /**
+     * Returns the given layout with its edges snapped to device pixels, or the given layout itself if layout rounding is disabled
+     */
+    public static Rect roundLayout(Rect layout) {
+        if (!isLayoutRounding) {
+            return layout;
+        }
+
+        double scale = layoutScale;
+        double x = Maths.roundToPixel(layout.x, scale);
+        double y = Maths.roundToPixel(layout.y, scale);
+        return new Rect(x, y, Maths.roundToPixel(layout.getX2(), scale) - x, Maths.roundToPixel(layout.getY2(), scale) - y);
     }
 
     // public static ArrayList<UIElement> orderByTreeIndex(Collection<UIElement> list) {
@@ -32,11 +244,11 @@ public class ContextLayoutManager {
     //     }).forEach(list::add);
     // }
 
-    public HashSet<UIElement> getRearrangeQueue() {
+    public Set<UIElement> getRearrangeQueue() {
         return this.arrangeList;
     }
 
-    public HashSet<UIElement> getRenderQueue() {
+    public Set<UIElement> getRenderQueue() {
         return this.renderList;
     }
 
@@ -102,42 +314,224 @@ public class ContextLayoutManager {
         return !this.isInactive;
     }
 
+    /**
+     * Measures the dirty elements in the rearrange queue
+     * <p>
+     *     If a layout time budget is set, this stops measuring once the budget has been spent, and the remaining dirty
+     *     elements are kept in the queue to be measured on the next tick. Until then, they render using their stale layout.
+     *     The budget is also checked within each root's subtree, so a root may be left partly measured (see
+     *     {@link UIElement#measureChild(UIElement, Rect)}); at least one child is measured in full before the budget
+     *     applies, so that progress is made every tick
+     * </p>
+     */
     public void updateLayout() {
-        if (Application.current().getMainWindow().isLayoutDirty) {
-            Application.current().getMainWindow().updateLayout();
+        LayoutProfiler profiler = layoutProfiler;
+        if (profiler == null) {
+            updateLayout(null);
             return;
         }
 
-        Rect windowRect = Application.current().getMainWindow().layoutRect;
-        ArrayList<UIElement> arrange = getTopLevelComponents(this.getRearrangeQueue());
-        for (UIElement element : arrange) {
-            if (element.isUpdatingLayout) {
-                continue;
+        profiler.beginTick();
+        try {
+            updateLayout(profiler);
+        }
+        finally {
+            profiler.endTick();
+        }
+    }
+
+    private void updateLayout(LayoutProfiler profiler) {
+        Window window = Application.current().getMainWindow();
+        if (window.isLayoutDirty) {
+            window.updateLayout();
+        }
+
+        long budget = layoutTimeBudget;
+        long spent = 0L;
+        int measured = 0;
+        hasMeasuredChild = false;
+        while (true) {
+            removeMeasuredElements();
+            if (this.arrangeList.isEmpty()) {
+                return;
             }
 
-            UIElement parent = element.getParent();
-            if (parent == null) {
-                element.measure(Application.current().getMainWindow().layoutRect);
+            int lastMeasured = measured;
+            ArrayList<UIElement> arrange = getTopLevelComponents(this.getRearrangeQueue());
+            for (UIElement element : arrange) {
+                if (element.isUpdatingLayout || !element.isLayoutDirty) {
+                    continue;
+                }
+
+                if (!element.isValid()) {
+                    // detached since it was invalidated
+                    element.isLayoutDirty = false;
+                    continue;
+                }
+
+                if (budget > 0 && measured > 0 && spent >= budget) {
+                    removeMeasuredElements();
+                    return;
+                }
+
+                // re-use the space the element was last given, as its parent may have given it a slot smaller than itself
+                Rect available = element.lastAvailableRect;
+                if (available == null) {
+                    UIElement parent = element.getParent();
+                    available = parent == null ? window.layoutRect : parent.layoutRect;
+                }
+                if (profiler != null) {
+                    profiler.beginPass(element);
+                }
+
+                // only the time spent measuring counts towards the budget, not the time spent finding the roots
+                long begin = System.nanoTime();
+                if (budget > 0) {
+                    long deadline = begin + Math.max(budget - spent, 0L);
+                    layoutDeadline = deadline == 0L ? 1L : deadline;
+                }
+
+                try {
+                    if (!trySubmitAsyncLayout(element, available) && !tryFlatLayout(element, available)) {
+                        element.measure(available);
+                    }
+                }
+                finally {
+                    layoutDeadline = 0L;
+                    spent += System.nanoTime() - begin;
+                    if (profiler != null) {
+                        profiler.endPass();
+                    }
+                }
+
+                measured++;
+
+                // element.arrange(element.getDesiredSize());
+
+                // element.isArrangeInProgress = true;
+                // {
+                //     // Rect rect;
+                //     // Thickness margin = element.getMargin();
+                //     // UIElement parent = element.getParent();
+                //     // if (parent == null) {
+                //     //     rect = new Rect(margin.getLeft(), margin.getTop(), )
+                //     // }
+                //     // Rect rect = new Rect()
+                //     // element.arrange();
+                // }
+                // element.isArrangeInProgress = false;
+                // element.isArrangeDirty = false;
             }
-            else {
-                element.measure(parent.layoutRect);
+
+            // elements that were invalidated, but not re-measured by the
+            // root they are under will be measured as roots next iteration
+            if (measured == lastMeasured) {
+                removeMeasuredElements();
+                return;
             }
+        }
+    }
+
+    private boolean trySubmitAsyncLayout(UIElement root, Rect available) {
+        Executor executor = asyncLayoutExecutor;
+        int threshold = asyncLayoutThreshold;
+        if (executor == null || ParallelMeasure.countElements(root, threshold) < threshold) {
+            return false;
+        }
 
-            // element.arrange(element.getDesiredSize());
-
-            // element.isArrangeInProgress = true;
-            // {
-            //     // Rect rect;
-            //     // Thickness margin = element.getMargin();
-            //     // UIElement parent = element.getParent();
-            //     // if (parent == null) {
-            //     //     rect = new Rect(margin.getLeft(), margin.getTop(), )
-            //     // }
-            //     // Rect rect = new Rect()
-            //     // element.arrange();
-            // }
-            // element.isArrangeInProgress = false;
-            // element.isArrangeDirty = false;
+        LayoutSnapshot snapshot = LayoutSnapshot.capture(root, available);
+        if (snapshot == null) {
+            return false;
         }
+
+        // the subtree is no longer waiting to be measured on this thread
+        for (int i = 0, count = snapshot.getCount(); i < count; i++) {
+            snapshot.getElement(i).isLayoutDirty = false;
+        }
+
+        AsyncLayoutJob job = new AsyncLayoutJob(this, snapshot);
+        this.asyncJobs.add(job);
+        executor.execute(job);
+        return true;
+    }
+
+    /**
+     * Called on a worker thread once the given job has finished
+     */
+    void onAsyncLayoutFinished(AsyncLayoutJob job) {
+        this.finishedAsyncJobs.add(job);
+    }
+
+    /**
+     * Publishes the results of the asynchronous layouts that have finished since this was last called. This is called by
+     * the application once per tick, after {@link #updateLayout()} and before the render queue is drawn
+     * <p>
+     *     Each result is published at most once. A result whose subtree changed since it was captured is discarded, and the
+     *     subtree is laid out again; a job that failed throws its error (once), after the other results have been published
+     * </p>
+     */
+    public void publishAsyncLayouts() {
+        RuntimeException error = null;
+        AsyncLayoutJob job;
+        while ((job = this.finishedAsyncJobs.poll()) != null) {
+            try {
+                publishAsyncLayout(job);
+            }
+            catch (RuntimeException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void publishAsyncLayout(AsyncLayoutJob job) {
+        this.asyncJobs.remove(job);
+        LayoutSnapshot snapshot = job.getSnapshot();
+        if (job.getError() != null) {
+            throw new RuntimeException("Failed to measure layout snapshot of " + snapshot.getRoot(), job.getError());
+        }
+
+        if (!snapshot.publish(job.getResult())) {
+            // part of the subtree changed, so lay the whole subtree out again, unless
+            // it has already been re-submitted since it was last invalidated
+            UIElement root = snapshot.getRoot();
+            for (AsyncLayoutJob pending : this.asyncJobs) {
+                if (pending.getSnapshot().getRoot() == root) {
+                    return;
+                }
+            }
+
+            root.invalidateLayout();
+        }
+    }
+
+    private void removeMeasuredElements() {
+        this.arrangeList.removeIf(element -> !element.isLayoutDirty);
+    }
+
+    /**
+     * Returns whether there are still dirty elements waiting to be measured (because the
+     * layout time budget ran out), or asynchronous layouts waiting to be published
+     */
+    public boolean hasPendingLayout() {
+        return !this.arrangeList.isEmpty() || !this.asyncJobs.isEmpty();
+    }
+
+    /**
+     * Prepares this layout manager to be carried over to the next tick, because it still has pending layout work.
+     * This clears the render queue (since everything in it has been rendered) and then queues the elements that
+     * are still waiting for layout, so that they are drawn using their stale layout in the meantime
+     */
+    public void carryOverPendingLayout() {
+        this.renderList.clear();
+        this.renderList.addAll(this.arrangeList);
     }
 }
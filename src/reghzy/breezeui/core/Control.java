@@ -2,7 +2,6 @@ package reghzy.breezeui.core;
 
 import reghzy.breezeui.core.properties.DependencyProperty;
 import reghzy.breezeui.core.properties.PropertyMeta;
-import reghzy.breezeui.core.utils.Rect;
 import reghzy.breezeui.render.RenderContext;
 import reghzy.breezeui.utils.Colour;
 
@@ -18,7 +17,7 @@ public class Control extends FrameworkElement {
         super.render(context, width, height);
         Colour bg = getBackgroundColour();
         if (bg != null) {
-            context.drawRect(new Rect(0, 0, width, height), bg);
+            context.drawRect(0d, 0d, width, height, bg);
         }
     }
 
@@ -0,0 +1,238 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.Arrays;
+
+/**
+ * A data-oriented layout backend, which keeps the layout inputs and structure of an entire tree in the columns of a
+ * {@link LayoutColumns}, and measures subtrees with a single loop over those columns instead of recursing through
+ * {@link UIElement#measure(Rect)}
+ * <p>
+ *     Each element in the tree is given a node id (its pre-order index), which the element keeps as a view into the
+ *     columns. When a layout property of an element changes, only that element's inputs are re-read before the next
+ *     measure. When the children of an element in the tree change, only that element's subtree is appended from the
+ *     elements again before the next measure; the rest of the tree is copied over as it is, and other trees are not
+ *     affected. Once a subtree has been measured, only the elements whose rect or available space changed (or whose
+ *     layout was invalidated) are given a new layout
+ * </p>
+ * <p>
+ *     Elements with their own measure logic (see {@link LayoutColumns}) are measured by themselves as opaque nodes,
+ *     so any tree can use this backend; it is just faster for trees made of plain elements and overlay controls
+ * </p>
+ */
+public final class FlatLayoutTree {
+    private final UIElement root;
+    private final LayoutColumns.Output output;
+    private LayoutColumns columns;
+    private boolean isBuilt;
+
+    // the columns that the next rebuild copies into, swapped with the current columns
+    private LayoutColumns spare;
+
+    // nodes whose inputs must be re-read before the next measure
+    private int[] dirtyInputs;
+    private int dirtyInputCount;
+    private boolean[] isInputDirty;
+
+    // nodes whose children changed, whose subtrees must be appended again before the next measure
+    private int[] changedNodes;
+    private int changedCount;
+    private boolean[] isStructureChanged;
+    private boolean[] containsChanged;
+
+    public FlatLayoutTree(UIElement root) {
+        this.root = root;
+        this.columns = new LayoutColumns(256);
+        this.spare = new LayoutColumns(256);
+        this.output = new LayoutColumns.Output(256);
+        this.dirtyInputs = new int[64];
+        this.isInputDirty = new boolean[256];
+        this.changedNodes = new int[16];
+        this.isStructureChanged = new boolean[256];
+        this.containsChanged = new boolean[256];
+    }
+
+    /**
+     * Called when the visual children of the given element are added, removed or moved, causing its subtree to
+     * be appended again before its flat layout tree (if it is a node in one) is next used
+     */
+    static void onVisualStructureChanged(UIElement element) {
+        FlatLayoutTree tree = element != null ? element.flatLayoutTree : null;
+        if (tree != null) {
+            tree.invalidateStructure(element);
+        }
+    }
+
+    public UIElement getRoot() {
+        return this.root;
+    }
+
+    /**
+     * Returns the number of nodes in this tree
+     */
+    public int getCount() {
+        ensureBuilt();
+        return this.columns.count;
+    }
+
+    /**
+     * Marks the given element's layout inputs as changed, so that they are re-read before the next measure
+     */
+    void invalidateInputs(UIElement element) {
+        int node = element.flatLayoutId;
+        if (element.flatLayoutTree != this || node < 0 || node >= this.columns.count || this.isInputDirty[node]) {
+            return;
+        }
+
+        this.isInputDirty[node] = true;
+        if (this.dirtyInputCount == this.dirtyInputs.length) {
+            this.dirtyInputs = Arrays.copyOf(this.dirtyInputs, this.dirtyInputCount * 2);
+        }
+
+        this.dirtyInputs[this.dirtyInputCount++] = node;
+    }
+
+    private void invalidateStructure(UIElement element) {
+        int node = element.flatLayoutId;
+        if (node < 0 || node >= this.columns.count || this.isStructureChanged[node] || this.columns.kind[node] != LayoutColumns.KIND_OVERLAY) {
+            return; // the children of other nodes are not stored
+        }
+
+        this.isStructureChanged[node] = true;
+        if (this.changedCount == this.changedNodes.length) {
+            this.changedNodes = Arrays.copyOf(this.changedNodes, this.changedCount * 2);
+        }
+
+        this.changedNodes[this.changedCount++] = node;
+    }
+
+    /**
+     * Measures the given element's subtree, and applies the results to the elements whose layout changed
+     * @param element   The element to measure, which must be in this tree
+     * @param available The space available to the element
+     * @return True if the element was measured, or false if it is not a node in this tree
+     */
+    public boolean measure(UIElement element, Rect available) {
+        ensureBuilt();
+        int node = element.flatLayoutId;
+        if (element.flatLayoutTree != this || node < 0) {
+            return false;
+        }
+
+        syncInputs();
+        int end = this.columns.subtreeEnd[node];
+        element.isUpdatingLayout = true;
+        try {
+            this.columns.solve(node, available.x, available.y, available.w, available.h, this.output);
+        }
+        finally {
+            element.isUpdatingLayout = false;
+        }
+
+        LayoutColumns.Output out = this.output;
+        UIElement[] elements = this.columns.elements;
+        byte[] kind = this.columns.kind;
+        for (int i = node; i < end; i++) {
+            if (kind[i] == LayoutColumns.KIND_OPAQUE) {
+                continue; // already measured itself
+            }
+
+            UIElement target = elements[i];
+            if (target.hasNeverUpdatedLayout || target.isLayoutDirty || !out.isAvailableCloseTo(i, target.lastAvailableRect) || !out.isLayoutCloseTo(i, target.layoutRect)) {
+                target.applyLayout(out.getAvailable(i), out.getRect(i));
+            }
+        }
+
+        return true;
+    }
+
+    private void ensureBuilt() {
+        if (!this.isBuilt) {
+            this.columns.appendSubtree(this.root, -1);
+            this.isBuilt = true;
+            onStructureChanged(0);
+        }
+        else if (this.changedCount > 0) {
+            // the ids of the dirty inputs are only valid in the current columns
+            syncInputs();
+            rebuildChanged();
+        }
+    }
+
+    /**
+     * Copies the current columns into the spare columns, appending the subtrees of the changed nodes from
+     * their elements again, and then swaps them
+     */
+    private void rebuildChanged() {
+        LayoutColumns old = this.columns;
+        boolean[] isChanged = this.isStructureChanged;
+        boolean[] contains = this.containsChanged;
+        int first = old.count;
+        for (int i = 0; i < this.changedCount; i++) {
+            int node = this.changedNodes[i];
+            first = Math.min(first, node);
+
+            // the elements still in the subtree are given their new ids once it has been appended again
+            for (int j = node, end = old.subtreeEnd[node]; j < end; j++) {
+                UIElement element = old.elements[j];
+                if (element.flatLayoutTree == this) {
+                    element.flatLayoutTree = null;
+                    element.flatLayoutId = -1;
+                }
+            }
+
+            for (int parent = node; parent != -1 && !contains[parent]; parent = old.parent[parent]) {
+                contains[parent] = true;
+            }
+        }
+
+        LayoutColumns next = this.spare;
+        next.copySubtree(old, 0, -1, isChanged, contains);
+        for (int i = 0; i < this.changedCount; i++) {
+            int node = this.changedNodes[i];
+            isChanged[node] = false;
+            for (int parent = node; parent != -1 && contains[parent]; parent = old.parent[parent]) {
+                contains[parent] = false;
+            }
+        }
+
+        this.changedCount = 0;
+        old.clear();
+        this.spare = old;
+        this.columns = next;
+
+        // the nodes before the first changed node are copied to the same ids
+        onStructureChanged(first);
+    }
+
+    /**
+     * Gives the elements of the nodes from the given id onwards their ids, and makes room for the nodes in the node state
+     */
+    private void onStructureChanged(int first) {
+        LayoutColumns columns = this.columns;
+        int count = columns.count;
+        this.output.ensureCapacity(count);
+        if (this.isInputDirty.length < count) {
+            this.isInputDirty = new boolean[count * 2];
+            this.isStructureChanged = new boolean[count * 2];
+            this.containsChanged = new boolean[count * 2];
+        }
+
+        for (int i = first; i < count; i++) {
+            UIElement element = columns.elements[i];
+            element.flatLayoutTree = this;
+            element.flatLayoutId = i;
+        }
+    }
+
+    private void syncInputs() {
+        for (int i = 0; i < this.dirtyInputCount; i++) {
+            int node = this.dirtyInputs[i];
+            this.isInputDirty[node] = false;
+            this.columns.captureInputs(node);
+        }
+
+        this.dirtyInputCount = 0;
+    }
+}
@@ -15,19 +15,19 @@ import reghzy.breezeui.core.utils.Thickness;
 import reghzy.breezeui.core.utils.VerticalAlignment;
 
 public class FrameworkElement extends UIElement {
-    public static final DependencyProperty HORIZONTAL_ALIGNMENT = DependencyProperty.register("HorizontalAlignment", HorizontalAlignment.class, FrameworkElement.class, new FrameworkPropertyMeta(HorizontalAlignment.Left, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty VERTICAL_ALIGNMENT = DependencyProperty.register("VerticalAlignment", VerticalAlignment.class, FrameworkElement.class, new FrameworkPropertyMeta(VerticalAlignment.Top, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty HORIZONTAL_ALIGNMENT = DependencyProperty.register("HorizontalAlignment", HorizontalAlignment.class, FrameworkElement.class, new FrameworkPropertyMeta(HorizontalAlignment.Left, FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_POSITION));
+    public static final DependencyProperty VERTICAL_ALIGNMENT = DependencyProperty.register("VerticalAlignment", VerticalAlignment.class, FrameworkElement.class, new FrameworkPropertyMeta(VerticalAlignment.Top, FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_POSITION));
 
-    public static final DependencyProperty WIDTH =      DependencyProperty.register("Width", double.class, FrameworkElement.class,     new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty MIN_WIDTH =  DependencyProperty.register("MinWidth", double.class, FrameworkElement.class,  new FrameworkPropertyMeta(0d, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty MAX_WIDTH =  DependencyProperty.register("MaxWidth", double.class, FrameworkElement.class,  new FrameworkPropertyMeta(Double.POSITIVE_INFINITY, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty HEIGHT =     DependencyProperty.register("Height", double.class, FrameworkElement.class,    new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty MIN_HEIGHT = DependencyProperty.register("MinHeight", double.class, FrameworkElement.class, new FrameworkPropertyMeta(0d, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-    public static final DependencyProperty MAX_HEIGHT = DependencyProperty.register("MaxHeight", double.class, FrameworkElement.class, new FrameworkPropertyMeta(Double.POSITIVE_INFINITY, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty WIDTH =      DependencyProperty.register("Width", double.class, FrameworkElement.class,     new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT));
+    public static final DependencyProperty MIN_WIDTH =  DependencyProperty.register("MinWidth", double.class, FrameworkElement.class,  new FrameworkPropertyMeta(0d, FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT));
+    public static final DependencyProperty MAX_WIDTH =  DependencyProperty.register("MaxWidth", double.class, FrameworkElement.class,  new FrameworkPropertyMeta(Double.POSITIVE_INFINITY, FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT));
+    public static final DependencyProperty HEIGHT =     DependencyProperty.register("Height", double.class, FrameworkElement.class,    new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT));
+    public static final DependencyProperty MIN_HEIGHT = DependencyProperty.register("MinHeight", double.class, FrameworkElement.class, new FrameworkPropertyMeta(0d, FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT));
+    public static final DependencyProperty MAX_HEIGHT = DependencyProperty.register("MaxHeight", double.class, FrameworkElement.class, new FrameworkPropertyMeta(Double.POSITIVE_INFINITY, FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT));
 
     static {
         IS_MOUSE_OVER.overrideMetadata(FrameworkElement.class, new FrameworkPropertyMeta(false, FrameworkPropertyMetaFlags.AFFECTS_RENDER));
-        MARGIN.overrideMetadata(FrameworkElement.class, new FrameworkPropertyMeta(new Thickness(0), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+        MARGIN.overrideMetadata(FrameworkElement.class, new FrameworkPropertyMeta(new Thickness(0), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_POSITION));
         PARENT.overrideMetadata(FrameworkElement.class, new FrameworkPropertyMeta(null, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
     }
 
@@ -195,12 +195,16 @@ public class FrameworkElement extends UIElement {
                 }
             }
 
+            if (meta.canAffectLayout() && this.flatLayoutTree != null) {
+                this.flatLayoutTree.invalidateInputs(this);
+            }
+
             if (meta.canAffectLayout() && (!this.bypassMeasurementPolicies || property != FrameworkElement.WIDTH && property != FrameworkElement.HEIGHT)) {
-                this.invalidateLayout();
+                this.invalidateLayout(meta.getLayoutAxes());
             }
 
             if (meta.canAffectRender()) {
-                this.invalidateVisual();
+                this.invalidateRender();
             }
         }
     }
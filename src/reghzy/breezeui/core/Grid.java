@@ -0,0 +1,700 @@
+package reghzy.breezeui.core;
+
+import org.joml.Vector2d;
+import reghzy.breezeui.core.properties.DependencyProperty;
+import reghzy.breezeui.core.properties.PropertyMeta;
+import reghzy.breezeui.core.utils.GridLength;
+import reghzy.breezeui.core.utils.HorizontalAlignment;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.Thickness;
+import reghzy.breezeui.core.utils.VerticalAlignment;
+import reghzy.breezeui.utils.ObservableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A panel that arranges its children into cells of rows and columns, whose sizes are defined
+ * by {@link RowDefinition}s and {@link ColumnDefinition}s (pixel, auto or star sized)
+ * <p>
+ *     The solved track sizes and the desired size of every cell in an auto track are cached. When a cell's layout is
+ *     invalidated, only its desired size is re-calculated, and only the auto tracks it is in are solved again (a track
+ *     only has to look at all of its cells when its biggest cell shrinks). Cells spanning multiple auto tracks are
+ *     resolved in order of their span, once the single-track cells are known
+ * </p>
+ * <p>
+ *     Changing the row definitions does not affect the columns (and vice versa), and a cell's layout changing in an
+ *     axis where it is not in an auto track does not re-arrange the grid at all
+ * </p>
+ * <p>
+ *     The track offsets that the cells were last arranged with are kept, so re-arranging the grid only visits the cells
+ *     whose layout was invalidated and the cells on an edge between tracks that has moved (when the grid is sized to its
+ *     children and is not aligned to the start of its slot, the children are moved along with it every time it is
+ *     arranged, so they are all visited). A cell sized to its content
+ *     is first measured in the slot it was last given, which is kept if the cell still fits in it and the slot does not
+ *     change once the tracks are solved, so that it is only measured once (it is otherwise measured with all of the
+ *     grid's space to find out how big it is, and then again in its new slot)
+ * </p>
+ */
+public class Grid extends Panel {
+    public static final DependencyProperty ROW =         DependencyProperty.register("Grid.Row", int.class, UIElement.class,        new PropertyMeta(0, (p, o, ov, nv) -> onCellChanged((UIElement) o)));
+    public static final DependencyProperty COLUMN =      DependencyProperty.register("Grid.Column", int.class, UIElement.class,     new PropertyMeta(0, (p, o, ov, nv) -> onCellChanged((UIElement) o)));
+    public static final DependencyProperty ROW_SPAN =    DependencyProperty.register("Grid.RowSpan", int.class, UIElement.class,    new PropertyMeta(1, (p, o, ov, nv) -> onCellChanged((UIElement) o)));
+    public static final DependencyProperty COLUMN_SPAN = DependencyProperty.register("Grid.ColumnSpan", int.class, UIElement.class, new PropertyMeta(1, (p, o, ov, nv) -> onCellChanged((UIElement) o)));
+
+    private final ObservableList<RowDefinition> rowDefinitions;
+    private final ObservableList<ColumnDefinition> columnDefinitions;
+    private final Tracks rows;
+    private final Tracks columns;
+
+    // the children (in order) that the cached cells were built from
+    private UIElement[] cells;
+    private boolean isCellsDirty;
+    private boolean isRowsDirty;
+    private boolean isColumnsDirty;
+
+    // whether the children are where the tracks were last arranged (see Tracks.arrangedOffsets)
+    private boolean isArranged;
+
+    // the size of the area that the desired sizes of the cells sized to their content were measured in
+    private double areaW;
+    private double areaH;
+
+    // the cells whose layout was invalidated since the grid was last arranged, followed by the cells to visit
+    // while it is being arranged; isCellListed marks the cells in the list, so that each one is only listed once
+    private int[] listedCells;
+    private boolean[] isCellListed;
+    private int listedCount;
+
+    public Grid() {
+        this.rowDefinitions = new ObservableList<RowDefinition>();
+        this.columnDefinitions = new ObservableList<ColumnDefinition>();
+        this.rowDefinitions.addListener((list, change) -> this.invalidateTracks(false));
+        this.columnDefinitions.addListener((list, change) -> this.invalidateTracks(true));
+        this.rows = new Tracks();
+        this.columns = new Tracks();
+        this.cells = new UIElement[0];
+        this.listedCells = new int[0];
+        this.isCellListed = new boolean[0];
+        this.isCellsDirty = true;
+    }
+
+    public static int getRow(UIElement element) {
+        return element.getValue(ROW);
+    }
+
+    public static void setRow(UIElement element, int row) {
+        element.setValue(ROW, row);
+    }
+
+    public static int getColumn(UIElement element) {
+        return element.getValue(COLUMN);
+    }
+
+    public static void setColumn(UIElement element, int column) {
+        element.setValue(COLUMN, column);
+    }
+
+    public static int getRowSpan(UIElement element) {
+        return element.getValue(ROW_SPAN);
+    }
+
+    public static void setRowSpan(UIElement element, int span) {
+        element.setValue(ROW_SPAN, span);
+    }
+
+    public static int getColumnSpan(UIElement element) {
+        return element.getValue(COLUMN_SPAN);
+    }
+
+    public static void setColumnSpan(UIElement element, int span) {
+        element.setValue(COLUMN_SPAN, span);
+    }
+
+    public ObservableList<RowDefinition> getRowDefinitions() {
+        return this.rowDefinitions;
+    }
+
+    public ObservableList<ColumnDefinition> getColumnDefinitions() {
+        return this.columnDefinitions;
+    }
+
+    private static void onCellChanged(UIElement element) {
+        UIElement parent = element.getParent();
+        if (parent instanceof Grid) {
+            ((Grid) parent).invalidateCells();
+        }
+    }
+
+    private void invalidateCells() {
+        this.isCellsDirty = true;
+        invalidateLayoutForChildren();
+    }
+
+    /**
+     * Called when the column or row definitions change. Only the tracks in that axis have to be rebuilt, and only
+     * the cells in auto tracks in that axis need their desired sizes re-calculated (they are measured with all
+     * of the grid's space, so their desired sizes in the other axis do not depend on the tracks)
+     */
+    private void invalidateTracks(boolean columns) {
+        if (columns) {
+            this.isColumnsDirty = true;
+        }
+        else {
+            this.isRowsDirty = true;
+        }
+
+        invalidateLayoutForChildren(columns ? LayoutAxes.HORIZONTAL : LayoutAxes.VERTICAL);
+    }
+
+    @Override
+    protected Vector2d arrangeChildren(List<UIElement> children, Rect area) {
+        boolean isColumnsRebuilt = false, isRowsRebuilt = false;
+        if (this.isCellsDirty || !isSameCells(children)) {
+            rebuildCells(children);
+            isColumnsRebuilt = isRowsRebuilt = true;
+        }
+        else {
+            if (this.isColumnsDirty) {
+                rebuildTracks(this.columns, this.cells, getColumnLengths(), COLUMN, COLUMN_SPAN);
+                isColumnsRebuilt = true;
+            }
+
+            if (this.isRowsDirty) {
+                rebuildTracks(this.rows, this.cells, getRowLengths(), ROW, ROW_SPAN);
+                isRowsRebuilt = true;
+            }
+        }
+
+        this.isColumnsDirty = this.isRowsDirty = false;
+
+        // cells sized to their content are measured with all of the space there is, so they have to be measured again
+        // when it is resized, as do the cells in auto tracks that have been rebuilt
+        boolean isResized = area.w != this.areaW || area.h != this.areaH;
+        this.areaW = area.w;
+        this.areaH = area.h;
+        if (isResized) {
+            isColumnsRebuilt = isRowsRebuilt = true;
+        }
+
+        // update the desired sizes of the cells in auto tracks that have changed
+        UIElement[] cells = this.cells;
+        boolean isFullArrange = !this.isArranged || isColumnsRebuilt || isRowsRebuilt;
+        int count = isFullArrange ? cells.length : this.listedCount;
+        for (int j = 0; j < count; j++) {
+            int i = isFullArrange ? j : this.listedCells[j];
+            UIElement child = cells[i];
+            boolean isAutoColumn = this.columns.isAutoCell[i], isAutoRow = this.rows.isAutoCell[i];
+            if ((isAutoColumn || isAutoRow) && ((isColumnsRebuilt && isAutoColumn) || (isRowsRebuilt && isAutoRow) || child.isLayoutDirty || child.hasNeverUpdatedLayout)) {
+                updateDesiredSize(i, child, area, !isFullArrange);
+            }
+        }
+
+        this.columns.solve(area.x, area.w);
+        this.rows.solve(area.y, area.h);
+
+        // the cells that were not invalidated only have to be visited if their slot has moved
+        if (!isFullArrange) {
+            listMovedCells(this.columns);
+            listMovedCells(this.rows);
+            count = this.listedCount;
+        }
+
+        this.isArranged = true;
+        for (int j = 0; j < count; j++) {
+            int i = isFullArrange ? j : this.listedCells[j];
+            UIElement child = cells[i];
+            Thickness margin = child.getValue(MARGIN);
+            Tracks c = this.columns, r = this.rows;
+            double x = c.offsets[c.cellStart[i]], x2 = c.offsets[c.cellStart[i] + c.cellSpan[i]];
+            double y = r.offsets[r.cellStart[i]], y2 = r.offsets[r.cellStart[i] + r.cellSpan[i]];
+            double w = Math.max(x2 - x - margin.getLeft() - margin.getRight(), 0d);
+            double h = Math.max(y2 - y - margin.getTop() - margin.getBottom(), 0d);
+            measureChild(child, new Rect(x + margin.getLeft(), y + margin.getTop(), w, h));
+            if (child.isLayoutDirty) {
+                // left to be measured on a later tick, so the cells after it may not be where the tracks say
+                this.isArranged = false;
+            }
+        }
+
+        for (int j = 0; j < this.listedCount; j++) {
+            this.isCellListed[this.listedCells[j]] = false;
+        }
+
+        this.listedCount = 0;
+        this.columns.onArranged();
+        this.rows.onArranged();
+        return new Vector2d(this.columns.total, this.rows.total);
+    }
+
+    @Override
+    protected Rect measureChildren(List<UIElement> children, Rect rect, Rect layout) {
+        Rect result = super.measureChildren(children, rect, layout);
+
+        // the children were arranged from the tracks' start, and were then moved along with this grid's layout
+        if (this.columns.arrangedOffsets != null) {
+            this.columns.translateArranged(result.x - this.columns.offsets[0]);
+            this.rows.translateArranged(result.y - this.rows.offsets[0]);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void translateLayout(double dx, double dy) {
+        super.translateLayout(dx, dy);
+        if (this.columns.arrangedOffsets != null) {
+            this.columns.translateArranged(dx);
+            this.rows.translateArranged(dy);
+        }
+    }
+
+    @Override
+    protected void onChildLayoutInvalidated(UIElement child, int axes) {
+        int cell = getCellIndex(child);
+        if (cell != -1) {
+            listCell(cell);
+        }
+
+        super.onChildLayoutInvalidated(child, axes);
+    }
+
+    private void listCell(int cell) {
+        if (!this.isCellListed[cell]) {
+            this.isCellListed[cell] = true;
+            this.listedCells[this.listedCount++] = cell;
+        }
+    }
+
+    /**
+     * Lists the cells that start or end on an edge of the given tracks that has moved since they were last arranged
+     */
+    private void listMovedCells(Tracks tracks) {
+        double[] offsets = tracks.offsets, arranged = tracks.arrangedOffsets;
+        for (int edge = 0; edge < offsets.length; edge++) {
+            if (offsets[edge] != arranged[edge]) {
+                for (int j = tracks.startingCellStart[edge], end = tracks.startingCellStart[edge + 1]; j < end; j++) {
+                    listCell(tracks.startingCells[j]);
+                }
+
+                for (int j = tracks.endingCellStart[edge], end = tracks.endingCellStart[edge + 1]; j < end; j++) {
+                    listCell(tracks.endingCells[j]);
+                }
+            }
+        }
+    }
+
+    private boolean isSameCells(List<UIElement> children) {
+        UIElement[] cells = this.cells;
+        if (cells.length != children.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] != children.get(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void rebuildCells(List<UIElement> children) {
+        UIElement[] cells = children.toArray(new UIElement[0]);
+        rebuildTracks(this.rows, cells, getRowLengths(), ROW, ROW_SPAN);
+        rebuildTracks(this.columns, cells, getColumnLengths(), COLUMN, COLUMN_SPAN);
+        this.cells = cells;
+        this.listedCells = new int[cells.length];
+        this.isCellListed = new boolean[cells.length];
+        this.listedCount = 0;
+        this.isCellsDirty = false;
+    }
+
+    private static void rebuildTracks(Tracks tracks, UIElement[] cells, GridLength[] lengths, DependencyProperty indexProperty, DependencyProperty spanProperty) {
+        int[] start = new int[cells.length], span = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            UIElement child = cells[i];
+            start[i] = clampIndex(child.getValue(indexProperty), lengths.length);
+            span[i] = clampSpan(child.getValue(spanProperty), start[i], lengths.length);
+        }
+
+        tracks.rebuild(lengths, start, span);
+    }
+
+    private GridLength[] getRowLengths() {
+        GridLength[] lengths = new GridLength[Math.max(this.rowDefinitions.size(), 1)];
+        Arrays.fill(lengths, GridLength.STAR);
+        for (int i = 0, size = this.rowDefinitions.size(); i < size; i++) {
+            lengths[i] = this.rowDefinitions.get(i).getHeight();
+        }
+
+        return lengths;
+    }
+
+    private GridLength[] getColumnLengths() {
+        GridLength[] lengths = new GridLength[Math.max(this.columnDefinitions.size(), 1)];
+        Arrays.fill(lengths, GridLength.STAR);
+        for (int i = 0, size = this.columnDefinitions.size(); i < size; i++) {
+            lengths[i] = this.columnDefinitions.get(i).getWidth();
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Returns the index of the given child's cell, or -1 if the cells are out of date
+     */
+    private int getCellIndex(UIElement child) {
+        UIElement[] cells = this.cells;
+        if (this.isCellsDirty) {
+            return -1;
+        }
+
+        // the cells are in the same order as the visual children
+        int index = child.visualIndex;
+        if (index >= 0 && index < cells.length && cells[index] == child) {
+            return index;
+        }
+
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] == child) {
+                child.visualIndex = i;
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    protected int getArrangeAxes(UIElement child, int axes) {
+        int cell = getCellIndex(child);
+        if (cell == -1 || this.isColumnsDirty || this.isRowsDirty || (axes & LayoutAxes.POSITION) != 0) {
+            // the cells have to be rebuilt anyway, or the child's margin may have changed (which changes its slot)
+            return LayoutAxes.BOTH;
+        }
+
+        // a child's size only affects the tracks if it is in an auto track; otherwise its slot stays the same
+        boolean isColumnAffected = (axes & LayoutAxes.HORIZONTAL) != 0 && this.columns.isAutoCell[cell];
+        boolean isRowAffected = (axes & LayoutAxes.VERTICAL) != 0 && this.rows.isAutoCell[cell];
+        return (isColumnAffected ? LayoutAxes.HORIZONTAL : LayoutAxes.NONE) | (isRowAffected ? LayoutAxes.VERTICAL : LayoutAxes.NONE);
+    }
+
+    private static int clampIndex(int index, int count) {
+        return Math.max(Math.min(index, count - 1), 0);
+    }
+
+    private static int clampSpan(int span, int start, int count) {
+        return Math.max(Math.min(span, count - start), 1);
+    }
+
+    /**
+     * Calculates the size the given cell's child wants (including its margin), in the axes where it is in an auto track
+     * @param canReuseSlot Whether the child can be measured in the slot it was last given, because the children
+     *                     are still where the tracks were last arranged
+     */
+    private void updateDesiredSize(int cell, UIElement child, Rect area, boolean canReuseSlot) {
+        Thickness margin = child.getValue(MARGIN);
+        double marginW = margin.getLeft() + margin.getRight();
+        double marginH = margin.getTop() + margin.getBottom();
+        double w = getExplicitSize(child, true);
+        double h = getExplicitSize(child, false);
+        boolean isContentW = this.columns.isAutoCell[cell] && Double.isNaN(w);
+        boolean isContentH = this.rows.isAutoCell[cell] && Double.isNaN(h);
+        if (isContentW || isContentH) {
+            // sized to its content. It is measured in its last slot first, which is only enough to find out how
+            // big it is if it is aligned to the start of the slot and still fits in it; the slot is then kept if the
+            // tracks do not move it. Otherwise, it is measured with all of the space there is, and it will be
+            // measured again (or translated) once the tracks have been solved. A cell that filled its slot last
+            // time (e.g. the biggest cell in its track) would most likely fill it again, so it is not tried
+            Rect slot = child.lastAvailableRect, layout = null;
+            if (canReuseSlot && slot != null && !child.hasNeverUpdatedLayout && (!isContentW || fitsInSlot(child, true, this.columns.desiredSizes[cell] - marginW, slot.w)) && (!isContentH || fitsInSlot(child, false, this.rows.desiredSizes[cell] - marginH, slot.h))) {
+                layout = child.measure(slot);
+                if ((isContentW && getExtent(slot.x, layout.getX2()) >= slot.w) || (isContentH && getExtent(slot.y, layout.getY2()) >= slot.h)) {
+                    layout = null;
+                }
+            }
+
+            if (layout == null) {
+                slot = new Rect(area.x + margin.getLeft(), area.y + margin.getTop(), Math.max(area.w - marginW, 0d), Math.max(area.h - marginH, 0d));
+                layout = child.measure(slot);
+            }
+
+            if (isContentW) {
+                w = getExtent(slot.x, layout.getX2());
+            }
+
+            if (isContentH) {
+                h = getExtent(slot.y, layout.getY2());
+            }
+        }
+
+        if (this.columns.isAutoCell[cell]) {
+            this.columns.setDesiredSize(cell, w + marginW);
+        }
+
+        if (this.rows.isAutoCell[cell]) {
+            this.rows.setDesiredSize(cell, h + marginH);
+        }
+    }
+
+    /**
+     * Returns whether the given child last fit in its slot in the given axis without filling it, and is aligned to
+     * the start of the slot, in which case its size in that axis does not depend on the size of the slot (as long as it still fits)
+     */
+    private static boolean fitsInSlot(UIElement child, boolean horizontal, double size, double slotSize) {
+        if (!(child instanceof FrameworkElement) || size >= slotSize) {
+            return false;
+        }
+        else if (horizontal) {
+            return child.getValue(HORIZONTAL_ALIGNMENT) == HorizontalAlignment.Left;
+        }
+        else {
+            return child.getValue(VERTICAL_ALIGNMENT) == VerticalAlignment.Top;
+        }
+    }
+
+    /**
+     * The solved sizes of the rows or the columns of a grid, and the cells in each of them
+     */
+    private static final class Tracks {
+        private GridLength[] lengths;
+        private double[] sizes;
+        private double[] offsets; // offsets[i] is the start of track i; offsets[count] is the end of the last track
+        private double total;
+
+        // auto tracks; the biggest desired size of their single-track cells
+        private double[] autoSizes;
+        private boolean[] isAutoSizeDirty;
+
+        // the single-track cells in each auto track (trackCells[trackCellStart[t]] to trackCells[trackCellStart[t + 1]])
+        private int[] trackCellStart;
+        private int[] trackCells;
+
+        // the multi-track cells that span an auto track, sorted by their span
+        private int[] spanningCells;
+
+        // the cells that start on each edge (startingCells[startingCellStart[e]] to startingCells[startingCellStart[e + 1]]),
+        // and the cells that end on each edge, where edge e is the start of track e
+        private int[] startingCellStart;
+        private int[] startingCells;
+        private int[] endingCellStart;
+        private int[] endingCells;
+
+        // the offsets that the cells were last arranged with (moved along with the grid), or null if they have not been
+        private double[] arrangedOffsets;
+
+        // per cell
+        private int[] cellStart;
+        private int[] cellSpan;
+        private double[] desiredSizes;
+        private boolean[] isAutoCell;
+
+        private Tracks() {
+
+        }
+
+        private void rebuild(GridLength[] lengths, int[] cellStart, int[] cellSpan) {
+            int count = lengths.length, cellCount = cellStart.length;
+            this.lengths = lengths;
+            this.sizes = new double[count];
+            this.offsets = new double[count + 1];
+            this.autoSizes = new double[count];
+            this.isAutoSizeDirty = new boolean[count];
+            this.cellStart = cellStart;
+            this.cellSpan = cellSpan;
+            this.desiredSizes = new double[cellCount];
+            this.isAutoCell = new boolean[cellCount];
+            this.arrangedOffsets = null;
+
+            int[] cellEnd = new int[cellCount];
+            for (int i = 0; i < cellCount; i++) {
+                cellEnd[i] = cellStart[i] + cellSpan[i];
+            }
+
+            this.startingCellStart = new int[count + 2];
+            this.startingCells = sortByEdge(cellStart, this.startingCellStart);
+            this.endingCellStart = new int[count + 2];
+            this.endingCells = sortByEdge(cellEnd, this.endingCellStart);
+
+            // counting sort of the single-track cells into their tracks
+            int[] trackCellStart = new int[count + 1];
+            int spanningCount = 0;
+            for (int i = 0; i < cellCount; i++) {
+                for (int t = cellStart[i], end = t + cellSpan[i]; t < end; t++) {
+                    if (lengths[t].isAuto()) {
+                        this.isAutoCell[i] = true;
+                        break;
+                    }
+                }
+
+                if (this.isAutoCell[i]) {
+                    if (cellSpan[i] == 1) {
+                        trackCellStart[cellStart[i] + 1]++;
+                    }
+                    else {
+                        spanningCount++;
+                    }
+                }
+            }
+
+            for (int t = 0; t < count; t++) {
+                trackCellStart[t + 1] += trackCellStart[t];
+            }
+
+            int[] trackCells = new int[trackCellStart[count]];
+            int[] next = Arrays.copyOf(trackCellStart, count);
+            Integer[] spanning = new Integer[spanningCount];
+            spanningCount = 0;
+            for (int i = 0; i < cellCount; i++) {
+                if (this.isAutoCell[i]) {
+                    if (cellSpan[i] == 1) {
+                        trackCells[next[cellStart[i]]++] = i;
+                    }
+                    else {
+                        spanning[spanningCount++] = i;
+                    }
+                }
+            }
+
+            Arrays.sort(spanning, (a, b) -> Integer.compare(cellSpan[a], cellSpan[b]));
+            this.spanningCells = new int[spanning.length];
+            for (int i = 0; i < spanning.length; i++) {
+                this.spanningCells[i] = spanning[i];
+            }
+
+            this.trackCellStart = trackCellStart;
+            this.trackCells = trackCells;
+            for (int t = 0; t < count; t++) {
+                this.isAutoSizeDirty[t] = lengths[t].isAuto();
+            }
+        }
+
+        /**
+         * Counting sort of the cells by the given edge of each cell
+         * @param edgeStart Receives the index of the first cell on each edge in the returned array
+         */
+        private static int[] sortByEdge(int[] cellEdge, int[] edgeStart) {
+            for (int edge : cellEdge) {
+                edgeStart[edge + 1]++;
+            }
+
+            for (int e = 1; e < edgeStart.length; e++) {
+                edgeStart[e] += edgeStart[e - 1];
+            }
+
+            int[] cells = new int[cellEdge.length];
+            int[] next = Arrays.copyOf(edgeStart, edgeStart.length - 1);
+            for (int i = 0; i < cellEdge.length; i++) {
+                cells[next[cellEdge[i]]++] = i;
+            }
+
+            return cells;
+        }
+
+        private void onArranged() {
+            if (this.arrangedOffsets == null) {
+                this.arrangedOffsets = new double[this.offsets.length];
+            }
+
+            System.arraycopy(this.offsets, 0, this.arrangedOffsets, 0, this.offsets.length);
+        }
+
+        private void translateArranged(double offset) {
+            if (offset != 0d) {
+                for (int e = 0; e < this.arrangedOffsets.length; e++) {
+                    this.arrangedOffsets[e] += offset;
+                }
+            }
+        }
+
+        private void setDesiredSize(int cell, double size) {
+            double old = this.desiredSizes[cell];
+            this.desiredSizes[cell] = size;
+            if (this.cellSpan[cell] != 1) {
+                return;
+            }
+
+            int track = this.cellStart[cell];
+            if (size >= this.autoSizes[track]) {
+                this.autoSizes[track] = size;
+            }
+            else if (old >= this.autoSizes[track]) {
+                // the biggest cell has shrunk, so the track has to look at all of its cells
+                this.isAutoSizeDirty[track] = true;
+            }
+        }
+
+        private void solve(double start, double available) {
+            GridLength[] lengths = this.lengths;
+            int count = lengths.length;
+            for (int t = 0; t < count; t++) {
+                if (this.isAutoSizeDirty[t]) {
+                    double max = 0d;
+                    for (int j = this.trackCellStart[t], end = this.trackCellStart[t + 1]; j < end; j++) {
+                        max = Math.max(max, this.desiredSizes[this.trackCells[j]]);
+                    }
+
+                    this.autoSizes[t] = max;
+                    this.isAutoSizeDirty[t] = false;
+                }
+            }
+
+            double used = 0d, stars = 0d;
+            for (int t = 0; t < count; t++) {
+                GridLength length = lengths[t];
+                switch (length.getType()) {
+                    case Pixel: this.sizes[t] = length.getValue(); break;
+                    case Auto: this.sizes[t] = this.autoSizes[t]; break;
+                    default: this.sizes[t] = 0d; stars += length.getValue(); break;
+                }
+            }
+
+            // cells spanning multiple tracks enlarge the auto tracks they span equally, smallest spans first
+            for (int cell : this.spanningCells) {
+                int first = this.cellStart[cell], end = first + this.cellSpan[cell], autoCount = 0;
+                double spanned = 0d;
+                for (int t = first; t < end; t++) {
+                    spanned += this.sizes[t];
+                    if (lengths[t].isAuto()) {
+                        autoCount++;
+                    }
+                }
+
+                double excess = this.desiredSizes[cell] - spanned;
+                if (excess > 0d) {
+                    for (int t = first; t < end; t++) {
+                        if (lengths[t].isAuto()) {
+                            this.sizes[t] += excess / autoCount;
+                        }
+                    }
+                }
+            }
+
+            for (int t = 0; t < count; t++) {
+                if (!lengths[t].isStar()) {
+                    used += this.sizes[t];
+                }
+            }
+
+            if (stars > 0d) {
+                double remaining = Math.max(available - used, 0d);
+                for (int t = 0; t < count; t++) {
+                    if (lengths[t].isStar()) {
+                        this.sizes[t] = remaining * (lengths[t].getValue() / stars);
+                    }
+                }
+            }
+
+            double offset = start;
+            for (int t = 0; t < count; t++) {
+                this.offsets[t] = offset;
+                offset += this.sizes[t];
+            }
+
+            this.offsets[count] = offset;
+            this.total = offset - start;
+        }
+    }
+}
@@ -2,99 +2,312 @@ package reghzy.breezeui.core;
 
 import reghzy.breezeui.core.properties.DependencyProperty;
 import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
+import reghzy.breezeui.core.utils.LayoutAxes;
 import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.utils.CollectionChange;
+import reghzy.breezeui.utils.CollectionChangedListener;
+import reghzy.breezeui.utils.ObservableList;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.List;
 
 public class ItemsControl extends Control {
-    public static final DependencyProperty CHILDREN = DependencyProperty.register("Children", Collection.class, ItemsControl.class, new FrameworkPropertyMeta((p, o, ov, nv) -> ((ItemsControl) o).onChildrenChanged((Collection) ov, (Collection) nv)));
+    public static final DependencyProperty CHILDREN = DependencyProperty.register("Children", ObservableList.class, ItemsControl.class, new FrameworkPropertyMeta((p, o, ov, nv) -> ((ItemsControl) o).onChildrenChanged((ObservableList) ov, (ObservableList) nv)));
 
-    public ItemsControl() {
+    private final CollectionChangedListener<UIElement> childrenListener;
+
+    // when only the children collection has changed, only the added children need to be measured
+    private boolean isChildrenOnlyDirty;
+    private boolean isInvalidatingForChildren;
+    private int dirtyChildStart;
+    private int dirtyChildEnd;
 
+    public ItemsControl() {
+        this.childrenListener = this::onChildCollectionChanged;
     }
 
     @Override
     public Rect measureCoreLayout(Rect rect) {
         Rect layout = super.measureCoreLayout(rect);
-        Collection<UIElement> children = getValue(CHILDREN);
+        List<UIElement> children = getValue(CHILDREN);
         if (children != null) {
-            for(UIElement element : children) {
-                layout = Rect.max(layout, element.measure(layout));
+            layout = measureChildren(children, rect, layout);
+        }
+
+        this.isChildrenOnlyDirty = false;
+        return layout;
+    }
+
+    /**
+     * Measures the children, and returns this element's final layout. By default, every child is given
+     * this element's layout as its available space, so they overlap each other, and the final layout
+     * is enlarged to contain all of them
+     * @param children The children to measure
+     * @param rect     The space available to this element
+     * @param layout   This element's own layout, measured from its alignment and size
+     */
+    protected Rect measureChildren(List<UIElement> children, Rect rect, Rect layout) {
+        if (this.isChildrenOnlyDirty && tryMeasureDirtyChildren(children, rect, layout)) {
+            return layout;
+        }
+
+        return measureOverlay(children, layout);
+    }
+
+    /**
+     * Measures the children against the layout, each one against the layout enlarged by the children before it
+     * <p>
+     *     When the children are measured in parallel, they are all measured against the same layout, so the results
+     *     are only kept up to (and including) the first child that enlarges it. The children after that one are
+     *     measured again against the enlarged layout, in another parallel pass if there are still enough of them.
+     *     Each child that enlarges the layout therefore costs a pass over the children after it, so once
+     *     {@link ParallelMeasure#MAX_PASSES} passes have been made, the rest are measured in order
+     * </p>
+     */
+    private Rect measureOverlay(List<UIElement> children, Rect layout) {
+        int start = 0, size = children.size();
+        for (int pass = 0; pass < ParallelMeasure.MAX_PASSES; pass++) {
+            List<UIElement> remaining = start == 0 ? children : children.subList(start, size);
+            if (!ParallelMeasure.canMeasureInParallel(remaining, layout)) {
+                break;
+            }
+
+            Rect[] results = ParallelMeasure.measureAll(this, remaining, layout);
+            int kept = 0;
+            while (kept < results.length) {
+                Rect union = Rect.max(layout, results[kept++]);
+                if (!union.isCloseTo(layout)) {
+                    layout = union;
+                    break;
+                }
+            }
+
+            start += kept;
+            if (start == size) {
+                return layout;
             }
         }
 
+        for (int i = start; i < size; i++) {
+            layout = Rect.max(layout, measureChild(children.get(i), layout));
+        }
+
         return layout;
     }
 
+    /**
+     * Measures only the children that were added since the last measure. This is only possible when the
+     * available space and this element's own layout are unchanged, and none of the children (old or new)
+     * enlarge this element's layout; otherwise, every child must be re-measured
+     * @return True if the dirty children were measured, false if a full measure is required
+     */
+    private boolean tryMeasureDirtyChildren(List<UIElement> children, Rect rect, Rect layout) {
+        if (this.lastAvailableRect == null || !this.lastAvailableRect.isCloseTo(rect) || !this.layoutRect.isCloseTo(layout)) {
+            return false;
+        }
+
+        int end = Math.min(this.dirtyChildEnd, children.size());
+        for (int i = this.dirtyChildStart; i < end; i++) {
+            if (!Rect.max(layout, children.get(i).measure(layout)).isCloseTo(layout)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void onLayoutApplied(Rect available) {
+        super.onLayoutApplied(available);
+        this.isChildrenOnlyDirty = false;
+    }
+
+    @Override
+    public int getVisualChildCount() {
+        List<UIElement> children = getValue(CHILDREN);
+        return children != null ? children.size() : 0;
+    }
+
+    @Override
+    public UIElement getVisualChild(int index) {
+        List<UIElement> children = getValue(CHILDREN);
+        if (children == null) {
+            return super.getVisualChild(index);
+        }
+
+        return children.get(index);
+    }
+
     public void addChild(UIElement element) {
         if (element == null)
             throw new IllegalArgumentException("Element is null");
-
-        element.setParent(this);
-        invalidateVisual();
-        element.invalidateVisual();
         getChildren().add(element);
     }
 
     public boolean removeChild(UIElement element) {
         if (element == null)
             throw new IllegalArgumentException("Element is null");
-        element.setParent(null);
-        boolean removed = getChildren().remove(element);
-        if (removed) {
-            invalidateRender();
-        }
-
-        return removed;
+        return getChildren().remove(element);
     }
 
-    public Collection<UIElement> getChildren() {
-        Collection collection = getValue(CHILDREN);
-        if (collection == null) {
-            setValue(CHILDREN, collection = new ArrayList());
+    public ObservableList<UIElement> getChildren() {
+        ObservableList<UIElement> list = getValue(CHILDREN);
+        if (list == null) {
+            setValue(CHILDREN, list = new ObservableList<UIElement>());
         }
 
-        return collection;
+        return list;
     }
 
-    private void onChildrenChanged(Collection oldList, Collection newList) {
+    private void onChildrenChanged(ObservableList<UIElement> oldList, ObservableList<UIElement> newList) {
         if (oldList != null) {
-            for (Object obj : oldList) {
-                ((UIElement) obj).validate(false);
-            }
+            oldList.removeListener(this.childrenListener);
+            detachChildren(oldList);
         }
 
         if (newList != null) {
-            for (Object obj : newList) {
-                if (!(obj instanceof UIElement)) {
-                    throw new RuntimeException("Invalid child object: " + obj);
+            attachChildren(newList, 0);
+            newList.addListener(this.childrenListener);
+        }
+
+        this.invalidateLayout();
+    }
+
+    private void onChildCollectionChanged(ObservableList<UIElement> list, CollectionChange<UIElement> change) {
+        switch (change.getAction()) {
+            case ADD: {
+                invalidateChildrenLayout(change.getIndex(), change.getCount());
+                attachChildren(change.getNewItems(), change.getIndex());
+            } break;
+            case REMOVE: {
+                detachChildren(change.getOldItems());
+                invalidateChildrenLayout(change.getIndex(), 0);
+            } break;
+            case REPLACE: {
+                detachChildren(change.getOldItems());
+                invalidateChildrenLayout(change.getIndex(), change.getCount());
+                attachChildren(change.getNewItems(), change.getIndex());
+            } break;
+            case MOVE: {
+                // children overlap each other, so their order does not affect the layout.
+                // flat layout trees store them in order though, so this subtree must be appended again
+                FlatLayoutTree.onVisualStructureChanged(this);
+                for (UIElement element : change.getNewItems()) {
+                    SpatialIndex.onTreePositionChanged(element);
                 }
+            } break;
+        }
+
+        this.invalidateRender();
+    }
+
+    /**
+     * Schedules a layout update that only measures the children within the given range, without
+     * invalidating the layout of every other child. If this element's layout was already invalidated
+     * for another reason, then all children will be measured anyway
+     */
+    private void invalidateChildrenLayout(int index, int count) {
+        if (this.isLayoutDirty) {
+            if (this.isChildrenOnlyDirty) {
+                if (index < this.dirtyChildEnd) {
+                    this.dirtyChildEnd += count;
+                }
+
+                this.dirtyChildStart = Math.min(this.dirtyChildStart, index);
+                this.dirtyChildEnd = Math.max(this.dirtyChildEnd, index + count);
             }
 
-            for (Object obj : newList) {
-                ((UIElement) obj).validate(true);
+            return;
+        }
+
+        invalidateLayoutForChildren();
+        if (this.isLayoutDirty) {
+            this.isChildrenOnlyDirty = true;
+            this.dirtyChildStart = index;
+            this.dirtyChildEnd = index + count;
+        }
+    }
+
+    /**
+     * Invalidates this element's layout without invalidating the layout of every child
+     */
+    protected final void invalidateLayoutForChildren() {
+        invalidateLayoutForChildren(LayoutAxes.BOTH);
+    }
+
+    /**
+     * Invalidates the given axes of this element's layout without invalidating the layout of every child
+     */
+    protected final void invalidateLayoutForChildren(int axes) {
+        this.isInvalidatingForChildren = true;
+        try {
+            this.invalidateLayout(axes);
+        }
+        finally {
+            this.isInvalidatingForChildren = false;
+        }
+    }
+
+    /**
+     * @param index The index of the first child in the children list
+     */
+    private void attachChildren(List<?> children, int index) {
+        for (Object obj : children) {
+            if (!(obj instanceof UIElement)) {
+                throw new RuntimeException("Invalid child object: " + obj);
             }
         }
 
-        this.invalidateLayout();
+        for (Object obj : children) {
+            UIElement element = (UIElement) obj;
+            element.visualIndex = index++; // saves numbering every child again the first time the index is looked up
+            element.setParent(this);
+            element.validate(true);
+        }
+    }
+
+    private void detachChildren(List<?> children) {
+        ContextLayoutManager manager = null;
+        for (Object obj : children) {
+            UIElement element = (UIElement) obj;
+            if (element.isValid()) {
+                if (manager == null) {
+                    manager = ContextLayoutManager.of();
+                }
+
+                manager.getRearrangeQueue().remove(element);
+                manager.getRenderQueue().remove(element);
+            }
+
+            element.validate(false);
+            element.setParent(null);
+        }
+    }
+
+    @Override
+    protected int getAffectedAxes(int axes) {
+        // the layout is enlarged to contain the children, which may change size in either axis
+        return (axes & LayoutAxes.BOTH) != 0 && getVisualChildCount() > 0 ? axes | LayoutAxes.BOTH : axes;
+    }
+
+    /**
+     * Returns whether invalidating this element's layout should also invalidate the layout of every child. Children
+     * are never invalidated by position-only changes, as they are translated if their slot's size does not change
+     */
+    protected boolean invalidatesChildrenLayout() {
+        return true;
     }
 
     @Override
     protected void onLayoutInvalidated() {
         super.onLayoutInvalidated();
-        Collection<UIElement> children = getValue(CHILDREN);
-        if (children != null) {
-            children.forEach(UIElement::invalidateLayout);
+        if (this.isInvalidatingForChildren || !invalidatesChildrenLayout() || (getInvalidatedAxes() & LayoutAxes.POSITION) != 0) {
+            return;
         }
-    }
 
-    @Override
-    protected void onRenderInvalidated() {
-        super.onRenderInvalidated();
-        Collection<UIElement> children = getValue(CHILDREN);
+        this.isChildrenOnlyDirty = false;
+        List<UIElement> children = getValue(CHILDREN);
         if (children != null) {
-            children.forEach(UIElement::invalidateRender);
+            children.forEach(UIElement::invalidateLayout);
         }
     }
 }
@@ -0,0 +1,470 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.HorizontalAlignment;
+import reghzy.breezeui.core.utils.Maths;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.VerticalAlignment;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Stores the layout inputs and structure of a tree of elements in contiguous arrays (columns) indexed by node id,
+ * where nodes are in pre-order, so that a node's subtree is the range of ids from itself to {@link #subtreeEnd}
+ * <p>
+ *     {@link #solve(int, double, double, double, double, Output)} measures a subtree with a single loop over these
+ *     columns, using the same logic as the UIElement, FrameworkElement and overlay (ContentControl and ItemsControl)
+ *     measureCoreLayout implementations. Any other element is an opaque node; its children are not stored, and it
+ *     is measured by calling {@link UIElement#measure(Rect)} (which is only possible on the dispatcher thread)
+ * </p>
+ */
+final class LayoutColumns {
+    static final byte KIND_OPAQUE = 0;      // any other element; measured by itself
+    static final byte KIND_PASSTHROUGH = 1; // UIElement; takes up all available space
+    static final byte KIND_FRAMEWORK = 2;   // FrameworkElement; aligned within the available space
+    static final byte KIND_OVERLAY = 3;     // ContentControl/ItemsControl; aligned, with overlapping children
+
+    private static final HashMap<Class<?>, Byte> KIND_CACHE = new HashMap<Class<?>, Byte>();
+
+    int count;
+    UIElement[] elements;
+
+    // structure
+    int[] parent;
+    int[] firstChild;
+    int[] nextSibling;
+    int[] subtreeEnd;
+
+    // layout inputs
+    byte[] kind;
+    boolean[] bypassPolicies;
+    byte[] horizontalAlignment;
+    byte[] verticalAlignment;
+    double[] width;
+    double[] height;
+    double[] minWidth;
+    double[] maxWidth;
+    double[] minHeight;
+    double[] maxHeight;
+
+    LayoutColumns(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.elements = new UIElement[capacity];
+        this.parent = new int[capacity];
+        this.firstChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.subtreeEnd = new int[capacity];
+        this.kind = new byte[capacity];
+        this.bypassPolicies = new boolean[capacity];
+        this.horizontalAlignment = new byte[capacity];
+        this.verticalAlignment = new byte[capacity];
+        this.width = new double[capacity];
+        this.height = new double[capacity];
+        this.minWidth = new double[capacity];
+        this.maxWidth = new double[capacity];
+        this.minHeight = new double[capacity];
+        this.maxHeight = new double[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.elements.length) {
+            return;
+        }
+
+        capacity = Math.max(capacity, this.elements.length * 2);
+        this.elements = Arrays.copyOf(this.elements, capacity);
+        this.parent = Arrays.copyOf(this.parent, capacity);
+        this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+        this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+        this.subtreeEnd = Arrays.copyOf(this.subtreeEnd, capacity);
+        this.kind = Arrays.copyOf(this.kind, capacity);
+        this.bypassPolicies = Arrays.copyOf(this.bypassPolicies, capacity);
+        this.horizontalAlignment = Arrays.copyOf(this.horizontalAlignment, capacity);
+        this.verticalAlignment = Arrays.copyOf(this.verticalAlignment, capacity);
+        this.width = Arrays.copyOf(this.width, capacity);
+        this.height = Arrays.copyOf(this.height, capacity);
+        this.minWidth = Arrays.copyOf(this.minWidth, capacity);
+        this.maxWidth = Arrays.copyOf(this.maxWidth, capacity);
+        this.minHeight = Arrays.copyOf(this.minHeight, capacity);
+        this.maxHeight = Arrays.copyOf(this.maxHeight, capacity);
+    }
+
+    void clear() {
+        Arrays.fill(this.elements, 0, this.count, null);
+        this.count = 0;
+    }
+
+    /**
+     * Appends the given element's subtree, in pre-order
+     * @param element The element to append
+     * @param parent  The id of the element's parent node, or -1 if it is the root
+     * @return The id of the element's node
+     */
+    int appendSubtree(UIElement element, int parent) {
+        int node = this.count++;
+        ensureCapacity(this.count);
+        this.elements[node] = element;
+        this.parent[node] = parent;
+        this.firstChild[node] = -1;
+        this.nextSibling[node] = -1;
+        this.kind[node] = getKind(element.getClass());
+        captureInputs(node);
+        if (this.kind[node] == KIND_OVERLAY) {
+            int previous = -1;
+            for (int i = 0, size = element.getVisualChildCount(); i < size; i++) {
+                int child = appendSubtree(element.getVisualChild(i), node);
+                if (previous == -1) {
+                    this.firstChild[node] = child;
+                }
+                else {
+                    this.nextSibling[previous] = child;
+                }
+
+                previous = child;
+            }
+        }
+
+        this.subtreeEnd[node] = this.count;
+        return node;
+    }
+
+    /**
+     * Appends the subtree of the given node of another set of columns, in pre-order. Subtrees without any changed
+     * nodes are copied as they are, and the subtrees of changed nodes are appended from their elements again
+     * @param from            The columns to copy from
+     * @param node            The node to copy
+     * @param parent          The id of the node's parent in these columns, or -1 if it is the root
+     * @param isChanged       Whether the children of each node of the given columns have changed
+     * @param containsChanged Whether each node of the given columns is, or is an ancestor of, a changed node
+     * @return The id of the node in these columns
+     */
+    int copySubtree(LayoutColumns from, int node, int parent, boolean[] isChanged, boolean[] containsChanged) {
+        if (isChanged[node]) {
+            return appendSubtree(from.elements[node], parent);
+        }
+
+        int id = this.count;
+        if (!containsChanged[node]) {
+            int length = from.subtreeEnd[node] - node;
+            copyRows(from, node, id, length);
+            int delta = id - node;
+            for (int i = id, end = id + length; i < end; i++) {
+                this.parent[i] += delta;
+                this.subtreeEnd[i] += delta;
+                if (this.firstChild[i] != -1) {
+                    this.firstChild[i] += delta;
+                }
+
+                if (this.nextSibling[i] != -1) {
+                    this.nextSibling[i] += delta;
+                }
+            }
+
+            this.parent[id] = parent;
+            this.nextSibling[id] = -1;
+            return id;
+        }
+
+        copyRows(from, node, id, 1);
+        this.parent[id] = parent;
+        this.firstChild[id] = -1;
+        this.nextSibling[id] = -1;
+        int previous = -1;
+        for (int child = from.firstChild[node]; child != -1; child = from.nextSibling[child]) {
+            int copy = copySubtree(from, child, id, isChanged, containsChanged);
+            if (previous == -1) {
+                this.firstChild[id] = copy;
+            }
+            else {
+                this.nextSibling[previous] = copy;
+            }
+
+            previous = copy;
+        }
+
+        this.subtreeEnd[id] = this.count;
+        return id;
+    }
+
+    /**
+     * Appends the given range of rows of another set of columns to these columns, as they are
+     */
+    private void copyRows(LayoutColumns from, int src, int dst, int length) {
+        this.count = dst + length;
+        ensureCapacity(this.count);
+        System.arraycopy(from.elements, src, this.elements, dst, length);
+        System.arraycopy(from.parent, src, this.parent, dst, length);
+        System.arraycopy(from.firstChild, src, this.firstChild, dst, length);
+        System.arraycopy(from.nextSibling, src, this.nextSibling, dst, length);
+        System.arraycopy(from.subtreeEnd, src, this.subtreeEnd, dst, length);
+        System.arraycopy(from.kind, src, this.kind, dst, length);
+        System.arraycopy(from.bypassPolicies, src, this.bypassPolicies, dst, length);
+        System.arraycopy(from.horizontalAlignment, src, this.horizontalAlignment, dst, length);
+        System.arraycopy(from.verticalAlignment, src, this.verticalAlignment, dst, length);
+        System.arraycopy(from.width, src, this.width, dst, length);
+        System.arraycopy(from.height, src, this.height, dst, length);
+        System.arraycopy(from.minWidth, src, this.minWidth, dst, length);
+        System.arraycopy(from.maxWidth, src, this.maxWidth, dst, length);
+        System.arraycopy(from.minHeight, src, this.minHeight, dst, length);
+        System.arraycopy(from.maxHeight, src, this.maxHeight, dst, length);
+    }
+
+    /**
+     * Reads the layout properties of the given node's element into the columns
+     */
+    void captureInputs(int node) {
+        UIElement element = this.elements[node];
+        if (element instanceof FrameworkElement) {
+            FrameworkElement fe = (FrameworkElement) element;
+            this.bypassPolicies[node] = fe.bypassMeasurementPolicies;
+            this.horizontalAlignment[node] = (byte) fe.<HorizontalAlignment>getValue(FrameworkElement.HORIZONTAL_ALIGNMENT).ordinal();
+            this.verticalAlignment[node] = (byte) fe.<VerticalAlignment>getValue(FrameworkElement.VERTICAL_ALIGNMENT).ordinal();
+            this.width[node] = fe.getWidth();
+            this.height[node] = fe.getHeight();
+            this.minWidth[node] = fe.getValue(FrameworkElement.MIN_WIDTH);
+            this.maxWidth[node] = fe.getValue(FrameworkElement.MAX_WIDTH);
+            this.minHeight[node] = fe.getValue(FrameworkElement.MIN_HEIGHT);
+            this.maxHeight[node] = fe.getValue(FrameworkElement.MAX_HEIGHT);
+        }
+    }
+
+    /**
+     * Returns whether the given node's subtree contains any opaque nodes
+     */
+    boolean containsOpaque(int root) {
+        for (int node = root, end = this.subtreeEnd[root]; node < end; node++) {
+            if (this.kind[node] == KIND_OPAQUE) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static byte getKind(Class<?> clazz) {
+        Byte kind = KIND_CACHE.get(clazz);
+        if (kind == null) {
+            KIND_CACHE.put(clazz, kind = resolveKind(clazz));
+        }
+
+        return kind;
+    }
+
+    private static byte resolveKind(Class<?> clazz) {
+        Class<?> measure, measureCore;
+        try {
+            Method method = clazz.getMethod("measure", Rect.class);
+            measure = method.getDeclaringClass();
+            measureCore = clazz.getMethod("measureCoreLayout", Rect.class).getDeclaringClass();
+        }
+        catch (NoSuchMethodException e) {
+            return KIND_OPAQUE;
+        }
+
+        if (measure != UIElement.class) {
+            return KIND_OPAQUE;
+        }
+        else if (measureCore == UIElement.class) {
+            return KIND_PASSTHROUGH;
+        }
+        else if (measureCore == FrameworkElement.class) {
+            return KIND_FRAMEWORK;
+        }
+        else if (measureCore == ContentControl.class) {
+            return KIND_OVERLAY;
+        }
+        else if (measureCore == ItemsControl.class) {
+            // panels arrange their children themselves
+            return getMeasureChildrenOwner(clazz) == ItemsControl.class ? KIND_OVERLAY : KIND_OPAQUE;
+        }
+        else {
+            return KIND_OPAQUE;
+        }
+    }
+
+    private static Class<?> getMeasureChildrenOwner(Class<?> clazz) {
+        for (Class<?> type = clazz; type != null; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod("measureChildren", List.class, Rect.class, Rect.class);
+                return type;
+            }
+            catch (NoSuchMethodException e) {
+                // not declared in this class
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Measures the subtree of the given node with the given available space, and writes the results into the output.
+     * This does not touch any elements unless the subtree contains opaque nodes
+     */
+    void solve(int root, double ax, double ay, double aw, double ah, Output out) {
+        out.setAvailable(root, ax, ay, aw, ah);
+        int node = root;
+        while (true) {
+            measureSelf(node, out);
+            int child = this.kind[node] == KIND_OVERLAY ? this.firstChild[node] : -1;
+            if (child != -1) {
+                out.setAvailable(child, out.x[node], out.y[node], out.w[node], out.h[node]);
+                node = child;
+                continue;
+            }
+
+            // walk back up, merging each finished node into its parent, until there is a sibling to measure
+            boolean hasNext = false;
+            while (node != root) {
+                int parent = this.parent[node];
+
+                // Rect.max; later siblings are measured against the parent's enlarged rect
+                out.x[parent] = Math.min(out.x[parent], out.x[node]);
+                out.y[parent] = Math.min(out.y[parent], out.y[node]);
+                out.w[parent] = Math.max(out.w[parent], out.w[node]);
+                out.h[parent] = Math.max(out.h[parent], out.h[node]);
+
+                int sibling = this.nextSibling[node];
+                if (sibling != -1) {
+                    out.setAvailable(sibling, out.x[parent], out.y[parent], out.w[parent], out.h[parent]);
+                    node = sibling;
+                    hasNext = true;
+                    break;
+                }
+
+                node = parent;
+            }
+
+            if (!hasNext) {
+                return;
+            }
+        }
+    }
+
+    private void measureSelf(int node, Output out) {
+        int a = node * 4;
+        double ax = out.available[a], ay = out.available[a + 1], aw = out.available[a + 2], ah = out.available[a + 3];
+        double x = ax, y = ay, w = aw, h = ah;
+        byte kind = this.kind[node];
+        if (kind == KIND_OPAQUE) {
+            Rect rect = this.elements[node].measure(new Rect(ax, ay, aw, ah));
+            x = rect.x;
+            y = rect.y;
+            w = rect.w;
+            h = rect.h;
+        }
+        else if (kind != KIND_PASSTHROUGH && !this.bypassPolicies[node]) {
+            double width = this.width[node], height = this.height[node];
+            switch (this.horizontalAlignment[node]) {
+                case 1: x = ax + (aw / 2) - (width / 2); w = width; break; // Center
+                case 2: x = ax + aw - width; w = width; break;             // Right
+                case 3: break;                                             // Stretch
+                default: w = width; break;                                 // Left
+            }
+
+            switch (this.verticalAlignment[node]) {
+                case 1: y = ay + (ah / 2) - (height / 2); h = height; break; // Center
+                case 2: y = ay + ah - height; h = height; break;             // Bottom
+                case 3: break;                                               // Stretch
+                default: h = height; break;                                  // Top
+            }
+
+            double minW = this.minWidth[node], minH = this.minHeight[node];
+            double maxW = Maths.clamp(this.maxWidth[node], minW, aw);
+            double maxH = Maths.clamp(this.maxHeight[node], minH, ah);
+            if (w < minW) {
+                w = minW;
+            }
+            else if (w > maxW) {
+                w = maxW;
+            }
+
+            if (h < minH) {
+                h = minH;
+            }
+            else if (h > maxH) {
+                h = maxH;
+            }
+        }
+
+        out.x[node] = x;
+        out.y[node] = y;
+        out.w[node] = w;
+        out.h[node] = h;
+    }
+
+    /**
+     * The measured rects (and the available space they were measured with) of the nodes in a {@link LayoutColumns}
+     */
+    static final class Output {
+        double[] available;
+        double[] x;
+        double[] y;
+        double[] w;
+        double[] h;
+
+        Output(int capacity) {
+            capacity = Math.max(capacity, 1);
+            this.available = new double[capacity * 4];
+            this.x = new double[capacity];
+            this.y = new double[capacity];
+            this.w = new double[capacity];
+            this.h = new double[capacity];
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > this.x.length) {
+                capacity = Math.max(capacity, this.x.length * 2);
+                this.available = Arrays.copyOf(this.available, capacity * 4);
+                this.x = Arrays.copyOf(this.x, capacity);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.w = Arrays.copyOf(this.w, capacity);
+                this.h = Arrays.copyOf(this.h, capacity);
+            }
+        }
+
+        void setAvailable(int node, double x, double y, double w, double h) {
+            int a = node * 4;
+            this.available[a] = x;
+            this.available[a + 1] = y;
+            this.available[a + 2] = w;
+            this.available[a + 3] = h;
+        }
+
+        Rect getAvailable(int node) {
+            int a = node * 4;
+            return new Rect(this.available[a], this.available[a + 1], this.available[a + 2], this.available[a + 3]);
+        }
+
+        Rect getRect(int node) {
+            return new Rect(this.x[node], this.y[node], this.w[node], this.h[node]);
+        }
+
+        /**
+         * Returns whether the given node's available space is the same as the given rect (which may be null)
+         */
+        boolean isAvailableCloseTo(int node, Rect rect) {
+            int a = node * 4;
+            return rect != null && Maths.areClose(this.available[a], rect.x) && Maths.areClose(this.available[a + 1], rect.y) &&
+                   Maths.areClose(this.available[a + 2], rect.w) && Maths.areClose(this.available[a + 3], rect.h);
+        }
+
+        /**
+         * Returns whether the given node's rect, once rounded like an applied layout, is the same as the given rect
+         */
+        boolean isLayoutCloseTo(int node, Rect rect) {
+            double x1 = this.x[node], y1 = this.y[node];
+            double x2 = x1 + this.w[node], y2 = y1 + this.h[node];
+            if (ContextLayoutManager.isLayoutRounding()) {
+                double scale = ContextLayoutManager.getLayoutScale();
+                x1 = Maths.roundToPixel(x1, scale);
+                y1 = Maths.roundToPixel(y1, scale);
+                x2 = Maths.roundToPixel(x2, scale);
+                y2 = Maths.roundToPixel(y2, scale);
+            }
+
+            return Maths.areClose(x1, rect.x) && Maths.areClose(y1, rect.y) && Maths.areClose(x2 - x1, rect.w) && Maths.areClose(y2 - y1, rect.h);
+        }
+    }
+}
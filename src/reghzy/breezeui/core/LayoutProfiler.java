@@ -0,0 +1,451 @@
+package reghzy.breezeui.core;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records what happened during each tick's layout, in order to find out why layout is slow
+ * <p>
+ *     Install a profiler with {@link ContextLayoutManager#setLayoutProfiler(LayoutProfiler)}. While installed, every call to
+ *     {@link UIElement#measure} that actually measures is timed, and every call to {@link ContextLayoutManager#updateLayout()}
+ *     produces a {@link Tick}, containing the roots that were measured (and therefore what triggered each pass), how many
+ *     times each element and each type of element was measured, and the total and self time of each element's subtree
+ * </p>
+ * <p>
+ *     When no profiler is installed, the only cost is reading a field per measure. Only measures made on the thread that
+ *     runs the layout manager are recorded; measures made by parallel or asynchronous layout on other threads are not
+ * </p>
+ */
+public final class LayoutProfiler {
+    private final int maxTicks;
+    private final ArrayDeque<Tick> ticks;
+    private long minTickNanos;
+    private long tickCount;
+    private Thread thread;
+
+    // the tick currently being recorded
+    private IdentityHashMap<UIElement, ElementRecord> elements;
+    private ArrayList<Pass> passes;
+    private Pass currentPass;
+    private boolean isExplicitPass;
+    private long tickStart;
+
+    // the elements currently being measured (the last one is the deepest)
+    private ElementRecord[] stack;
+    private long[] starts;
+    private long[] childNanos;
+    private int depth;
+
+    /**
+     * Creates a profiler that keeps the last 120 ticks
+     */
+    public LayoutProfiler() {
+        this(120);
+    }
+
+    /**
+     * @param maxTicks The number of ticks to keep; older ones are discarded
+     */
+    public LayoutProfiler(int maxTicks) {
+        if (maxTicks < 1) {
+            throw new IllegalArgumentException("Max ticks must be greater than 0: " + maxTicks);
+        }
+
+        this.maxTicks = maxTicks;
+        this.ticks = new ArrayDeque<Tick>();
+        this.elements = new IdentityHashMap<UIElement, ElementRecord>();
+        this.passes = new ArrayList<Pass>();
+        this.stack = new ElementRecord[32];
+        this.starts = new long[32];
+        this.childNanos = new long[32];
+    }
+
+    /**
+     * Sets the minimum amount of time a tick's layout must take in order for it to be kept, so that only
+     * slow ticks are kept (e.g. in production builds). Ticks in which nothing was laid out are never kept
+     * @param nanos The minimum time in nanoseconds, or 0 to keep every tick
+     */
+    public synchronized void setMinTickNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Time cannot be negative: " + nanos);
+        }
+
+        this.minTickNanos = nanos;
+    }
+
+    public synchronized long getMinTickNanos() {
+        return this.minTickNanos;
+    }
+
+    /**
+     * Returns the kept ticks, oldest first
+     */
+    public synchronized List<Tick> getTicks() {
+        return new ArrayList<Tick>(this.ticks);
+    }
+
+    /**
+     * Returns the most recently kept tick, or null if no ticks have been kept
+     */
+    public synchronized Tick getLastTick() {
+        return this.ticks.peekLast();
+    }
+
+    /**
+     * Discards every kept tick
+     */
+    public synchronized void clear() {
+        this.ticks.clear();
+    }
+
+    /**
+     * Prints a report of every kept tick to the given stream
+     */
+    public void dump(PrintStream out) {
+        for (Tick tick : getTicks()) {
+            out.print(tick.createReport());
+        }
+    }
+
+    void beginTick() {
+        this.thread = Thread.currentThread();
+        this.tickStart = System.nanoTime();
+    }
+
+    void endTick() {
+        long nanos = System.nanoTime() - this.tickStart;
+        long index = this.tickCount++;
+        if (this.elements.isEmpty() && this.passes.isEmpty()) {
+            return;
+        }
+
+        Tick tick = new Tick(index, nanos, this.passes, new ArrayList<ElementRecord>(this.elements.values()));
+        this.elements = new IdentityHashMap<UIElement, ElementRecord>();
+        this.passes = new ArrayList<Pass>();
+        synchronized (this) {
+            if (nanos < this.minTickNanos) {
+                return;
+            }
+
+            if (this.ticks.size() == this.maxTicks) {
+                this.ticks.removeFirst();
+            }
+
+            this.ticks.addLast(tick);
+        }
+    }
+
+    /**
+     * Begins a pass that lays out the given dirty root, which may or may not involve measuring it
+     */
+    void beginPass(UIElement root) {
+        if (this.thread == Thread.currentThread() && this.depth == 0) {
+            this.currentPass = new Pass(root);
+            this.isExplicitPass = true;
+        }
+    }
+
+    void endPass() {
+        if (this.isExplicitPass && this.depth == 0) {
+            finishPass();
+            this.isExplicitPass = false;
+        }
+    }
+
+    /**
+     * Called before an element is measured
+     * @return True if the measure is being recorded, in which case {@link #endMeasure()} must be called afterwards
+     */
+    boolean beginMeasure(UIElement element) {
+        if (this.thread != Thread.currentThread()) {
+            return false;
+        }
+
+        if (this.currentPass == null) {
+            // measured outside of a pass (e.g. by the window being resized), so it is its own pass
+            this.currentPass = new Pass(element);
+        }
+
+        ElementRecord record = this.elements.get(element);
+        if (record == null) {
+            this.elements.put(element, record = new ElementRecord(element));
+        }
+
+        record.count++;
+        record.depth++;
+        this.currentPass.measureCount++;
+        int index = this.depth++;
+        if (index == this.stack.length) {
+            this.stack = Arrays.copyOf(this.stack, index << 1);
+            this.starts = Arrays.copyOf(this.starts, index << 1);
+            this.childNanos = Arrays.copyOf(this.childNanos, index << 1);
+        }
+
+        this.stack[index] = record;
+        this.childNanos[index] = 0L;
+        this.starts[index] = System.nanoTime();
+        return true;
+    }
+
+    void endMeasure() {
+        int index = --this.depth;
+        long total = System.nanoTime() - this.starts[index];
+        ElementRecord record = this.stack[index];
+        this.stack[index] = null;
+        if (--record.depth == 0) {
+            // measured by itself, rather than as part of another measure of itself
+            record.totalNanos += total;
+        }
+
+        record.selfNanos += total - this.childNanos[index];
+        if (index > 0) {
+            this.childNanos[index - 1] += total;
+        }
+        else if (!this.isExplicitPass) {
+            finishPass();
+        }
+    }
+
+    private void finishPass() {
+        Pass pass = this.currentPass;
+        if (pass != null) {
+            pass.nanos = System.nanoTime() - pass.start;
+            this.passes.add(pass);
+            this.currentPass = null;
+        }
+    }
+
+    /**
+     * The layout work done in a single call to {@link ContextLayoutManager#updateLayout()}, along with
+     * any measures made since the previous call (e.g. by the window being resized)
+     */
+    public static final class Tick {
+        private final long index;
+        private final long nanos;
+        private final List<Pass> passes;
+        private final List<ElementRecord> elements;
+
+        private Tick(long index, long nanos, List<Pass> passes, List<ElementRecord> elements) {
+            this.index = index;
+            this.nanos = nanos;
+            this.passes = Collections.unmodifiableList(passes);
+            this.elements = Collections.unmodifiableList(elements);
+        }
+
+        /**
+         * Returns the number of ticks that were profiled before this one
+         */
+        public long getIndex() {
+            return this.index;
+        }
+
+        /**
+         * Returns the time spent in {@link ContextLayoutManager#updateLayout()}
+         */
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        /**
+         * Returns the passes, in the order they were made. Each pass lays out a single root, whose layout was invalidated
+         */
+        public List<Pass> getPasses() {
+            return this.passes;
+        }
+
+        /**
+         * Returns every element that was measured
+         */
+        public List<ElementRecord> getElements() {
+            return this.elements;
+        }
+
+        /**
+         * Returns the total number of measures
+         */
+        public int getMeasureCount() {
+            int count = 0;
+            for (ElementRecord record : this.elements) {
+                count += record.count;
+            }
+
+            return count;
+        }
+
+        /**
+         * Returns the number of times each type of element was measured, most measured first
+         */
+        public Map<Class<?>, Integer> getMeasureCountsByType() {
+            Map<Class<?>, Integer> map = new IdentityHashMap<Class<?>, Integer>();
+            for (ElementRecord record : this.elements) {
+                map.merge(record.element.getClass(), record.count, Integer::sum);
+            }
+
+            ArrayList<Map.Entry<Class<?>, Integer>> entries = new ArrayList<Map.Entry<Class<?>, Integer>>(map.entrySet());
+            entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+            LinkedHashMap<Class<?>, Integer> sorted = new LinkedHashMap<Class<?>, Integer>();
+            for (Map.Entry<Class<?>, Integer> entry : entries) {
+                sorted.put(entry.getKey(), entry.getValue());
+            }
+
+            return sorted;
+        }
+
+        /**
+         * Returns the elements that were measured more than once, most measured (and then slowest) first
+         */
+        public List<ElementRecord> getRemeasuredElements() {
+            ArrayList<ElementRecord> list = new ArrayList<ElementRecord>();
+            for (ElementRecord record : this.elements) {
+                if (record.count > 1) {
+                    list.add(record);
+                }
+            }
+
+            list.sort((a, b) -> a.count != b.count ? Integer.compare(b.count, a.count) : Long.compare(b.totalNanos, a.totalNanos));
+            return list;
+        }
+
+        /**
+         * Returns the given number of elements that spent the most time measuring themselves (excluding their children)
+         */
+        public List<ElementRecord> getSlowestElements(int count) {
+            ArrayList<ElementRecord> list = new ArrayList<ElementRecord>(this.elements);
+            list.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+            return list.size() > count ? new ArrayList<ElementRecord>(list.subList(0, count)) : list;
+        }
+
+        /**
+         * Creates a human readable report of this tick
+         */
+        public String createReport() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Layout tick ").append(this.index).append(": ").append(toMillis(this.nanos)).append(" ms, ");
+            sb.append(this.passes.size()).append(" pass(es), ").append(getMeasureCount()).append(" measure(s) of ").append(this.elements.size()).append(" element(s)\n");
+            sb.append("  Passes:\n");
+            for (Pass pass : this.passes) {
+                sb.append("    ").append(pass.root).append(": ").append(toMillis(pass.nanos)).append(" ms, ").append(pass.measureCount).append(" measure(s)\n");
+            }
+
+            sb.append("  Measures by type:\n");
+            for (Map.Entry<Class<?>, Integer> entry : getMeasureCountsByType().entrySet()) {
+                sb.append("    ").append(entry.getKey().getSimpleName()).append(": ").append(entry.getValue()).append('\n');
+            }
+
+            List<ElementRecord> remeasured = getRemeasuredElements();
+            if (!remeasured.isEmpty()) {
+                sb.append("  Measured more than once:\n");
+                for (int i = 0, size = Math.min(remeasured.size(), 20); i < size; i++) {
+                    sb.append("    ").append(remeasured.get(i)).append('\n');
+                }
+
+                if (remeasured.size() > 20) {
+                    sb.append("    ... and ").append(remeasured.size() - 20).append(" more\n");
+                }
+            }
+
+            sb.append("  Slowest (self time):\n");
+            for (ElementRecord record : getSlowestElements(10)) {
+                sb.append("    ").append(record).append('\n');
+            }
+
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return "Tick[" + this.index + ", " + toMillis(this.nanos) + " ms, " + this.passes.size() + " passes, " + getMeasureCount() + " measures]";
+        }
+    }
+
+    /**
+     * The layout of a single dirty root, and all of the elements measured because of it
+     */
+    public static final class Pass {
+        private final UIElement root;
+        private final long start;
+        private long nanos;
+        private int measureCount;
+
+        private Pass(UIElement root) {
+            this.root = root;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Returns the element whose invalidated layout caused this pass
+         */
+        public UIElement getRoot() {
+            return this.root;
+        }
+
+        public long getNanos() {
+            return this.nanos;
+        }
+
+        public int getMeasureCount() {
+            return this.measureCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Pass[" + this.root + ", " + toMillis(this.nanos) + " ms, " + this.measureCount + " measures]";
+        }
+    }
+
+    /**
+     * The measures of a single element during a tick
+     */
+    public static final class ElementRecord {
+        private final UIElement element;
+        private int count;
+        private int depth;
+        private long totalNanos;
+        private long selfNanos;
+
+        private ElementRecord(UIElement element) {
+            this.element = element;
+        }
+
+        public UIElement getElement() {
+            return this.element;
+        }
+
+        /**
+         * Returns the number of times the element was measured
+         */
+        public int getCount() {
+            return this.count;
+        }
+
+        /**
+         * Returns the time spent measuring the element's subtree
+         */
+        public long getTotalNanos() {
+            return this.totalNanos;
+        }
+
+        /**
+         * Returns the time spent measuring the element, excluding the time spent measuring its children
+         */
+        public long getSelfNanos() {
+            return this.selfNanos;
+        }
+
+        @Override
+        public String toString() {
+            return this.element + " x" + this.count + ", total " + toMillis(this.totalNanos) + " ms, self " + toMillis(this.selfNanos) + " ms";
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1000000d);
+    }
+}
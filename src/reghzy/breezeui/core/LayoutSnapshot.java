@@ -0,0 +1,128 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.Rect;
+
+/**
+ * An immutable copy of the layout-relevant state of a subtree, which can be measured on any thread
+ * <p>
+ *     The snapshot is captured on the dispatcher thread ({@link #capture(UIElement, Rect)}), measured on a worker
+ *     thread ({@link #solve()}), and then published back to the elements on the dispatcher thread ({@link #publish(Result)}).
+ *     Publishing is all or nothing; if any element's layout version has changed since the snapshot was captured,
+ *     the result is stale and is discarded
+ * </p>
+ * <p>
+ *     Only elements whose measure logic is fully described by the captured state can be snapshotted, which are
+ *     elements that do not override {@link UIElement#measure(Rect)}, and use the measureCoreLayout of either
+ *     {@link UIElement}, {@link FrameworkElement}, {@link ContentControl} or {@link ItemsControl}
+ * </p>
+ */
+public final class LayoutSnapshot {
+    private final Rect available;
+    private final LayoutColumns columns;
+    private final int[] versions;
+
+    private LayoutSnapshot(LayoutColumns columns, Rect available) {
+        this.available = new Rect(available);
+        this.columns = columns;
+        this.versions = new int[columns.count];
+        for (int i = 0; i < columns.count; i++) {
+            this.versions[i] = columns.elements[i].getLayoutVersion();
+        }
+    }
+
+    /**
+     * Captures the layout state of the given element's subtree. This must be called on the dispatcher thread
+     * @param root      The root of the subtree
+     * @param available The space available to the root
+     * @return The snapshot, or null if an element in the subtree cannot be snapshotted
+     */
+    public static LayoutSnapshot capture(UIElement root, Rect available) {
+        if (LayoutColumns.getKind(root.getClass()) == LayoutColumns.KIND_OPAQUE) {
+            return null;
+        }
+
+        LayoutColumns columns = new LayoutColumns(64);
+        columns.appendSubtree(root, -1);
+        if (columns.containsOpaque(0)) {
+            return null;
+        }
+
+        return new LayoutSnapshot(columns, available);
+    }
+
+    /**
+     * Returns the number of elements in this snapshot
+     */
+    public int getCount() {
+        return this.columns.count;
+    }
+
+    /**
+     * Returns the root element of this snapshot
+     */
+    public UIElement getRoot() {
+        return this.columns.elements[0];
+    }
+
+    /**
+     * Returns the element at the given pre-order index
+     */
+    public UIElement getElement(int index) {
+        return this.columns.elements[index];
+    }
+
+    /**
+     * Measures every element in this snapshot. This does not touch any elements, so it can be called on any thread
+     */
+    public Result solve() {
+        LayoutColumns.Output output = new LayoutColumns.Output(this.columns.count);
+        this.columns.solve(0, this.available.x, this.available.y, this.available.w, this.available.h, output);
+        return new Result(output);
+    }
+
+    /**
+     * Returns whether every element's layout version is still the same as when this snapshot was captured
+     */
+    public boolean isCurrent() {
+        for (int i = 0; i < this.columns.count; i++) {
+            if (this.columns.elements[i].getLayoutVersion() != this.versions[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Applies the result to the elements, if none of them have changed since this snapshot was captured.
+     * This must be called on the dispatcher thread
+     * @return True if the result was applied, or false if it was stale and discarded
+     */
+    public boolean publish(Result result) {
+        if (!isCurrent()) {
+            return false;
+        }
+
+        LayoutColumns.Output output = result.output;
+        for (int i = 0; i < this.columns.count; i++) {
+            this.columns.elements[i].applyLayout(output.getAvailable(i), output.getRect(i));
+        }
+
+        return true;
+    }
+
+    /**
+     * The measured rects of every element in a snapshot, indexed the same as the snapshot
+     */
+    public static final class Result {
+        private final LayoutColumns.Output output;
+
+        private Result(LayoutColumns.Output output) {
+            this.output = output;
+        }
+
+        public Rect getRect(int index) {
+            return this.output.getRect(index);
+        }
+    }
+}
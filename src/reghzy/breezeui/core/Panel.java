@@ -0,0 +1,144 @@
+package reghzy.breezeui.core;
+
+import org.joml.Vector2d;
+import reghzy.breezeui.core.utils.HorizontalAlignment;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Maths;
+import reghzy.breezeui.core.utils.MinMax;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.VerticalAlignment;
+
+import java.util.List;
+
+/**
+ * A base class for items controls that arrange their children into their own slots, instead of overlapping them
+ * <p>
+ *     A child is only measured again when its layout is dirty or the size of its slot has changed; if only the
+ *     position of its slot changed, it is translated instead. When a child's layout is invalidated, the panel
+ *     re-arranges its children without invalidating every one of them (or does nothing, if the axes of the child's layout
+ *     that changed cannot affect where the children are arranged; see {@link #getArrangeAxes(UIElement, int)})
+ * </p>
+ * <p>
+ *     If the panel has no width or height (and is not stretched) in an axis, it sizes itself to its children in that axis
+ * </p>
+ */
+public abstract class Panel extends ItemsControl {
+    public Panel() {
+
+    }
+
+    @Override
+    protected Rect measureChildren(List<UIElement> children, Rect rect, Rect layout) {
+        boolean autoW = isSizedToChildren(true);
+        boolean autoH = isSizedToChildren(false);
+
+        // auto sized axes use all of the available space to arrange the children in, and are then shrunk to fit them
+        Rect area = new Rect(autoW ? rect.x : layout.x, autoH ? rect.y : layout.y, autoW ? rect.w : layout.w, autoH ? rect.h : layout.h);
+        Vector2d size = arrangeChildren(children, area);
+        if (!autoW && !autoH) {
+            return layout;
+        }
+
+        MinMax bound = new MinMax(this, rect);
+        double w = autoW ? Maths.clamp(size.x, bound.minW, bound.maxW) : layout.w;
+        double h = autoH ? Maths.clamp(size.y, bound.minH, bound.maxH) : layout.h;
+        Rect aligned = getAlignmentLayout(rect, w, h);
+        Rect result = new Rect(autoW ? aligned.x : layout.x, autoH ? aligned.y : layout.y, w, h);
+        double dx = result.x - area.x;
+        double dy = result.y - area.y;
+        if (dx != 0d || dy != 0d) {
+            for (UIElement child : children) {
+                child.translateLayout(dx, dy);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether this panel sizes itself to its children in the given axis, because it has no explicit size and is not stretched
+     */
+    protected boolean isSizedToChildren(boolean horizontal) {
+        if (this.bypassMeasurementPolicies) {
+            return false;
+        }
+        else if (horizontal) {
+            return Double.isNaN(getWidth()) && getValue(HORIZONTAL_ALIGNMENT) != HorizontalAlignment.Stretch;
+        }
+        else {
+            return Double.isNaN(getHeight()) && getValue(VERTICAL_ALIGNMENT) != VerticalAlignment.Stretch;
+        }
+    }
+
+    /**
+     * Arranges the children within the given area, using {@link #measureChild(UIElement, Rect)}
+     * @param children The children to arrange
+     * @param area     The area to arrange the children in
+     * @return The size of the area the children actually take up
+     */
+    protected abstract Vector2d arrangeChildren(List<UIElement> children, Rect area);
+
+    /**
+     * Returns the size the given child explicitly wants in the given axis, or NaN if it does not have an explicit size
+     */
+    protected static double getExplicitSize(UIElement child, boolean horizontal) {
+        if (child instanceof FrameworkElement) {
+            FrameworkElement element = (FrameworkElement) child;
+            double size = horizontal ? element.getWidth() : element.getHeight();
+            if (!Maths.isInfOrNaN(size)) {
+                double min = element.getValue(horizontal ? MIN_WIDTH : MIN_HEIGHT);
+                double max = element.getValue(horizontal ? MAX_WIDTH : MAX_HEIGHT);
+                return Maths.clamp(size, min, max);
+            }
+        }
+
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the distance between the given start and end positions, or 0 if it is negative or NaN
+     */
+    protected static double getExtent(double start, double end) {
+        double extent = end - start;
+        return extent > 0d ? extent : 0d;
+    }
+
+    @Override
+    protected boolean invalidatesChildrenLayout() {
+        // children are measured again if their slot changes size, and translated if it moves
+        return false;
+    }
+
+    @Override
+    protected void onChildLayoutInvalidated(UIElement child, int axes) {
+        super.onChildLayoutInvalidated(child, axes);
+        int arrangeAxes = getArrangeAxes(child, axes);
+        if (arrangeAxes != LayoutAxes.NONE) {
+            invalidateLayoutForChildren(arrangeAxes);
+        }
+    }
+
+    @Override
+    protected int getAffectedAxes(int axes) {
+        // children are only measured again in an axis if their slot changes, but that may change their size in
+        // the other axis, which only affects this panel if it is sized to its children in that axis
+        if ((axes & LayoutAxes.HORIZONTAL) != 0 && isSizedToChildren(false)) {
+            axes |= LayoutAxes.VERTICAL;
+        }
+
+        if ((axes & LayoutAxes.VERTICAL) != 0 && isSizedToChildren(true)) {
+            axes |= LayoutAxes.HORIZONTAL;
+        }
+
+        return axes;
+    }
+
+    /**
+     * Returns the axes of this panel's layout that are affected by the given axes of a child's layout changing, or
+     * {@link LayoutAxes#NONE} if the children do not need to be arranged again (in which case the child is measured
+     * by itself, in the slot it was last given). By default, any change to a child affects both axes
+     */
+    protected int getArrangeAxes(UIElement child, int axes) {
+        return LayoutAxes.BOTH;
+    }
+}
@@ -0,0 +1,164 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures sibling subtrees in parallel, using the pool set by {@link ContextLayoutManager#setParallelLayout(ForkJoinPool, int)}
+ * <p>
+ *     Siblings do not depend on each other while they are being measured, so each sibling's subtree can be
+ *     measured on its own thread, as long as the parent combines the results once they have all finished
+ * </p>
+ * <p>
+ *     Only the siblings that have to be measured (see {@link UIElement#isMeasureNeeded(Rect)}) are counted and
+ *     handed to the pool; the others are only translated to their slot, on the calling thread
+ * </p>
+ * <p>
+ *     Overlapping siblings are measured against the parent's layout enlarged by the siblings before them, which is not
+ *     known until they have been measured. Every sibling is measured against the same layout, so the results after
+ *     a sibling that enlarges it are measured again (see {@link ItemsControl}), which is pure overhead when many do
+ * </p>
+ */
+final class ParallelMeasure {
+    /**
+     * The most parallel passes made over the same children, after which the rest are measured in order
+     */
+    static final int MAX_PASSES = 3;
+    private ParallelMeasure() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns whether the given children should be measured in parallel; parallel layout must be enabled, and
+     * the children that have to be measured in the given slot must contain enough elements to be worth splitting up
+     */
+    static boolean canMeasureInParallel(List<UIElement> children, Rect available) {
+        if (ContextLayoutManager.getParallelLayoutPool() == null || children.size() < 2) {
+            return false;
+        }
+
+        int threshold = ContextLayoutManager.getParallelLayoutThreshold();
+        int total = 0;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            UIElement child = children.get(i);
+            if (!child.isMeasureNeeded(available)) {
+                continue;
+            }
+
+            total += countElements(child, threshold * 2 - total);
+            if (total >= threshold * 2) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Measures each child against the given available space using the parent's {@link UIElement#measureChild(UIElement, Rect)},
+     * and returns the results (in the same order as the children)
+     */
+    static Rect[] measureAll(UIElement parent, List<UIElement> children, Rect available) {
+        ForkJoinPool pool = ContextLayoutManager.getParallelLayoutPool();
+        int threshold = ContextLayoutManager.getParallelLayoutThreshold();
+        Rect[] results = new Rect[children.size()];
+
+        // children that do not have to be measured are only translated, which is not worth a task
+        int[] measured = new int[children.size()];
+        int measuredCount = 0;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            UIElement child = children.get(i);
+            if (child.isMeasureNeeded(available)) {
+                measured[measuredCount++] = i;
+            }
+            else {
+                results[i] = parent.measureChild(child, new Rect(available));
+            }
+        }
+
+        // partition the remaining children into groups of at least [threshold] elements,
+        // so that large subtrees get their own task and small ones are batched
+        ArrayList<MeasureTask> tasks = new ArrayList<MeasureTask>();
+        int start = 0, count = 0;
+        for (int i = 0; i < measuredCount; i++) {
+            count += countElements(children.get(measured[i]), threshold - count);
+            if (count >= threshold) {
+                tasks.add(new MeasureTask(parent, children, available, results, measured, start, i + 1));
+                start = i + 1;
+                count = 0;
+            }
+        }
+
+        if (start < measuredCount) {
+            tasks.add(new MeasureTask(parent, children, available, results, measured, start, measuredCount));
+        }
+
+        Thread thread = Thread.currentThread();
+        if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+            // nested parallel measure; just fork onto the current pool
+            ForkJoinTask.invokeAll(tasks);
+        }
+        else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+
+        return results;
+    }
+
+    /**
+     * Counts the elements in the given element's subtree (including itself), stopping once the limit is reached
+     */
+    static int countElements(UIElement element, int limit) {
+        int count = 1;
+        for (int i = 0, size = element.getVisualChildCount(); i < size && count < limit; i++) {
+            count += countElements(element.getVisualChild(i), limit - count);
+        }
+
+        return count;
+    }
+
+    private static final class MeasureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final UIElement parent;
+        private final List<UIElement> children;
+        private final Rect available;
+        private final Rect[] results;
+        private final int[] indices;
+        private final int start;
+        private final int end;
+
+        /**
+         * @param indices The indices of the children to measure, of which this task measures [start, end)
+         */
+        private MeasureTask(UIElement parent, List<UIElement> children, Rect available, Rect[] results, int[] indices, int start, int end) {
+            this.parent = parent;
+            this.children = children;
+            this.available = available;
+            this.results = results;
+            this.indices = indices;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = this.start; i < this.end; i++) {
+                int index = this.indices[i];
+                // each task gets its own copy, in case a child mutates the rect it is given
+                this.results[index] = this.parent.measureChild(this.children.get(index), new Rect(this.available));
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.utils.GridLength;
+
+/**
+ * Defines the height of a row in a {@link Grid}
+ */
+public class RowDefinition {
+    private final GridLength height;
+
+    public RowDefinition() {
+        this(GridLength.STAR);
+    }
+
+    public RowDefinition(GridLength height) {
+        if (height == null) {
+            throw new IllegalArgumentException("Height cannot be null");
+        }
+
+        this.height = height;
+    }
+
+    public GridLength getHeight() {
+        return this.height;
+    }
+}
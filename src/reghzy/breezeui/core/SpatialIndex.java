@@ -0,0 +1,847 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.Application;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A uniform grid of the layout bounds of every valid element, used to find the elements at a point or within a rect
+ * without walking the visual tree
+ * <p>
+ *     Elements are re-indexed when their layout rect changes (or they are validated/invalidated). Since elements
+ *     may be measured on other threads, they are only marked as pending, and the index is brought up to date
+ *     before the next query; queries themselves must be made on the dispatcher thread
+ * </p>
+ * <p>
+ *     Each element is put into every cell its bounds overlap, so a query only has to look at the cells it overlaps.
+ *     Elements that overlap too many cells (e.g. windows and backgrounds) are kept in a separate list that every
+ *     query checks, rather than being put into hundreds of cells
+ * </p>
+ * <p>
+ *     Cells keep a copy of their elements' bounds next to each other, so that a query can test a whole cell
+ *     without touching the elements (which are scattered around the heap) that it does not hit
+ * </p>
+ * <p>
+ *     The order elements are drawn in (by depth, and then in the order they appear in their parents) is kept as a linked
+ *     list of the elements at each depth, in which every element has a label that increases in draw order. An element is
+ *     linked in next to the closest indexed element before or after it in its tree when it is added (or moved within the
+ *     visual tree), and unlinked when it is removed, so the order never has to be rebuilt. Cells keep their elements in
+ *     draw order too, so drawing an area merges the cells it overlaps rather than sorting its elements
+ *     (see {@link #queryRectInDrawOrder(Rect, List)})
+ * </p>
+ */
+public class SpatialIndex {
+    public static final double DEFAULT_CELL_SIZE = 32d;
+    private static final int MAX_CELLS_PER_ELEMENT = 64;
+
+    private static final byte NOT_INDEXED = 0;
+    private static final byte IN_CELLS = 1;
+    private static final byte OVERSIZED = 2;
+
+    // labels are in [0, LABEL_SPACE), and elements added to the start or end of a depth are LABEL_STEP apart
+    private static final long LABEL_SPACE = 1L << 62;
+    private static final long LABEL_STEP = 1L << 24;
+
+    private final double cellSize;
+    private final Set<UIElement> pending;
+    private final Cell oversized;
+
+    // an open addressing (linear probing) table of the non-empty cells
+    private Cell[] table;
+    private int cellCount;
+
+    private int count;
+    private int queryStamp;
+    private int version;
+
+    // the indexed elements at each depth, in the order they are drawn in
+    private final ArrayList<Level> levels;
+
+    // reused to merge the cells that a query overlaps, as a heap ordered by the next element in each cell
+    private Cell[] mergeHeap;
+
+    public SpatialIndex() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    public SpatialIndex(double cellSize) {
+        if (!(cellSize > 0d)) {
+            throw new IllegalArgumentException("Cell size must be greater than 0: " + cellSize);
+        }
+
+        this.cellSize = cellSize;
+        this.pending = ConcurrentHashMap.newKeySet();
+        this.oversized = new Cell(0L);
+        this.table = new Cell[64];
+        this.levels = new ArrayList<Level>();
+        this.mergeHeap = new Cell[16];
+    }
+
+    /**
+     * Marks the given element's bounds as changed in the current application's index (if there is one)
+     */
+    static void onBoundsChanged(UIElement element) {
+        Application app = Application.current();
+        if (app != null) {
+            app.getSpatialIndex().invalidate(element);
+        }
+    }
+
+    /**
+     * Marks the given element and all of its visual children as needing to be re-indexed in the current application's
+     * index (if there is one), because their depth or position in the visual tree has changed, which changes where
+     * they are in the draw order
+     */
+    static void onTreePositionChanged(UIElement element) {
+        Application app = Application.current();
+        if (app != null) {
+            app.getSpatialIndex().invalidateTree(element);
+        }
+    }
+
+    private void invalidateTree(UIElement element) {
+        element.isDrawOrderChanged = true;
+        this.pending.add(element);
+        for (int i = 0, count = element.getVisualChildCount(); i < count; i++) {
+            invalidateTree(element.getVisualChild(i));
+        }
+    }
+
+    /**
+     * Marks the given element to be re-indexed before the next query. This can be called from any thread
+     */
+    public void invalidate(UIElement element) {
+        this.pending.add(element);
+    }
+
+    /**
+     * Re-indexes every element that has been invalidated since the last update
+     */
+    public void update() {
+        if (this.pending.isEmpty()) {
+            return; // iterating scans the whole table, which stays big after a large update
+        }
+
+        this.version++;
+        Iterator<UIElement> iterator = this.pending.iterator();
+        while (iterator.hasNext()) {
+            UIElement element = iterator.next();
+            iterator.remove();
+            reindex(element);
+        }
+    }
+
+    /**
+     * Returns the number of elements in this index
+     */
+    public int size() {
+        update();
+        return this.count;
+    }
+
+    /**
+     * Returns a number that changes whenever elements are re-indexed, which can be used to
+     * check whether the results of a previous query may have changed
+     */
+    public int getVersion() {
+        update();
+        return this.version;
+    }
+
+    public double getCellSize() {
+        return this.cellSize;
+    }
+
+    /**
+     * Finds every element whose bounds contain the given point
+     * @param results The collection to add the elements to
+     */
+    public void queryPoint(double x, double y, Collection<UIElement> results) {
+        update();
+        Cell cell = getCell(getKey(toCell(x), toCell(y)));
+        if (cell != null) {
+            cell.addContaining(x, y, results);
+        }
+
+        this.oversized.addContaining(x, y, results);
+    }
+
+    /**
+     * Finds the topmost element whose bounds contain the given point, without allocating anything
+     * <p>
+     *     Elements are drawn in order of their depth in the visual tree, so the deepest element is the topmost one
+     *     (the depth is stored when an element is indexed, and elements are re-indexed when they are moved in the tree).
+     *     Elements at the same depth are drawn in the order they appear in their parents. Cells keep their elements in
+     *     draw order, so only the last element in a cell that contains the point has to be compared
+     * </p>
+     * @return The topmost element at the point, or null if there are no elements there
+     */
+    public UIElement hitTest(double x, double y) {
+        update();
+        Cell cell = getCell(getKey(toCell(x), toCell(y)));
+        UIElement top = cell != null ? cell.hitTest(x, y, null) : null;
+        return this.oversized.hitTest(x, y, top);
+    }
+
+    /**
+     * Finds every element whose bounds intersect the given rect
+     * @param results The collection to add the elements to
+     */
+    public void queryRect(Rect rect, Collection<UIElement> results) {
+        update();
+        int stamp = ++this.queryStamp;
+        int x1 = toCell(rect.x), y1 = toCell(rect.y);
+        int x2 = toCell(rect.getX2()), y2 = toCell(rect.getY2());
+        if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > this.cellCount) {
+            // the rect covers more cells than there are populated cells
+            for (Cell cell : this.table) {
+                if (cell != null) {
+                    cell.addIntersecting(rect, stamp, results);
+                }
+            }
+        }
+        else {
+            for (int cx = x1; cx <= x2; cx++) {
+                for (int cy = y1; cy <= y2; cy++) {
+                    Cell cell = getCell(getKey(cx, cy));
+                    if (cell != null) {
+                        cell.addIntersecting(rect, stamp, results);
+                    }
+                }
+            }
+        }
+
+        this.oversized.addIntersecting(rect, stamp, results);
+    }
+
+    /**
+     * Finds every element whose bounds intersect the given rect, and adds them to the given list in the order they are
+     * drawn in (the same order as {@link #compareDrawOrder(UIElement, UIElement)})
+     * <p>
+     *     If the rect covers more cells than are populated (e.g. the whole window), the elements at each depth are scanned
+     *     from first to last. Otherwise, the cells it overlaps (which are each in draw order) are merged
+     * </p>
+     */
+    public void queryRectInDrawOrder(Rect rect, List<UIElement> results) {
+        update();
+        int x1 = toCell(rect.x), y1 = toCell(rect.y);
+        int x2 = toCell(rect.getX2()), y2 = toCell(rect.getY2());
+        if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > this.cellCount) {
+            for (int depth = 0, count = this.levels.size(); depth < count; depth++) {
+                for (UIElement element = this.levels.get(depth).first; element != null; element = element.drawNext) {
+                    if (element.layoutRect.intersects(rect)) {
+                        results.add(element);
+                    }
+                }
+            }
+
+            return;
+        }
+
+        // each cell's position in the merge is the next of its elements that intersects the rect
+        int size = 0;
+        for (int cx = x1; cx <= x2; cx++) {
+            for (int cy = y1; cy <= y2; cy++) {
+                Cell cell = getCell(getKey(cx, cy));
+                if (cell != null) {
+                    size = addToMerge(cell, rect, size);
+                }
+            }
+        }
+
+        size = addToMerge(this.oversized, rect, size);
+
+        // repeatedly take the next element of the cell at the top of the heap. Elements in more than one cell are
+        // taken from the first of them, and skipped in the others
+        Cell[] heap = this.mergeHeap;
+        for (int i = (size >> 1) - 1; i >= 0; i--) {
+            siftDown(heap, i, size);
+        }
+
+        int stamp = ++this.queryStamp;
+        while (size > 0) {
+            Cell cell = heap[0];
+            UIElement element = cell.elements[cell.mergeIndex];
+            if (element.spatialQueryStamp != stamp) {
+                element.spatialQueryStamp = stamp;
+                results.add(element);
+            }
+
+            cell.mergeIndex = cell.nextIntersecting(cell.mergeIndex + 1, rect);
+            if (cell.mergeIndex == cell.size) {
+                heap[0] = heap[--size];
+                heap[size] = null;
+            }
+
+            siftDown(heap, 0, size);
+        }
+    }
+
+    private int addToMerge(Cell cell, Rect rect, int size) {
+        cell.mergeIndex = cell.nextIntersecting(0, rect);
+        if (cell.mergeIndex == cell.size) {
+            return size;
+        }
+
+        if (size == this.mergeHeap.length) {
+            this.mergeHeap = Arrays.copyOf(this.mergeHeap, size << 1);
+        }
+
+        this.mergeHeap[size] = cell;
+        return size + 1;
+    }
+
+    private static void siftDown(Cell[] heap, int index, int size) {
+        Cell cell = heap[index];
+        if (cell == null) {
+            return;
+        }
+
+        UIElement element = cell.elements[cell.mergeIndex];
+        for (int child = (index << 1) + 1; child < size; child = (index << 1) + 1) {
+            Cell other = heap[child];
+            if (child + 1 < size && isDrawnBefore(heap[child + 1].elements[heap[child + 1].mergeIndex], other.elements[other.mergeIndex])) {
+                other = heap[++child];
+            }
+
+            if (!isDrawnBefore(other.elements[other.mergeIndex], element)) {
+                break;
+            }
+
+            heap[index] = other;
+            index = child;
+        }
+
+        heap[index] = cell;
+    }
+
+    private static boolean isDrawnBefore(UIElement a, UIElement b) {
+        return a.spatialDepth != b.spatialDepth ? a.spatialDepth < b.spatialDepth : a.drawLabel < b.drawLabel;
+    }
+
+    /**
+     * Compares the order that the given elements are drawn in (see {@link #hitTest(double, double)}). Both elements
+     * must have been returned by a query on the same index, as this uses the depths and labels stored when they were
+     * indexed. Elements in different trees are in a consistent, but otherwise arbitrary, order
+     * @return A negative number if a is drawn before b, a positive number if it is drawn after, or 0 if they are the same element
+     */
+    public static int compareDrawOrder(UIElement a, UIElement b) {
+        if (a == b) {
+            return 0;
+        }
+        else if (a.spatialDepth != b.spatialDepth) {
+            return a.spatialDepth < b.spatialDepth ? -1 : 1;
+        }
+        else {
+            return Long.compare(a.drawLabel, b.drawLabel);
+        }
+    }
+
+    /**
+     * Returns the index of the given child in the given parent's visual children, or -1 if it is not one of them. The
+     * index is cached in the child, and all of the parent's children are numbered again if it turns out to be out of date
+     */
+    private static int getVisualIndex(UIElement parent, UIElement child) {
+        int index = child.visualIndex;
+        int count = parent.getVisualChildCount();
+        if (index >= 0 && index < count && parent.getVisualChild(index) == child) {
+            return index;
+        }
+
+        child.visualIndex = -1;
+        for (int i = 0; i < count; i++) {
+            parent.getVisualChild(i).visualIndex = i;
+        }
+
+        return child.visualIndex;
+    }
+
+    /**
+     * Links the given element into the draw order of its depth, next to the closest element before or after it in its
+     * tree that is already in the draw order. If there are none, it is added after the other elements at its depth.
+     * Elements that are not one of their parent's visual children are added after the other elements at their depth too
+     */
+    private void addToDrawOrder(UIElement element) {
+        int depth = element.spatialDepth;
+        while (this.levels.size() <= depth) {
+            this.levels.add(new Level());
+        }
+
+        Level level = this.levels.get(depth);
+        UIElement previous = findAdjacent(element, true), next;
+        if (previous != null) {
+            next = previous.drawNext;
+        }
+        else if ((next = findAdjacent(element, false)) != null) {
+            previous = next.drawPrevious;
+        }
+        else {
+            previous = level.last;
+        }
+
+        element.drawPrevious = previous;
+        element.drawNext = next;
+        if (previous == null) {
+            level.first = element;
+        }
+        else {
+            previous.drawNext = element;
+        }
+
+        if (next == null) {
+            level.last = element;
+        }
+        else {
+            next.drawPrevious = element;
+        }
+
+        long lo = previous != null ? previous.drawLabel : -1L;
+        long hi = next != null ? next.drawLabel : LABEL_SPACE;
+        if (hi - lo < 2L) {
+            relabel(element);
+        }
+        else if (previous == null && next == null) {
+            element.drawLabel = LABEL_SPACE >> 1;
+        }
+        else if (next == null && hi - lo > LABEL_STEP) {
+            element.drawLabel = lo + LABEL_STEP;
+        }
+        else if (previous == null && hi - lo > LABEL_STEP) {
+            element.drawLabel = hi - LABEL_STEP;
+        }
+        else {
+            element.drawLabel = lo + ((hi - lo) >> 1);
+        }
+    }
+
+    private void removeFromDrawOrder(UIElement element) {
+        Level level = this.levels.get(element.spatialDepth);
+        UIElement previous = element.drawPrevious, next = element.drawNext;
+        if (previous == null) {
+            level.first = next;
+        }
+        else {
+            previous.drawNext = next;
+        }
+
+        if (next == null) {
+            level.last = previous;
+        }
+        else {
+            next.drawPrevious = previous;
+        }
+
+        element.drawPrevious = null;
+        element.drawNext = null;
+    }
+
+    /**
+     * Gives new labels to the given element (which has just been linked in, with no room for a label between its
+     * neighbours) and the elements around it. The range of elements is doubled until their labels can be spread out
+     * with a gap at least as big as the number of elements, which leaves room for later elements to be linked in
+     */
+    private static void relabel(UIElement element) {
+        UIElement first = element, last = element;
+        int count = 1;
+        for (int target = 2; ; target <<= 1) {
+            while (count < target && (first.drawPrevious != null || last.drawNext != null)) {
+                if (first.drawPrevious != null) {
+                    first = first.drawPrevious;
+                    count++;
+                }
+
+                if (count < target && last.drawNext != null) {
+                    last = last.drawNext;
+                    count++;
+                }
+            }
+
+            long lo = first.drawPrevious != null ? first.drawPrevious.drawLabel : -1L;
+            long hi = last.drawNext != null ? last.drawNext.drawLabel : LABEL_SPACE;
+            long gap = (hi - lo) / (count + 1);
+            if (gap >= count || (first.drawPrevious == null && last.drawNext == null)) {
+                long label = lo;
+                for (UIElement node = first; ; node = node.drawNext) {
+                    node.drawLabel = label += gap;
+                    if (node == last) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the element that is drawn just before (or after) the given element at its depth in its tree, and is in
+     * the draw order. These are the last (or first) such elements under the closest siblings of its ancestors
+     */
+    private static UIElement findAdjacent(UIElement element, boolean isBefore) {
+        UIElement node = element;
+        for (int depth = 0; ; depth++) {
+            UIElement parent = node.getParent();
+            if (parent == null) {
+                return null;
+            }
+
+            int index = getVisualIndex(parent, node);
+            if (index == -1) {
+                return null;
+            }
+
+            if (isBefore) {
+                for (int i = index - 1; i >= 0; i--) {
+                    UIElement found = findInDrawOrder(parent.getVisualChild(i), depth, true);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+            else {
+                for (int i = index + 1, count = parent.getVisualChildCount(); i < count; i++) {
+                    UIElement found = findInDrawOrder(parent.getVisualChild(i), depth, false);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+
+            node = parent;
+        }
+    }
+
+    /**
+     * Returns the last (or first) element in the given element's tree at the given depth below it that is in
+     * the draw order. Elements waiting to be moved in the draw order are not where they belong, so they are skipped
+     */
+    private static UIElement findInDrawOrder(UIElement element, int depth, boolean isLast) {
+        if (depth == 0) {
+            return element.spatialState != NOT_INDEXED && !element.isDrawOrderChanged ? element : null;
+        }
+
+        int count = element.getVisualChildCount();
+        for (int i = 0; i < count; i++) {
+            UIElement found = findInDrawOrder(element.getVisualChild(isLast ? count - 1 - i : i), depth - 1, isLast);
+            if (found != null) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+    private void reindex(UIElement element) {
+        Rect bounds = element.layoutRect;
+        boolean isIndexable = element.isValid() && bounds.w > 0d && bounds.h > 0d && Double.isFinite(bounds.getX2()) && Double.isFinite(bounds.getY2());
+        boolean isMoved = element.isDrawOrderChanged;
+        element.isDrawOrderChanged = false;
+        int depth = element.getTreeIndex();
+        if (!isIndexable || isMoved || depth != element.spatialDepth) {
+            // a moved element is added again, where it now belongs in the draw order
+            remove(element);
+            if (!isIndexable) {
+                return;
+            }
+        }
+
+        // kept so that hit tests and queries do not have to look up the element's properties
+        element.spatialDepth = depth;
+        int x1 = toCell(bounds.x), y1 = toCell(bounds.y);
+        int x2 = toCell(bounds.getX2()), y2 = toCell(bounds.getY2());
+        boolean isOversized = (long) (x2 - x1 + 1) * (y2 - y1 + 1) > MAX_CELLS_PER_ELEMENT;
+        if (isOversized && element.spatialState == OVERSIZED) {
+            this.oversized.update(element, bounds);
+            return;
+        }
+        else if (!isOversized && element.spatialState == IN_CELLS && element.spatialX1 == x1 && element.spatialY1 == y1 && element.spatialX2 == x2 && element.spatialY2 == y2) {
+            // still in the same cells, so only the copies of its bounds need updating
+            for (int cx = x1; cx <= x2; cx++) {
+                for (int cy = y1; cy <= y2; cy++) {
+                    getCell(getKey(cx, cy)).update(element, bounds);
+                }
+            }
+
+            return;
+        }
+
+        remove(element);
+        addToDrawOrder(element);
+        if (isOversized) {
+            this.oversized.add(element, bounds);
+            element.spatialState = OVERSIZED;
+        }
+        else {
+            for (int cx = x1; cx <= x2; cx++) {
+                for (int cy = y1; cy <= y2; cy++) {
+                    getOrCreateCell(getKey(cx, cy)).add(element, bounds);
+                }
+            }
+
+            element.spatialX1 = x1;
+            element.spatialY1 = y1;
+            element.spatialX2 = x2;
+            element.spatialY2 = y2;
+            element.spatialState = IN_CELLS;
+        }
+
+        this.count++;
+    }
+
+    private void remove(UIElement element) {
+        if (element.spatialState == OVERSIZED) {
+            this.oversized.remove(element);
+        }
+        else if (element.spatialState == IN_CELLS) {
+            for (int cx = element.spatialX1; cx <= element.spatialX2; cx++) {
+                for (int cy = element.spatialY1; cy <= element.spatialY2; cy++) {
+                    long key = getKey(cx, cy);
+                    Cell cell = getCell(key);
+                    if (cell != null && cell.remove(element) && cell.size == 0) {
+                        removeCell(key);
+                    }
+                }
+            }
+        }
+        else {
+            return;
+        }
+
+        removeFromDrawOrder(element);
+        element.spatialState = NOT_INDEXED;
+        this.count--;
+    }
+
+    private Cell getCell(long key) {
+        Cell[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Cell cell = table[i];
+            if (cell == null || cell.key == key) {
+                return cell;
+            }
+        }
+    }
+
+    private Cell getOrCreateCell(long key) {
+        Cell[] table = this.table;
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        for (Cell cell = table[i]; cell != null; cell = table[i]) {
+            if (cell.key == key) {
+                return cell;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        Cell cell = new Cell(key);
+        table[i] = cell;
+        if (++this.cellCount > (table.length >> 1)) {
+            resize(table.length << 1);
+        }
+
+        return cell;
+    }
+
+    private void removeCell(long key) {
+        Cell[] table = this.table;
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i].key != key) {
+            i = (i + 1) & mask;
+        }
+
+        // move back the cells after it that could no longer be found past the empty slot
+        for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+            int home = hash(table[j].key) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+
+        table[i] = null;
+        this.cellCount--;
+    }
+
+    private void resize(int length) {
+        Cell[] table = new Cell[length];
+        int mask = length - 1;
+        for (Cell cell : this.table) {
+            if (cell != null) {
+                int i = hash(cell.key) & mask;
+                while (table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+
+                table[i] = cell;
+            }
+        }
+
+        this.table = table;
+    }
+
+    private int toCell(double position) {
+        return (int) Math.floor(position / this.cellSize);
+    }
+
+    private static long getKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        // the bits of both coordinates have to be mixed, otherwise every cell on a diagonal ends up in the same place
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (key ^ (key >>> 33));
+    }
+
+    /**
+     * The elements in a cell in draw order, along with a copy of their bounds (x1, y1, x2, y2 for each element)
+     */
+    private static final class Cell {
+        private final long key;
+        private UIElement[] elements;
+        private double[] bounds;
+        private int size;
+
+        // the next element to take from this cell while merging it with others
+        private int mergeIndex;
+
+        private Cell(long key) {
+            this.key = key;
+            this.elements = new UIElement[4];
+            this.bounds = new double[16];
+        }
+
+        private void add(UIElement element, Rect rect) {
+            if (this.size == this.elements.length) {
+                this.elements = Arrays.copyOf(this.elements, this.size << 1);
+                this.bounds = Arrays.copyOf(this.bounds, this.size << 3);
+            }
+
+            // elements are usually added in draw order, so search from the end
+            int index = this.size;
+            while (index > 0 && isDrawnBefore(element, this.elements[index - 1])) {
+                index--;
+            }
+
+            int moved = this.size - index;
+            System.arraycopy(this.elements, index, this.elements, index + 1, moved);
+            System.arraycopy(this.bounds, index << 2, this.bounds, (index + 1) << 2, moved << 2);
+            this.elements[index] = element;
+            setBounds(index, rect);
+            this.size++;
+        }
+
+        private boolean remove(UIElement element) {
+            int index = indexOf(element);
+            if (index == -1) {
+                return false;
+            }
+
+            int moved = --this.size - index;
+            System.arraycopy(this.elements, index + 1, this.elements, index, moved);
+            System.arraycopy(this.bounds, (index + 1) << 2, this.bounds, index << 2, moved << 2);
+            this.elements[this.size] = null;
+            return true;
+        }
+
+        private void update(UIElement element, Rect rect) {
+            int index = indexOf(element);
+            if (index != -1) {
+                setBounds(index, rect);
+            }
+        }
+
+        private int indexOf(UIElement element) {
+            UIElement[] elements = this.elements;
+            for (int i = 0, size = this.size; i < size; i++) {
+                if (elements[i] == element) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private void setBounds(int index, Rect rect) {
+            int i = index << 2;
+            this.bounds[i] = rect.x;
+            this.bounds[i + 1] = rect.y;
+            this.bounds[i + 2] = rect.getX2();
+            this.bounds[i + 3] = rect.getY2();
+        }
+
+        private void addContaining(double x, double y, Collection<UIElement> results) {
+            double[] bounds = this.bounds;
+            for (int i = 0, size = this.size; i < size; i++) {
+                int j = i << 2;
+                if (x >= bounds[j] && y >= bounds[j + 1] && x < bounds[j + 2] && y < bounds[j + 3]) {
+                    results.add(this.elements[i]);
+                }
+            }
+        }
+
+        /**
+         * Returns the index of the first element at or after the given index whose bounds intersect the rect, or the size if there are none
+         */
+        private int nextIntersecting(int index, Rect rect) {
+            double x1 = rect.x, y1 = rect.y, x2 = rect.getX2(), y2 = rect.getY2();
+            double[] bounds = this.bounds;
+            for (int size = this.size; index < size; index++) {
+                int j = index << 2;
+                if (bounds[j] < x2 && x1 < bounds[j + 2] && bounds[j + 1] < y2 && y1 < bounds[j + 3]) {
+                    return index;
+                }
+            }
+
+            return index;
+        }
+
+        private void addIntersecting(Rect rect, int stamp, Collection<UIElement> results) {
+            double x1 = rect.x, y1 = rect.y, x2 = rect.getX2(), y2 = rect.getY2();
+            double[] bounds = this.bounds;
+            for (int i = 0, size = this.size; i < size; i++) {
+                int j = i << 2;
+                if (bounds[j] < x2 && x1 < bounds[j + 2] && bounds[j + 1] < y2 && y1 < bounds[j + 3]) {
+                    UIElement element = this.elements[i];
+                    if (element.spatialQueryStamp != stamp) {
+                        element.spatialQueryStamp = stamp;
+                        results.add(element);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the topmost of the given element and the elements in this cell that contain the given point
+         */
+        private UIElement hitTest(double x, double y, UIElement top) {
+            double[] bounds = this.bounds;
+            for (int i = this.size - 1; i >= 0; i--) {
+                int j = i << 2;
+                if (x >= bounds[j] && y >= bounds[j + 1] && x < bounds[j + 2] && y < bounds[j + 3]) {
+                    UIElement element = this.elements[i];
+                    return top == null || isDrawnBefore(top, element) ? element : top;
+                }
+            }
+
+            return top;
+        }
+    }
+
+    /**
+     * The elements at one depth, in draw order
+     */
+    private static final class Level {
+        private UIElement first;
+        private UIElement last;
+    }
+}
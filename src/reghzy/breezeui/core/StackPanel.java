@@ -0,0 +1,113 @@
+package reghzy.breezeui.core;
+
+import org.joml.Vector2d;
+import reghzy.breezeui.core.properties.DependencyProperty;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMetaFlags;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Orientation;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.Thickness;
+
+import java.util.List;
+
+/**
+ * A panel that arranges its children one after another, either horizontally or vertically
+ * <p>
+ *     Each child's slot is as long as its explicit width/height (or the whole panel, if it does not have one) and is then
+ *     shortened to the child's measured size, so that the next child starts where it ends. If {@link #ITEM_EXTENT} is set,
+ *     every slot is that long instead, so a child's position never depends on the size of the children before it
+ * </p>
+ */
+public class StackPanel extends Panel {
+    public static final DependencyProperty ORIENTATION = DependencyProperty.register("Orientation", Orientation.class, StackPanel.class, new FrameworkPropertyMeta(Orientation.Vertical, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty ITEM_EXTENT = DependencyProperty.register("ItemExtent", double.class, StackPanel.class,         new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+
+    public StackPanel() {
+
+    }
+
+    @Override
+    protected Vector2d arrangeChildren(List<UIElement> children, Rect area) {
+        boolean horizontal = getOrientation() == Orientation.Horizontal;
+        double itemExtent = getItemExtent();
+        boolean isFixed = itemExtent > 0d;
+
+        double mainStart = horizontal ? area.x : area.y;
+        double mainSize = horizontal ? area.w : area.h;
+        double crossStart = horizontal ? area.y : area.x;
+        double crossSize = horizontal ? area.h : area.w;
+
+        double main = mainStart;
+        double crossExtent = 0d;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            UIElement child = children.get(i);
+            Thickness margin = child.getValue(MARGIN);
+            double mainBefore = horizontal ? margin.getLeft() : margin.getTop();
+            double mainAfter = horizontal ? margin.getRight() : margin.getBottom();
+            double crossBefore = horizontal ? margin.getTop() : margin.getLeft();
+            double crossAfter = horizontal ? margin.getBottom() : margin.getRight();
+
+            double slotMain;
+            if (isFixed) {
+                slotMain = itemExtent - mainBefore - mainAfter;
+            }
+            else {
+                slotMain = getExplicitSize(child, horizontal);
+                if (Double.isNaN(slotMain)) {
+                    slotMain = mainSize - mainBefore - mainAfter;
+                }
+            }
+
+            slotMain = Math.max(slotMain, 0d);
+            double slotCross = Math.max(crossSize - crossBefore - crossAfter, 0d);
+            double childMain = main + mainBefore;
+            double childCross = crossStart + crossBefore;
+            Rect slot = horizontal ? new Rect(childMain, childCross, slotMain, slotCross) : new Rect(childCross, childMain, slotCross, slotMain);
+            Rect layout = measureChild(child, slot);
+            if (isFixed) {
+                main += itemExtent;
+            }
+            else {
+                main = childMain + getExtent(childMain, horizontal ? layout.getX2() : layout.getY2()) + mainAfter;
+            }
+
+            crossExtent = Math.max(crossExtent, getExtent(crossStart, horizontal ? layout.getY2() : layout.getX2()) + crossAfter);
+        }
+
+        double mainExtent = main - mainStart;
+        return horizontal ? new Vector2d(mainExtent, crossExtent) : new Vector2d(crossExtent, mainExtent);
+    }
+
+    @Override
+    protected int getArrangeAxes(UIElement child, int axes) {
+        boolean horizontal = getOrientation() == Orientation.Horizontal;
+        if ((axes & (horizontal ? LayoutAxes.HORIZONTAL : LayoutAxes.VERTICAL)) != 0) {
+            // the children after it may have to move
+            return axes & LayoutAxes.BOTH;
+        }
+
+        // the child's slot does not depend on its size across the orientation, so this
+        // only matters if this panel is sized to its children in that axis
+        return isSizedToChildren(!horizontal) ? axes & LayoutAxes.BOTH : LayoutAxes.NONE;
+    }
+
+    public Orientation getOrientation() {
+        return getValue(ORIENTATION);
+    }
+
+    public void setOrientation(Orientation orientation) {
+        setValue(ORIENTATION, orientation);
+    }
+
+    public double getItemExtent() {
+        return getValue(ITEM_EXTENT);
+    }
+
+    /**
+     * Sets the length of every child's slot along the orientation, or NaN to use each child's own size
+     */
+    public void setItemExtent(double extent) {
+        setValue(ITEM_EXTENT, extent);
+    }
+}
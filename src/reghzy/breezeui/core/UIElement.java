@@ -2,14 +2,30 @@ package reghzy.breezeui.core;
 
 import reghzy.breezeui.core.properties.DependencyProperty;
 import reghzy.breezeui.core.properties.PropertyMeta;
+import reghzy.breezeui.core.utils.CacheMode;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Maths;
 import reghzy.breezeui.core.utils.Rect;
 import reghzy.breezeui.core.utils.Thickness;
+import reghzy.breezeui.render.DamageRegion;
+import reghzy.breezeui.render.DisplayList;
 import reghzy.breezeui.render.RenderContext;
+import reghzy.breezeui.render.RenderLayer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 public class UIElement extends Visual {
     public static final DependencyProperty IS_MOUSE_OVER = DependencyProperty.register("IsMouseOver", boolean.class, UIElement.class, new PropertyMeta(false));
     public static final DependencyProperty MARGIN = DependencyProperty.register("Margin", Thickness.class, UIElement.class, new PropertyMeta(new Thickness(0)));
     public static final DependencyProperty PARENT = DependencyProperty.register("Parent", UIElement.class, UIElement.class, new PropertyMeta(null, (p, o, ov, nv) -> ((UIElement) o).onParentChanged((UIElement) ov, (UIElement) nv)));
+    public static final DependencyProperty CLIP_TO_BOUNDS = DependencyProperty.register("ClipToBounds", boolean.class, UIElement.class, new PropertyMeta(false, (p, o, ov, nv) -> ((UIElement) o).onClipChanged()));
+    public static final DependencyProperty CACHE_MODE = DependencyProperty.register("CacheMode", CacheMode.class, UIElement.class, new PropertyMeta(CacheMode.None, (p, o, ov, nv) -> ((UIElement) o).onCacheModeChanged((CacheMode) nv)));
+
+    // the elements whose cache mode is Bitmap, which a LayerCache draws into layers
+    private static final Set<UIElement> CACHED_ELEMENTS = Collections.newSetFromMap(new WeakHashMap<UIElement, Boolean>());
 
     public boolean isRenderDirty = false;
     public boolean isLayoutDirty = false;
@@ -22,8 +38,55 @@ public class UIElement extends Visual {
     protected Rect lastLayoutRect;
     protected Rect layoutRect;
 
+    // the available space this element was last measured with
+    protected Rect lastAvailableRect;
+
     protected boolean isValid;
 
+    // incremented whenever this element's layout is invalidated or re-measured
+    private int layoutVersion;
+
+    // the LayoutAxes this element's layout was invalidated with, while it is dirty
+    private int invalidatedAxes;
+
+    // set while this element is being measured, if one of its descendants was left to be measured on a later tick
+    private volatile boolean isMeasureDeferred;
+
+    // this element's node in a flat layout tree, if it is part of one
+    FlatLayoutTree flatLayoutTree;
+    int flatLayoutId = -1;
+
+    // the cells this element occupies in the spatial index
+    byte spatialState;
+    int spatialX1;
+    int spatialY1;
+    int spatialX2;
+    int spatialY2;
+    int spatialQueryStamp;
+    int spatialDepth;
+
+    // this element's place in its spatial index's draw order: the elements drawn just before and after it at its depth,
+    // a label that increases in draw order, and whether it has moved in the visual tree since it was put there
+    UIElement drawPrevious;
+    UIElement drawNext;
+    long drawLabel;
+    boolean isDrawOrderChanged;
+
+    // this element's index in its parent's visual children the last time it was looked up
+    int visualIndex = -1;
+
+    // the draw commands recorded the last time this element was rendered
+    private DisplayList displayList;
+
+    // the layout this element was last drawn with, or null if it is not currently drawn
+    private Rect drawnRect;
+
+    // whether this element's cache mode is Bitmap, its layout when its subtree was last drawn into a
+    // layer (or null if that layer is out of date), and a version that changes when that layer does
+    private boolean isLayerCached;
+    private Rect layerRect;
+    private int layerVersion;
+
     public UIElement() {
         this.lastLayoutRect = new Rect(0d, 0d, 0d, 0d);
         this.layoutRect = new Rect(0, 0, 0, 0);
@@ -40,12 +103,34 @@ public class UIElement extends Visual {
         }
     }
 
+    /**
+     * Returns the number of child elements this element directly contains in the visual tree
+     */
+    public int getVisualChildCount() {
+        return 0;
+    }
+
+    /**
+     * Returns the child element at the given index in the visual tree
+     * @param index The index, between 0 and {@link #getVisualChildCount()} (exclusive)
+     */
+    public UIElement getVisualChild(int index) {
+        throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for " + getVisualChildCount() + " visual children");
+    }
+
     public final boolean isValid() {
         return this.isValid;
     }
 
     public final void validate(boolean isValid) {
-        this.isValid = isValid;
+        if (this.isValid != isValid) {
+            this.isValid = isValid;
+            SpatialIndex.onBoundsChanged(this);
+            if (!isValid && this.drawnRect != null) {
+                // the area it was drawn in has to be drawn again without it
+                ContextLayoutManager.of().getRenderQueue().add(this);
+            }
+        }
     }
 
     public void render(RenderContext context, double width, double height) {
@@ -53,13 +138,67 @@ public class UIElement extends Visual {
     }
 
     public final void invalidateLayout() {
-        if (!this.isValid || this.isUpdatingLayout || this.isLayoutDirty) {
+        invalidateLayout(LayoutAxes.BOTH);
+    }
+
+    /**
+     * Invalidates the given parts of this element's layout
+     * @param axes The {@link LayoutAxes} that are affected. If this element's layout is already invalid, they are
+     *             merged with the axes it was invalidated with, and its parent is notified again if that adds any axes
+     */
+    public final void invalidateLayout(int axes) {
+        if (!this.isValid || this.isUpdatingLayout) {
             return;
         }
 
-        onLayoutInvalidated();
-        ContextLayoutManager.of().getRearrangeQueue().add(this);
-        this.isLayoutDirty = true;
+        axes = getAffectedAxes(axes);
+        if (this.isLayoutDirty) {
+            int merged = LayoutAxes.merge(this.invalidatedAxes, axes);
+            if (merged == this.invalidatedAxes) {
+                return;
+            }
+
+            this.invalidatedAxes = merged;
+            onLayoutInvalidated();
+        }
+        else {
+            // marked dirty first, so that invalidations caused by the callbacks below are ignored
+            this.isLayoutDirty = true;
+            this.invalidatedAxes = axes;
+            this.layoutVersion++;
+            onLayoutInvalidated();
+            ContextLayoutManager.of().getRearrangeQueue().add(this);
+        }
+
+        UIElement parent = getParent();
+        if (parent != null) {
+            parent.onChildLayoutInvalidated(this, axes);
+        }
+    }
+
+    /**
+     * Returns the {@link LayoutAxes} of this element's layout that may change when the given axes are invalidated.
+     * Elements whose size in one axis can depend on their size in the other (e.g. because they are sized to their
+     * children) should add the other axis
+     */
+    protected int getAffectedAxes(int axes) {
+        return axes;
+    }
+
+    /**
+     * Returns the {@link LayoutAxes} that this element's layout has been invalidated with since it was last measured.
+     * This is only meaningful while this element's layout is dirty
+     */
+    public final int getInvalidatedAxes() {
+        return this.invalidatedAxes;
+    }
+
+    /**
+     * Returns this element's layout version, which changes whenever its layout is invalidated or re-measured.
+     * This is used to detect whether a layout computed elsewhere (e.g. a {@link LayoutSnapshot}) is stale
+     */
+    public final int getLayoutVersion() {
+        return this.layoutVersion;
     }
 
     public final void invalidateRender() {
@@ -85,6 +224,78 @@ public class UIElement extends Visual {
 
     }
 
+    /**
+     * Called when the layout of one of this element's children is invalidated. Elements whose
+     * layout depends on the size of their children (e.g. panels) should invalidate their own layout
+     * @param axes The {@link LayoutAxes} of the child's layout that were invalidated
+     */
+    protected void onChildLayoutInvalidated(UIElement child, int axes) {
+
+    }
+
+    /**
+     * Measures the given child in the given slot. If the child's layout is not dirty and the size of the slot is the
+     * same as the last time it was measured, the child is translated to the slot (if it has moved) instead of measured.
+     * A child whose slot has not changed at all is left alone; where it overlaps this element's damage, its display
+     * list is replayed when that damage is drawn
+     * <p>
+     *     If the layout time budget of the current tick has been spent (see {@link ContextLayoutManager#setLayoutTimeBudget(long)}),
+     *     a child that has to be measured is left dirty instead, and so is every element being measured above it, which keep
+     *     their last layout. The children after it are left alone, as their slots may depend on it. They are all measured
+     *     again on the next tick, where the children that were measured in this tick are only translated or left alone
+     * </p>
+     * @return The child's layout (which is its last layout, if it was left to be measured on the next tick)
+     */
+    protected Rect measureChild(UIElement child, Rect slot) {
+        if (this.isMeasureDeferred) {
+            return child.layoutRect;
+        }
+
+        if (!child.isMeasureNeeded(slot)) {
+            Rect last = child.lastAvailableRect;
+            if (last.x != slot.x || last.y != slot.y) {
+                child.translateLayout(slot.x - last.x, slot.y - last.y);
+            }
+
+            return child.layoutRect;
+        }
+
+        if (ContextLayoutManager.isLayoutBudgetSpent()) {
+            deferMeasure(child);
+            return child.layoutRect;
+        }
+
+        Rect layout = child.measure(slot);
+        ContextLayoutManager.onChildMeasured();
+        return layout;
+    }
+
+    /**
+     * Leaves the given child dirty, to be measured on a later tick, along with every element being measured above it.
+     * Only the outermost of those is queued; the others are reached by measuring it, as they are dirty
+     */
+    private void deferMeasure(UIElement child) {
+        if (!child.isLayoutDirty) {
+            // its slot changed size
+            child.isLayoutDirty = true;
+            child.invalidatedAxes = LayoutAxes.BOTH;
+            child.layoutVersion++;
+        }
+
+        for (UIElement element = this; element != null && element.isUpdatingLayout && !element.isMeasureDeferred; element = element.getParent()) {
+            element.isMeasureDeferred = true;
+        }
+    }
+
+    /**
+     * Returns whether this element has to be measured in the given slot, rather than
+     * only translated to it (see {@link #measureChild(UIElement, Rect)})
+     */
+    final boolean isMeasureNeeded(Rect slot) {
+        Rect last = this.lastAvailableRect;
+        return this.isLayoutDirty || this.hasNeverUpdatedLayout || last == null || !Maths.areClose(last.w, slot.w) || !Maths.areClose(last.h, slot.h);
+    }
+
     public UIElement getParent() {
         return getValue(PARENT);
     }
@@ -93,11 +304,30 @@ public class UIElement extends Visual {
         setValue(PARENT, parent);
     }
 
+    @Override
+    protected void onPropertyChanged(DependencyProperty property, Object oldValue, Object newValue) {
+        super.onPropertyChanged(property, oldValue, newValue);
+        if (property == PARENT) {
+            FlatLayoutTree.onVisualStructureChanged((UIElement) oldValue);
+            FlatLayoutTree.onVisualStructureChanged((UIElement) newValue);
+            SpatialIndex.onTreePositionChanged(this);
+        }
+    }
+
     private void onParentChanged(UIElement oldParent, UIElement newParent) {
         if (newParent != null) {
             newParent.invalidateLayout();
         }
 
+        // this element is no longer drawn in the layers it was drawn in
+        if (oldParent != null && !CACHED_ELEMENTS.isEmpty()) {
+            for (UIElement root = oldParent; root != null; root = root.getParent()) {
+                if (root.isLayerCached && root.layerRect != null) {
+                    root.invalidateLayer(null);
+                }
+            }
+        }
+
         validate(newParent != null);
     }
 
@@ -109,6 +339,129 @@ public class UIElement extends Visual {
         this.id = id;
     }
 
+    /**
+     * Returns whether this element's visual children are clipped to this element's bounds when drawn
+     */
+    public boolean isClipToBounds() {
+        return getValue(CLIP_TO_BOUNDS);
+    }
+
+    public void setClipToBounds(boolean clipToBounds) {
+        setValue(CLIP_TO_BOUNDS, clipToBounds);
+    }
+
+    /**
+     * Called when this element starts or stops clipping its children. The areas its descendants are drawn in change
+     * without their render being invalidated, so they are all queued to be drawn again
+     */
+    final void onClipChanged() {
+        queueRenderTree(this);
+    }
+
+    private static void queueRenderTree(UIElement element) {
+        if (element.isValid) {
+            ContextLayoutManager.of().getRenderQueue().add(element);
+        }
+
+        for (int i = 0, size = element.getVisualChildCount(); i < size; i++) {
+            queueRenderTree(element.getVisualChild(i));
+        }
+    }
+
+    /**
+     * Returns how this element's subtree is drawn
+     */
+    public CacheMode getCacheMode() {
+        return getValue(CACHE_MODE);
+    }
+
+    /**
+     * Sets how this element's subtree is drawn. Setting this to {@link CacheMode#Bitmap} is worth it for complex subtrees
+     * that rarely change (e.g. a sidebar with hundreds of shapes): the subtree is drawn into an offscreen layer once,
+     * and only that layer is drawn while nothing in the subtree changes, even if the areas around or above it do
+     * <p>
+     *     The layer is drawn again when an element in the subtree is rendered again, or moves or resizes relative to this
+     *     element. Layers are kept in a {@link reghzy.breezeui.render.LayerCache}, which limits the memory they use
+     * </p>
+     */
+    public void setCacheMode(CacheMode cacheMode) {
+        setValue(CACHE_MODE, cacheMode);
+    }
+
+    private void onCacheModeChanged(CacheMode cacheMode) {
+        this.isLayerCached = cacheMode == CacheMode.Bitmap;
+        if (this.isLayerCached) {
+            CACHED_ELEMENTS.add(this);
+        }
+        else {
+            CACHED_ELEMENTS.remove(this);
+        }
+
+        this.layerRect = null;
+        this.layerVersion++;
+        if (this.isValid) {
+            ContextLayoutManager.of().getRenderQueue().add(this);
+        }
+    }
+
+    /**
+     * Returns the elements whose cache mode is {@link CacheMode#Bitmap}, which may include elements that have been removed from their tree
+     */
+    public static Collection<UIElement> getCachedElements() {
+        return Collections.unmodifiableSet(CACHED_ELEMENTS);
+    }
+
+    /**
+     * Returns the version of this element's layer, which changes whenever the layer has to be drawn again
+     */
+    public final int getLayerVersion() {
+        return this.layerVersion;
+    }
+
+    /**
+     * Called after this element's subtree is drawn into a layer
+     */
+    public final void onLayerDrawn() {
+        this.layerRect = new Rect(this.layoutRect);
+    }
+
+    private void invalidateLayer(DamageRegion region) {
+        this.layerRect = null;
+        this.layerVersion++;
+        if (region != null) {
+            region.add(this.drawnRect);
+            if (this.isValid) {
+                region.add(this.layoutRect);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the layer of each cached element this element is drawn in (including itself), if this element would now be drawn differently in it
+     */
+    private void invalidateCachedLayers(DamageRegion region) {
+        for (UIElement root = this; root != null; root = root.getParent()) {
+            if (root.isLayerCached && root.layerRect != null && isChangedInLayer(root)) {
+                root.invalidateLayer(region);
+            }
+        }
+    }
+
+    private boolean isChangedInLayer(UIElement root) {
+        if (!this.isValid || this.isRenderDirty) {
+            return true;
+        }
+
+        // the layer is drawn wherever the root is, so only moving relative to the root changes it
+        Rect drawn = this == root ? root.layerRect : this.drawnRect;
+        if (drawn == null || !Maths.areClose(drawn.w, this.layoutRect.w) || !Maths.areClose(drawn.h, this.layoutRect.h)) {
+            return true;
+        }
+
+        return this != root && (!Maths.areClose(drawn.x - root.layerRect.x, this.layoutRect.x - root.layoutRect.x) ||
+                                !Maths.areClose(drawn.y - root.layerRect.y, this.layoutRect.y - root.layoutRect.y));
+    }
+
     public Thickness getMargin() {
         return getValue(MARGIN);
     }
@@ -137,13 +490,39 @@ public class UIElement extends Visual {
         if (this.hasNeverUpdatedLayout || !this.isUpdatingLayout || this.isLayoutDirty) {
             this.hasNeverUpdatedLayout = false;
             this.isUpdatingLayout = true;
+            this.layoutVersion++;
+            LayoutProfiler profiler = ContextLayoutManager.getLayoutProfiler();
+            boolean isProfiling = profiler != null && profiler.beginMeasure(this);
             try {
-                this.lastLayoutRect = new Rect(this.layoutRect);
-                this.layoutRect = this.measureCoreLayout(rect);
+                Rect layout = ContextLayoutManager.roundLayout(this.measureCoreLayout(rect));
+
+                // if part of the subtree was left for a later tick, the layout was measured from stale children,
+                // so the last layout is kept until it has been measured in full
+                if (!this.isMeasureDeferred) {
+                    this.lastLayoutRect = this.layoutRect;
+                    this.layoutRect = layout;
+                    this.lastAvailableRect = rect;
+                    if (!this.layoutRect.isCloseTo(this.lastLayoutRect)) {
+                        SpatialIndex.onBoundsChanged(this);
+                    }
+                }
             }
             finally {
                 this.isUpdatingLayout = false;
                 this.isLayoutDirty = false;
+                if (this.isMeasureDeferred) {
+                    this.isMeasureDeferred = false;
+                    this.isLayoutDirty = true;
+                    this.invalidatedAxes = LayoutAxes.BOTH;
+                    UIElement parent = getParent();
+                    if (parent == null || !parent.isUpdatingLayout) {
+                        ContextLayoutManager.of().getRearrangeQueue().add(this);
+                    }
+                }
+
+                if (isProfiling) {
+                    profiler.endMeasure();
+                }
             }
 
             ContextLayoutManager.of().getRenderQueue().add(this);
@@ -155,6 +534,58 @@ public class UIElement extends Visual {
         return this.layoutRect;
     }
 
+    /**
+     * Applies a layout that was measured elsewhere (e.g. from a {@link LayoutSnapshot} or {@link FlatLayoutTree}), as if this element had been measured
+     * @param available The available space the layout was measured with
+     * @param layout    The measured layout
+     */
+    final void applyLayout(Rect available, Rect layout) {
+        this.hasNeverUpdatedLayout = false;
+        this.isLayoutDirty = false;
+        this.layoutVersion++;
+        this.lastLayoutRect = this.layoutRect;
+        this.layoutRect = ContextLayoutManager.roundLayout(layout);
+        this.lastAvailableRect = available;
+        if (!this.layoutRect.isCloseTo(this.lastLayoutRect)) {
+            SpatialIndex.onBoundsChanged(this);
+        }
+
+        onLayoutApplied(available);
+        ContextLayoutManager.of().getRenderQueue().add(this);
+    }
+
+    /**
+     * Called when a layout measured elsewhere is applied to this element, instead of it being measured by {@link #measureCoreLayout(Rect)}
+     */
+    protected void onLayoutApplied(Rect available) {
+
+    }
+
+    /**
+     * Moves this element and its visual children by the given offset, without measuring them again.
+     * This is used by containers when only the position of a child's slot has changed
+     */
+    public void translateLayout(double dx, double dy) {
+        if (dx == 0d && dy == 0d) {
+            return;
+        }
+
+        this.layoutVersion++;
+        this.lastLayoutRect = this.layoutRect;
+        this.layoutRect = ContextLayoutManager.roundLayout(this.layoutRect.addXY(dx, dy));
+        if (this.lastAvailableRect != null) {
+            this.lastAvailableRect = this.lastAvailableRect.addXY(dx, dy);
+        }
+
+        SpatialIndex.onBoundsChanged(this);
+
+        for (int i = 0, size = getVisualChildCount(); i < size; i++) {
+            getVisualChild(i).translateLayout(dx, dy);
+        }
+
+        ContextLayoutManager.of().getRenderQueue().add(this);
+    }
+
     /**
      * Measures the actual layout position and size of this element, based on the available size given as a rect
      * <p>
@@ -165,8 +596,17 @@ public class UIElement extends Visual {
         return rect;
     }
 
+    /**
+     * Opens a render context that records this element's draw commands into its display list
+     */
     public RenderContext openRender() {
-        return new RenderContext(this, this.layoutRect.getPosition());
+        DisplayList list = this.displayList;
+        if (list == null) {
+            this.displayList = list = new DisplayList();
+        }
+
+        list.begin(this.layoutRect.w, this.layoutRect.h);
+        return new RenderContext(this, list);
     }
 
     public void closeRender(RenderContext context) {
@@ -174,6 +614,87 @@ public class UIElement extends Visual {
         this.isRenderDirty = false;
     }
 
+    /**
+     * Draws this element into the current frame. Its display list is only recorded again if its render was invalidated
+     * or its size has changed since it was recorded; otherwise (e.g. if it was only moved), the list is just replayed
+     */
+    public final void draw() {
+        double w = this.layoutRect.w, h = this.layoutRect.h;
+        DisplayList list = this.displayList;
+        if (list == null || this.isRenderDirty || !list.isRecordedFor(w, h)) {
+            RenderContext context = openRender();
+            try {
+                render(context, w, h);
+            }
+            finally {
+                closeRender(context);
+            }
+
+            list = this.displayList;
+        }
+
+        RenderContext.replay(list, this.layoutRect.x, this.layoutRect.y);
+        if (this.drawnRect == null || !this.drawnRect.isCloseTo(this.layoutRect)) {
+            this.drawnRect = new Rect(this.layoutRect);
+        }
+    }
+
+    /**
+     * Draws the given layer, which this element's subtree was drawn into, into the current frame in place of this element and its descendants
+     */
+    public final void drawLayer(RenderLayer layer) {
+        RenderContext.getBackend().drawLayer(layer, this.layoutRect.x, this.layoutRect.y, this.layoutRect.w, this.layoutRect.h);
+        if (this.drawnRect == null || !this.drawnRect.isCloseTo(this.layoutRect)) {
+            this.drawnRect = new Rect(this.layoutRect);
+        }
+    }
+
+    /**
+     * Adds the areas that have to be drawn again because this element changed (where it was last
+     * drawn, and where it is now) to the given region. Called for each element in the render queue
+     */
+    public final void addDamage(DamageRegion region) {
+        if (!CACHED_ELEMENTS.isEmpty()) {
+            invalidateCachedLayers(region);
+        }
+
+        region.add(this.drawnRect);
+        if (this.isValid) {
+            region.add(this.layoutRect);
+        }
+        else {
+            this.drawnRect = null;
+        }
+    }
+
+    /**
+     * Returns the draw commands this element recorded the last time it was rendered, or null if it has never been rendered
+     */
+    public final DisplayList getDisplayList() {
+        return this.displayList;
+    }
+
+    /**
+     * Returns the flat layout tree this element is a node of, or null if it is not part of one
+     */
+    public FlatLayoutTree getFlatLayoutTree() {
+        return this.flatLayoutTree;
+    }
+
+    /**
+     * Returns this element's node id in its flat layout tree, or -1 if it is not part of one
+     */
+    public int getFlatLayoutId() {
+        return this.flatLayoutId;
+    }
+
+    /**
+     * Returns this element's bounds, relative to the window. The returned rect must not be modified
+     */
+    public final Rect getLayoutRect() {
+        return this.layoutRect;
+    }
+
     public double getActualWidth() {
         return this.layoutRect.w;
     }
@@ -0,0 +1,255 @@
+package reghzy.breezeui.core;
+
+import reghzy.breezeui.core.items.ItemContainerGenerator;
+import reghzy.breezeui.core.items.ItemSource;
+import reghzy.breezeui.core.properties.DependencyProperty;
+import reghzy.breezeui.core.properties.PropertyMeta;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMetaFlags;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * An items control that only realises containers for the items that intersect its viewport (plus an overscan)
+ * <p>
+ *     Items are supplied by an {@link ItemSource} and presented by containers created from an {@link ItemContainerGenerator}.
+ *     Every item has the same extent ({@link #ITEM_EXTENT}), which allows the visible range to be calculated without
+ *     measuring any items, so scrolling only costs as much as the number of visible items
+ * </p>
+ * <p>
+ *     Containers that are scrolled out of view are put into a recycle pool and re-prepared when another item is realised
+ * </p>
+ */
+public class VirtualizingItemsControl extends Control {
+    public static final DependencyProperty ITEM_SOURCE =    DependencyProperty.register("ItemSource", ItemSource.class, VirtualizingItemsControl.class,                 new FrameworkPropertyMeta(null, (p, o, ov, nv) -> ((VirtualizingItemsControl) o).recycleAllContainers(), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty ITEM_GENERATOR = DependencyProperty.register("ItemGenerator", ItemContainerGenerator.class, VirtualizingItemsControl.class, new FrameworkPropertyMeta(null, (p, o, ov, nv) -> ((VirtualizingItemsControl) o).onGeneratorChanged(), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty ITEM_EXTENT =    DependencyProperty.register("ItemExtent", double.class, VirtualizingItemsControl.class,                     new FrameworkPropertyMeta(20d, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty OVERSCAN =       DependencyProperty.register("Overscan", int.class, VirtualizingItemsControl.class,                          new FrameworkPropertyMeta(2, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty SCROLL_OFFSET =  DependencyProperty.register("ScrollOffset", double.class, VirtualizingItemsControl.class,                   new FrameworkPropertyMeta(0d, null, (p, o, v) -> Math.max((Double) v, 0d), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+
+    static {
+        // containers in the overscan lie outside the viewport, so they must not be drawn over the surrounding elements
+        CLIP_TO_BOUNDS.overrideMetadata(VirtualizingItemsControl.class, new PropertyMeta(true, (p, o, ov, nv) -> ((UIElement) o).onClipChanged()));
+    }
+
+    private ArrayList<UIElement> realised;
+    private ArrayList<UIElement> realisedSwap;
+    private final ArrayDeque<UIElement> recyclePool;
+    private int firstRealisedIndex;
+
+    public VirtualizingItemsControl() {
+        this.realised = new ArrayList<UIElement>();
+        this.realisedSwap = new ArrayList<UIElement>();
+        this.recyclePool = new ArrayDeque<UIElement>();
+    }
+
+    @Override
+    public Rect measureCoreLayout(Rect rect) {
+        Rect layout = super.measureCoreLayout(rect);
+        ItemSource source = getItemSource();
+        ItemContainerGenerator generator = getItemGenerator();
+        double extent = getValue(ITEM_EXTENT);
+        if (source == null || generator == null || !(extent > 0d)) {
+            recycleAllContainers();
+            return layout;
+        }
+
+        double viewport = Double.isNaN(layout.h) ? rect.h : layout.h;
+        int count = source.getItemCount();
+        int overscan = Math.max(this.<Integer>getValue(OVERSCAN), 0);
+        double offset = Math.min(getScrollOffset(), Math.max(count * extent - viewport, 0d));
+
+        int first = Math.max((int) Math.floor(offset / extent) - overscan, 0);
+        int last = Math.min((int) Math.ceil((offset + viewport) / extent) + overscan, count);
+        if (last < first) {
+            last = first;
+        }
+
+        // recycle the containers whose items are no longer in range. These are
+        // done first, so that they can be re-used for the newly realised items
+        ArrayList<UIElement> oldList = this.realised;
+        int oldFirst = this.firstRealisedIndex;
+        for (int i = 0, size = oldList.size(); i < size; i++) {
+            int index = oldFirst + i;
+            if (index < first || index >= last) {
+                recycleContainer(oldList.get(i), generator);
+            }
+        }
+
+        ArrayList<UIElement> newList = this.realisedSwap;
+        newList.clear();
+        newList.ensureCapacity(last - first);
+        for (int index = first; index < last; index++) {
+            UIElement container;
+            int oldIndex = index - oldFirst;
+            if (oldIndex >= 0 && oldIndex < oldList.size()) {
+                container = oldList.get(oldIndex);
+            }
+            else {
+                container = realiseContainer(source, generator, index);
+            }
+
+            newList.add(container);
+            container.measure(new Rect(layout.x, layout.y + (index * extent) - offset, layout.w, extent));
+        }
+
+        if (first != oldFirst || newList.size() != oldList.size()) {
+            // containers were realised, recycled or moved to other positions in the visual children
+            FlatLayoutTree.onVisualStructureChanged(this);
+        }
+
+        oldList.clear();
+        this.realisedSwap = oldList;
+        this.realised = newList;
+        this.firstRealisedIndex = first;
+        return layout;
+    }
+
+    private UIElement realiseContainer(ItemSource source, ItemContainerGenerator generator, int index) {
+        UIElement container = this.recyclePool.pollLast();
+        if (container == null) {
+            container = generator.createContainer();
+            if (container == null) {
+                throw new RuntimeException("Item generator created a null container");
+            }
+
+            container.setParent(this);
+        }
+        else {
+            // it keeps its parent, but is now at another position in the visual children
+            SpatialIndex.onTreePositionChanged(container);
+        }
+
+        container.validate(true);
+        generator.prepareContainer(container, source.getItem(index), index);
+        return container;
+    }
+
+    private void recycleContainer(UIElement container, ItemContainerGenerator generator) {
+        // the container keeps its parent, but is invalidated so that it stops participating in the
+        // layout and render queues (it is then queued again, so that the area it was drawn in is redrawn)
+        ContextLayoutManager manager = ContextLayoutManager.of();
+        manager.getRearrangeQueue().remove(container);
+        manager.getRenderQueue().remove(container);
+        container.validate(false);
+        if (generator != null) {
+            generator.clearContainer(container);
+        }
+
+        this.recyclePool.addLast(container);
+    }
+
+    private void recycleAllContainers() {
+        ItemContainerGenerator generator = getItemGenerator();
+        for (UIElement container : this.realised) {
+            recycleContainer(container, generator);
+        }
+
+        this.realised.clear();
+        this.firstRealisedIndex = 0;
+    }
+
+    private void onGeneratorChanged() {
+        // containers from the old generator cannot be re-used by the new one
+        recycleAllContainers();
+        for (UIElement container : this.recyclePool) {
+            container.setParent(null);
+        }
+
+        this.recyclePool.clear();
+    }
+
+    /**
+     * Re-prepares all of the currently realised containers. This should be called
+     * when the item source's items have changed, but the number of items has not
+     */
+    public void refreshItems() {
+        ItemSource source = getItemSource();
+        ItemContainerGenerator generator = getItemGenerator();
+        if (source != null && generator != null) {
+            for (int i = 0, size = this.realised.size(); i < size; i++) {
+                generator.prepareContainer(this.realised.get(i), source.getItem(this.firstRealisedIndex + i), this.firstRealisedIndex + i);
+            }
+        }
+
+        invalidateLayout();
+    }
+
+    @Override
+    public int getVisualChildCount() {
+        return this.realised.size();
+    }
+
+    @Override
+    public UIElement getVisualChild(int index) {
+        return this.realised.get(index);
+    }
+
+    /**
+     * Returns the index of the first realised item, or -1 if no items are realised
+     */
+    public int getFirstRealisedIndex() {
+        return this.realised.isEmpty() ? -1 : this.firstRealisedIndex;
+    }
+
+    /**
+     * Returns the number of containers currently realised
+     */
+    public int getRealisedCount() {
+        return this.realised.size();
+    }
+
+    /**
+     * Returns the realised container for the item at the given index, or null if that item is not realised
+     */
+    public UIElement getContainerForIndex(int index) {
+        int i = index - this.firstRealisedIndex;
+        return i >= 0 && i < this.realised.size() ? this.realised.get(i) : null;
+    }
+
+    /**
+     * Scrolls so that the item at the given index is at the top of the viewport
+     */
+    public void scrollToIndex(int index) {
+        setScrollOffset(Math.max(index, 0) * this.<Double>getValue(ITEM_EXTENT));
+    }
+
+    public ItemSource getItemSource() {
+        return getValue(ITEM_SOURCE);
+    }
+
+    public void setItemSource(ItemSource source) {
+        setValue(ITEM_SOURCE, source);
+    }
+
+    public ItemContainerGenerator getItemGenerator() {
+        return getValue(ITEM_GENERATOR);
+    }
+
+    public void setItemGenerator(ItemContainerGenerator generator) {
+        setValue(ITEM_GENERATOR, generator);
+    }
+
+    public double getScrollOffset() {
+        return getValue(SCROLL_OFFSET);
+    }
+
+    public void setScrollOffset(double offset) {
+        setValue(SCROLL_OFFSET, offset);
+    }
+
+    @Override
+    protected void onLayoutInvalidated() {
+        super.onLayoutInvalidated();
+        if ((getInvalidatedAxes() & LayoutAxes.POSITION) != 0) {
+            return; // the containers are measured every time anyway
+        }
+
+        for (int i = 0, size = this.realised.size(); i < size; i++) {
+            this.realised.get(i).invalidateLayout();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package reghzy.breezeui.core;
+
+import org.joml.Vector2d;
+import reghzy.breezeui.core.properties.DependencyProperty;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
+import reghzy.breezeui.core.properties.framework.FrameworkPropertyMetaFlags;
+import reghzy.breezeui.core.utils.LayoutAxes;
+import reghzy.breezeui.core.utils.Orientation;
+import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.core.utils.Thickness;
+
+import java.util.List;
+
+/**
+ * A panel that arranges its children one after another, and starts a new line whenever a child does not fit on the current one
+ * <p>
+ *     If {@link #ITEM_WIDTH} and/or {@link #ITEM_HEIGHT} are set, every child's slot has that size, so where a child goes
+ *     is known before it is measured. Otherwise, a child that turns out to be too big for the current line is moved
+ *     (not measured again) onto the next line
+ * </p>
+ */
+public class WrapPanel extends Panel {
+    public static final DependencyProperty ORIENTATION = DependencyProperty.register("Orientation", Orientation.class, WrapPanel.class, new FrameworkPropertyMeta(Orientation.Horizontal, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty ITEM_WIDTH =  DependencyProperty.register("ItemWidth", double.class, WrapPanel.class,          new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+    public static final DependencyProperty ITEM_HEIGHT = DependencyProperty.register("ItemHeight", double.class, WrapPanel.class,         new FrameworkPropertyMeta(Double.NaN, FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+
+    public WrapPanel() {
+
+    }
+
+    @Override
+    protected Vector2d arrangeChildren(List<UIElement> children, Rect area) {
+        boolean horizontal = getOrientation() == Orientation.Horizontal;
+        double itemMain = horizontal ? getItemWidth() : getItemHeight();
+        double itemCross = horizontal ? getItemHeight() : getItemWidth();
+        boolean isMainFixed = itemMain > 0d;
+        boolean isCrossFixed = itemCross > 0d;
+
+        double mainStart = horizontal ? area.x : area.y;
+        double mainEnd = mainStart + (horizontal ? area.w : area.h);
+        double crossStart = horizontal ? area.y : area.x;
+        double crossSize = horizontal ? area.h : area.w;
+
+        double main = mainStart;
+        double lineStart = crossStart;
+        double lineExtent = 0d;
+        double mainExtent = 0d;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            UIElement child = children.get(i);
+            Thickness margin = child.getValue(MARGIN);
+            double mainBefore = horizontal ? margin.getLeft() : margin.getTop();
+            double mainAfter = horizontal ? margin.getRight() : margin.getBottom();
+            double crossBefore = horizontal ? margin.getTop() : margin.getLeft();
+            double crossAfter = horizontal ? margin.getBottom() : margin.getRight();
+
+            double slotMain = isMainFixed ? itemMain - mainBefore - mainAfter : getExplicitSize(child, horizontal);
+            boolean isMainKnown = !Double.isNaN(slotMain);
+            if (!isMainKnown) {
+                slotMain = mainEnd - mainStart - mainBefore - mainAfter;
+            }
+
+            double slotCross = isCrossFixed ? itemCross - crossBefore - crossAfter : getExplicitSize(child, !horizontal);
+            if (Double.isNaN(slotCross)) {
+                slotCross = crossSize - crossBefore - crossAfter;
+            }
+
+            slotMain = Math.max(slotMain, 0d);
+            slotCross = Math.max(slotCross, 0d);
+
+            // if the child's size is known up front, it can be put onto the right line straight away
+            if (isMainKnown && main != mainStart && main + mainBefore + slotMain + mainAfter > mainEnd) {
+                lineStart += lineExtent;
+                lineExtent = 0d;
+                main = mainStart;
+            }
+
+            Rect layout = measureChild(child, createSlot(horizontal, main + mainBefore, lineStart + crossBefore, slotMain, slotCross));
+            double outerMain = isMainFixed ? itemMain : mainBefore + getExtent(main + mainBefore, horizontal ? layout.getX2() : layout.getY2()) + mainAfter;
+            if (!isMainKnown && main != mainStart && main + outerMain > mainEnd) {
+                lineStart += lineExtent;
+                lineExtent = 0d;
+                main = mainStart;
+                layout = measureChild(child, createSlot(horizontal, main + mainBefore, lineStart + crossBefore, slotMain, slotCross));
+            }
+
+            double outerCross = isCrossFixed ? itemCross : crossBefore + getExtent(lineStart + crossBefore, horizontal ? layout.getY2() : layout.getX2()) + crossAfter;
+            main += outerMain;
+            mainExtent = Math.max(mainExtent, main - mainStart);
+            lineExtent = Math.max(lineExtent, outerCross);
+        }
+
+        double crossExtent = lineStart + lineExtent - crossStart;
+        return horizontal ? new Vector2d(mainExtent, crossExtent) : new Vector2d(crossExtent, mainExtent);
+    }
+
+    @Override
+    protected int getArrangeAxes(UIElement child, int axes) {
+        if ((axes & LayoutAxes.POSITION) != 0) {
+            return LayoutAxes.BOTH; // its margin may have changed, which changes its slot
+        }
+
+        // a child's size does not affect the arrangement in axes where every slot has a fixed size
+        int relevant = (getItemWidth() > 0d ? LayoutAxes.NONE : LayoutAxes.HORIZONTAL) | (getItemHeight() > 0d ? LayoutAxes.NONE : LayoutAxes.VERTICAL);
+        return (axes & relevant) != 0 ? LayoutAxes.BOTH : LayoutAxes.NONE;
+    }
+
+    private static Rect createSlot(boolean horizontal, double main, double cross, double mainSize, double crossSize) {
+        return horizontal ? new Rect(main, cross, mainSize, crossSize) : new Rect(cross, main, crossSize, mainSize);
+    }
+
+    public Orientation getOrientation() {
+        return getValue(ORIENTATION);
+    }
+
+    public void setOrientation(Orientation orientation) {
+        setValue(ORIENTATION, orientation);
+    }
+
+    public double getItemWidth() {
+        return getValue(ITEM_WIDTH);
+    }
+
+    /**
+     * Sets the width of every child's slot, or NaN to use each child's own width
+     */
+    public void setItemWidth(double width) {
+        setValue(ITEM_WIDTH, width);
+    }
+
+    public double getItemHeight() {
+        return getValue(ITEM_HEIGHT);
+    }
+
+    /**
+     * Sets the height of every child's slot, or NaN to use each child's own height
+     */
+    public void setItemHeight(double height) {
+        setValue(ITEM_HEIGHT, height);
+    }
+}
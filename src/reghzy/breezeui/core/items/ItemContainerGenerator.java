@@ -0,0 +1,32 @@
+package reghzy.breezeui.core.items;
+
+import reghzy.breezeui.core.UIElement;
+
+/**
+ * Creates and prepares the {@link UIElement} containers that present an {@link ItemSource}'s items
+ * <p>
+ *     Containers are recycled, so {@link #prepareContainer(UIElement, Object, int)} may be called
+ *     multiple times for the same container with different items
+ * </p>
+ */
+public interface ItemContainerGenerator {
+    /**
+     * Creates a new, unprepared container
+     */
+    UIElement createContainer();
+
+    /**
+     * Prepares the given container to present the given item
+     * @param container The container, either newly created or recycled
+     * @param item      The item at the given index
+     * @param index     The index of the item in its source
+     */
+    void prepareContainer(UIElement container, Object item, int index);
+
+    /**
+     * Called when a container is no longer presenting an item and has been put back into the recycle pool
+     */
+    default void clearContainer(UIElement container) {
+
+    }
+}
@@ -0,0 +1,21 @@
+package reghzy.breezeui.core.items;
+
+/**
+ * A lightweight, index based source of items for a {@link reghzy.breezeui.core.VirtualizingItemsControl}
+ * <p>
+ *     Items are only requested for indices that are being realised, so an implementation
+ *     may compute or load its items lazily
+ * </p>
+ */
+public interface ItemSource {
+    /**
+     * Returns the total number of items in this source
+     */
+    int getItemCount();
+
+    /**
+     * Returns the item at the given index
+     * @param index The index of the item, between 0 and {@link #getItemCount()} (exclusive)
+     */
+    Object getItem(int index);
+}
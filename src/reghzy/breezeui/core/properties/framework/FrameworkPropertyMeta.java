@@ -3,9 +3,12 @@ package reghzy.breezeui.core.properties.framework;
 import reghzy.breezeui.core.properties.PropertyMeta;
 import reghzy.breezeui.core.properties.CoerceValueCallback;
 import reghzy.breezeui.core.properties.PropertyChangedCallback;
+import reghzy.breezeui.core.utils.LayoutAxes;
 
 public class FrameworkPropertyMeta extends PropertyMeta {
     private static final int DEFAULT_FLAGS = FrameworkPropertyMetaFlags.NONE;
+    private static final int LAYOUT_FLAGS = FrameworkPropertyMetaFlags.AFFECTS_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT |
+                                            FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_POSITION;
 
     private final int flags;
 
@@ -81,7 +84,28 @@ public class FrameworkPropertyMeta extends PropertyMeta {
     }
 
     public boolean canAffectLayout() {
-        return (this.flags & FrameworkPropertyMetaFlags.AFFECTS_LAYOUT) != 0;
+        return (this.flags & LAYOUT_FLAGS) != 0;
+    }
+
+    /**
+     * Returns the {@link LayoutAxes} that this property affects, or {@link LayoutAxes#NONE} if it does not affect layout
+     */
+    public int getLayoutAxes() {
+        int flags = this.flags;
+        int axes = LayoutAxes.NONE;
+        if ((flags & (FrameworkPropertyMetaFlags.AFFECTS_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT)) != 0) {
+            axes |= LayoutAxes.HORIZONTAL;
+        }
+
+        if ((flags & (FrameworkPropertyMetaFlags.AFFECTS_LAYOUT | FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT)) != 0) {
+            axes |= LayoutAxes.VERTICAL;
+        }
+
+        if ((flags & FrameworkPropertyMetaFlags.AFFECTS_POSITION) != 0) {
+            axes = (axes == LayoutAxes.NONE ? LayoutAxes.BOTH : axes) | LayoutAxes.POSITION;
+        }
+
+        return axes;
     }
 
     public boolean canAffectParentLayout() {
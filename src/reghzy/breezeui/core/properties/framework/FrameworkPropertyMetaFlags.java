@@ -7,6 +7,22 @@ public final class FrameworkPropertyMetaFlags {
     public static final int AFFECTS_RENDER = 4;
     public static final int INHERITS = 8;
 
+    /**
+     * Like {@link #AFFECTS_LAYOUT}, but the property only affects the horizontal position and size
+     */
+    public static final int AFFECTS_HORIZONTAL_LAYOUT = 16;
+
+    /**
+     * Like {@link #AFFECTS_LAYOUT}, but the property only affects the vertical position and size
+     */
+    public static final int AFFECTS_VERTICAL_LAYOUT = 32;
+
+    /**
+     * The property affects where the element is placed (in the axes given by the other layout flags, or both axes
+     * if there are none), but not how its children are measured; they are translated if only their position changes
+     */
+    public static final int AFFECTS_POSITION = 64;
+
     private FrameworkPropertyMetaFlags() {
         throw new UnsupportedOperationException();
     }
@@ -0,0 +1,17 @@
+package reghzy.breezeui.core.utils;
+
+/**
+ * How an element's subtree is drawn (see {@link reghzy.breezeui.core.UIElement#CACHE_MODE})
+ */
+public enum CacheMode {
+    /**
+     * Every element in the subtree is drawn into the frame
+     */
+    None,
+
+    /**
+     * The subtree is drawn into an offscreen layer once, and that layer is drawn into the frame until something in
+     * the subtree changes. Anything drawn outside of the element's bounds is clipped
+     */
+    Bitmap
+}
@@ -0,0 +1,57 @@
+package reghzy.breezeui.core.utils;
+
+import java.text.MessageFormat;
+
+public final class GridLength {
+    public static final GridLength AUTO = new GridLength(1d, GridUnitType.Auto);
+    public static final GridLength STAR = new GridLength(1d, GridUnitType.Star);
+
+    private final double value;
+    private final GridUnitType type;
+
+    public GridLength(double pixels) {
+        this(pixels, GridUnitType.Pixel);
+    }
+
+    public GridLength(double value, GridUnitType type) {
+        if (type == null) {
+            throw new IllegalArgumentException("Type cannot be null");
+        }
+
+        if (value < 0d || Maths.isInfOrNaN(value)) {
+            throw new IllegalArgumentException("Value must be a finite non-negative number: " + value);
+        }
+
+        this.value = value;
+        this.type = type;
+    }
+
+    public static GridLength star(double weight) {
+        return new GridLength(weight, GridUnitType.Star);
+    }
+
+    public double getValue() {
+        return this.value;
+    }
+
+    public GridUnitType getType() {
+        return this.type;
+    }
+
+    public boolean isAuto() {
+        return this.type == GridUnitType.Auto;
+    }
+
+    public boolean isStar() {
+        return this.type == GridUnitType.Star;
+    }
+
+    @Override
+    public String toString() {
+        switch (this.type) {
+            case Auto: return "Auto";
+            case Star: return MessageFormat.format("{0}*", this.value);
+            default: return String.valueOf(this.value);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package reghzy.breezeui.core.utils;
+
+public enum GridUnitType {
+    /**
+     * The track is a fixed number of pixels
+     */
+    Pixel,
+
+    /**
+     * The track is as big as the biggest element in it
+     */
+    Auto,
+
+    /**
+     * The track takes a weighted share of the space left over by the pixel and auto tracks
+     */
+    Star
+}
@@ -0,0 +1,38 @@
+package reghzy.breezeui.core.utils;
+
+/**
+ * Flags describing which parts of an element's layout an invalidation affects
+ */
+public final class LayoutAxes {
+    public static final int NONE = 0;
+
+    /**
+     * The element's horizontal position and/or width may change
+     */
+    public static final int HORIZONTAL = 1;
+
+    /**
+     * The element's vertical position and/or height may change
+     */
+    public static final int VERTICAL = 2;
+
+    public static final int BOTH = HORIZONTAL | VERTICAL;
+
+    /**
+     * Combined with the axes; the change does not affect how the element's children are measured, only where the
+     * element is placed (and its size). Its children are not invalidated, and are only measured again if the size
+     * of their slot changes; otherwise they are translated
+     */
+    public static final int POSITION = 4;
+
+    private LayoutAxes() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Combines the changes of two invalidations. The axes are combined, but the result is only position-only if both are
+     */
+    public static int merge(int a, int b) {
+        return ((a | b) & BOTH) | (a & b & POSITION);
+    }
+}
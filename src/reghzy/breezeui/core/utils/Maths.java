@@ -18,4 +18,19 @@ public class Maths {
     public static boolean isInfOrNaN(double value) {
         return Double.isInfinite(value) || Double.isNaN(value);
     }
+
+    /**
+     * Rounds the given value to the nearest device pixel, where there are the given number of device pixels per unit
+     */
+    public static double roundToPixel(double value, double scale) {
+        return Math.rint(value * scale) / scale;
+    }
+
+    /**
+     * Returns whether the given value lies on a device pixel boundary
+     */
+    public static boolean isPixelAligned(double value, double scale) {
+        double pixels = value * scale;
+        return pixels == Math.rint(pixels);
+    }
 }
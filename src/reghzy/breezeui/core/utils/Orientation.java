@@ -0,0 +1,6 @@
+package reghzy.breezeui.core.utils;
+
+public enum Orientation {
+    Horizontal,
+    Vertical
+}
@@ -38,6 +38,29 @@ public class Rect {
                Maths.areClose(this.w, rect.w) && Maths.areClose(this.h, rect.h);
     }
 
+    /**
+     * Returns whether this rect and the given rect overlap. Rects that only touch do not overlap
+     */
+    public boolean intersects(Rect rect) {
+        return this.x < rect.getX2() && rect.x < getX2() && this.y < rect.getY2() && rect.y < getY2();
+    }
+
+    /**
+     * Returns whether the given rect is entirely inside this rect
+     */
+    public boolean contains(Rect rect) {
+        return rect.x >= this.x && rect.y >= this.y && rect.getX2() <= getX2() && rect.getY2() <= getY2();
+    }
+
+    /**
+     * Returns the area where the given rects overlap, or null if they do not overlap
+     */
+    public static Rect intersect(Rect a, Rect b) {
+        double x1 = Math.max(a.x, b.x), y1 = Math.max(a.y, b.y);
+        double x2 = Math.min(a.getX2(), b.getX2()), y2 = Math.min(a.getY2(), b.getY2());
+        return x1 < x2 && y1 < y2 ? new Rect(x1, y1, x2 - x1, y2 - y1) : null;
+    }
+
     public Vector2d getPosition() {
         return new Vector2d(this.x, this.y);
     }
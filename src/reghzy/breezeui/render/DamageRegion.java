@@ -0,0 +1,139 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The areas of a window that need to be drawn again, kept as a small set of rects
+ * <p>
+ *     Overlapping rects are merged as they are added. Once there are more than the maximum number of rects,
+ *     the two rects whose union covers the least extra area are merged, so that the set stays small without
+ *     growing into one rect that covers the whole window (e.g. when two far apart elements change)
+ * </p>
+ */
+public final class DamageRegion {
+    public static final int DEFAULT_MAX_RECTS = 8;
+
+    private final int maxRects;
+    private final ArrayList<Rect> rects;
+    private boolean isFull;
+
+    public DamageRegion() {
+        this(DEFAULT_MAX_RECTS);
+    }
+
+    public DamageRegion(int maxRects) {
+        if (maxRects < 1) {
+            throw new IllegalArgumentException("Max rects must be greater than 0: " + maxRects);
+        }
+
+        this.maxRects = maxRects;
+        this.rects = new ArrayList<Rect>(maxRects + 1);
+    }
+
+    /**
+     * Adds the given area to this region. Empty and non-finite rects are ignored
+     */
+    public void add(Rect rect) {
+        if (this.isFull || rect == null || !(rect.w > 0d) || !(rect.h > 0d) || !Double.isFinite(rect.getX2()) || !Double.isFinite(rect.getY2())) {
+            return;
+        }
+
+        Rect merged = new Rect(rect);
+        for (int i = 0; i < this.rects.size(); i++) {
+            Rect other = this.rects.get(i);
+            if (intersects(merged, other)) {
+                // the union may now overlap rects that were checked already, so start again
+                union(merged, other);
+                this.rects.remove(i);
+                i = -1;
+            }
+        }
+
+        this.rects.add(merged);
+        if (this.rects.size() > this.maxRects) {
+            mergeCheapestPair();
+        }
+    }
+
+    /**
+     * Marks the whole window as damaged
+     */
+    public void addAll() {
+        this.isFull = true;
+        this.rects.clear();
+    }
+
+    private void mergeCheapestPair() {
+        int bestA = 0, bestB = 1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int a = 0; a < this.rects.size(); a++) {
+            Rect ra = this.rects.get(a);
+            for (int b = a + 1; b < this.rects.size(); b++) {
+                Rect rb = this.rects.get(b);
+                double w = Math.max(ra.getX2(), rb.getX2()) - Math.min(ra.x, rb.x);
+                double h = Math.max(ra.getY2(), rb.getY2()) - Math.min(ra.y, rb.y);
+                double cost = w * h - ra.w * ra.h - rb.w * rb.h;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestA = a;
+                    bestB = b;
+                }
+            }
+        }
+
+        Rect merged = this.rects.remove(bestB);
+        union(merged, this.rects.remove(bestA));
+        add(merged);
+    }
+
+    private static boolean intersects(Rect a, Rect b) {
+        return a.x < b.getX2() && b.x < a.getX2() && a.y < b.getY2() && b.y < a.getY2();
+    }
+
+    private static void union(Rect target, Rect other) {
+        double x2 = Math.max(target.getX2(), other.getX2());
+        double y2 = Math.max(target.getY2(), other.getY2());
+        target.x = Math.min(target.x, other.x);
+        target.y = Math.min(target.y, other.y);
+        target.w = x2 - target.x;
+        target.h = y2 - target.y;
+    }
+
+    /**
+     * Returns whether the whole window is damaged, in which case {@link #getRects()} is empty
+     */
+    public boolean isFull() {
+        return this.isFull;
+    }
+
+    public boolean isEmpty() {
+        return !this.isFull && this.rects.isEmpty();
+    }
+
+    /**
+     * Returns the damaged rects, which do not overlap each other
+     */
+    public List<Rect> getRects() {
+        return this.rects;
+    }
+
+    /**
+     * Returns the total area of the damaged rects
+     */
+    public double getArea() {
+        double area = 0d;
+        for (Rect rect : this.rects) {
+            area += rect.w * rect.h;
+        }
+
+        return area;
+    }
+
+    public void clear() {
+        this.isFull = false;
+        this.rects.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package reghzy.breezeui.render;
+
+import java.util.Arrays;
+
+/**
+ * A compact, retained list of the draw commands an element issued during its last render
+ * <p>
+ *     Commands are recorded relative to the element's position, so the list stays valid when the element is
+ *     moved, and only needs recording again when the element's render is invalidated or its size changes.
+ *     Each command is an opcode followed by its operands, all packed into a single float array
+ * </p>
+ */
+public final class DisplayList {
+    // x, y, w, h, r, g, b, a
+    static final int OP_FILL_RECT = 0;
+    // x, y, w, h, radius, r, g, b, a
+    static final int OP_FILL_ROUNDED_RECT = 1;
+
+    private float[] data;
+    private int size;
+    private int commandCount;
+
+    // the size of the element when this list was recorded
+    private double width = Double.NaN;
+    private double height = Double.NaN;
+
+    public DisplayList() {
+        this.data = new float[16];
+    }
+
+    /**
+     * Clears this list, ready to record the commands of an element with the given size
+     */
+    public void begin(double width, double height) {
+        this.size = 0;
+        this.commandCount = 0;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns whether this list was recorded for an element of the given size
+     */
+    public boolean isRecordedFor(double width, double height) {
+        return this.width == width && this.height == height;
+    }
+
+    void addFillRect(float x, float y, float w, float h, float r, float g, float b, float a) {
+        float[] data = ensureCapacity(9);
+        int i = this.size;
+        data[i] = OP_FILL_RECT;
+        data[i + 1] = x;
+        data[i + 2] = y;
+        data[i + 3] = w;
+        data[i + 4] = h;
+        data[i + 5] = r;
+        data[i + 6] = g;
+        data[i + 7] = b;
+        data[i + 8] = a;
+        this.size = i + 9;
+        this.commandCount++;
+    }
+
+    void addFillRoundedRect(float x, float y, float w, float h, float radius, float r, float g, float b, float a) {
+        float[] data = ensureCapacity(10);
+        int i = this.size;
+        data[i] = OP_FILL_ROUNDED_RECT;
+        data[i + 1] = x;
+        data[i + 2] = y;
+        data[i + 3] = w;
+        data[i + 4] = h;
+        data[i + 5] = radius;
+        data[i + 6] = r;
+        data[i + 7] = g;
+        data[i + 8] = b;
+        data[i + 9] = a;
+        this.size = i + 10;
+        this.commandCount++;
+    }
+
+    private float[] ensureCapacity(int count) {
+        if (this.size + count > this.data.length) {
+            this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.size + count));
+        }
+
+        return this.data;
+    }
+
+    float[] getData() {
+        return this.data;
+    }
+
+    /**
+     * Returns the number of floats used in this list's data
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    public int getCommandCount() {
+        return this.commandCount;
+    }
+
+    public boolean isEmpty() {
+        return this.commandCount == 0;
+    }
+}
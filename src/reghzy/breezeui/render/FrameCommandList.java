@@ -0,0 +1,269 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.Arrays;
+
+/**
+ * A backend that records every command of a frame instead of drawing it, so that the frame can be drawn
+ * later (e.g. on a render thread) with {@link #submit(RenderBackend)}
+ * <p>
+ *     Unlike a {@link DisplayList}, which holds one element's commands, this holds a whole frame, including its clears,
+ *     translations and scissor rects. Lists are meant to be reused; beginning a frame clears the last one
+ * </p>
+ * <p>
+ *     Layers cannot be recorded, as they would have to live on the thread that draws the frame, so elements
+ *     that cache their subtree in a layer are drawn in full instead
+ * </p>
+ */
+public final class FrameCommandList implements RenderBackend {
+    private static final int OP_CLEAR_ALL = 0;
+    // x, y, w, h
+    private static final int OP_CLEAR = 1;
+    // x, y
+    private static final int OP_PUSH_TRANSLATE = 2;
+    private static final int OP_POP_TRANSLATE = 3;
+    // x, y, w, h
+    private static final int OP_PUSH_SCISSOR = 4;
+    private static final int OP_POP_SCISSOR = 5;
+    // x, y, w, h, radius, r, g, b, a
+    private static final int OP_FILL_RECT = 6;
+
+    private double[] data;
+    private int size;
+    private int commandCount;
+
+    // the number of translations and scissor rects pushed and not yet popped
+    private int depth;
+
+    private double width;
+    private double height;
+    private double pixelScale = 1d;
+    private boolean isFullFrame;
+
+    public FrameCommandList() {
+        this.data = new double[256];
+    }
+
+    @Override
+    public void beginFrame(double width, double height, double pixelScale) {
+        this.width = width;
+        this.height = height;
+        this.pixelScale = pixelScale;
+        this.size = 0;
+        this.commandCount = 0;
+        this.depth = 0;
+        this.isFullFrame = false;
+    }
+
+    @Override
+    public void endFrame() {
+
+    }
+
+    @Override
+    public void clear(Rect area) {
+        if (area == null) {
+            if (this.depth == 0) {
+                // everything recorded before this would be cleared anyway
+                this.size = 0;
+                this.commandCount = 0;
+                this.isFullFrame = true;
+            }
+
+            add(OP_CLEAR_ALL);
+        }
+        else {
+            add(OP_CLEAR, area.x, area.y, area.w, area.h);
+        }
+    }
+
+    @Override
+    public void pushTranslate(double x, double y) {
+        add(OP_PUSH_TRANSLATE, x, y);
+        this.depth++;
+    }
+
+    @Override
+    public void popTranslate() {
+        add(OP_POP_TRANSLATE);
+        this.depth--;
+    }
+
+    @Override
+    public void pushScissor(Rect rect) {
+        add(OP_PUSH_SCISSOR, rect.x, rect.y, rect.w, rect.h);
+        this.depth++;
+    }
+
+    @Override
+    public void popScissor() {
+        add(OP_POP_SCISSOR);
+        this.depth--;
+    }
+
+    @Override
+    public void fillRect(double x, double y, double w, double h, double radius, float r, float g, float b, float a) {
+        double[] data = ensureCapacity(10);
+        int i = this.size;
+        data[i] = OP_FILL_RECT;
+        data[i + 1] = x;
+        data[i + 2] = y;
+        data[i + 3] = w;
+        data[i + 4] = h;
+        data[i + 5] = radius;
+        data[i + 6] = r;
+        data[i + 7] = g;
+        data[i + 8] = b;
+        data[i + 9] = a;
+        this.size = i + 10;
+        this.commandCount++;
+    }
+
+    @Override
+    public RenderLayer createLayer(int pixelWidth, int pixelHeight) {
+        return null;
+    }
+
+    @Override
+    public void beginLayer(RenderLayer layer, Rect area) {
+        throw new UnsupportedOperationException("Frame command lists cannot record layers");
+    }
+
+    @Override
+    public void endLayer() {
+        throw new UnsupportedOperationException("Frame command lists cannot record layers");
+    }
+
+    @Override
+    public void drawLayer(RenderLayer layer, double x, double y, double w, double h) {
+        throw new UnsupportedOperationException("Frame command lists cannot record layers");
+    }
+
+    @Override
+    public void disposeLayer(RenderLayer layer) {
+        throw new UnsupportedOperationException("Frame command lists cannot record layers");
+    }
+
+    private void add(int op) {
+        ensureCapacity(1)[this.size++] = op;
+        this.commandCount++;
+    }
+
+    private void add(int op, double a, double b) {
+        double[] data = ensureCapacity(3);
+        int i = this.size;
+        data[i] = op;
+        data[i + 1] = a;
+        data[i + 2] = b;
+        this.size = i + 3;
+        this.commandCount++;
+    }
+
+    private void add(int op, double a, double b, double c, double d) {
+        double[] data = ensureCapacity(5);
+        int i = this.size;
+        data[i] = op;
+        data[i + 1] = a;
+        data[i + 2] = b;
+        data[i + 3] = c;
+        data[i + 4] = d;
+        this.size = i + 5;
+        this.commandCount++;
+    }
+
+    private double[] ensureCapacity(int count) {
+        if (this.size + count > this.data.length) {
+            this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.size + count));
+        }
+
+        return this.data;
+    }
+
+    /**
+     * Draws this frame with the given backend, beginning and ending a frame on it
+     */
+    public void submit(RenderBackend target) {
+        target.beginFrame(this.width, this.height, this.pixelScale);
+        try {
+            replay(target);
+        }
+        finally {
+            target.endFrame();
+        }
+    }
+
+    /**
+     * Issues this frame's commands to the given backend, without beginning or ending a frame
+     */
+    public void replay(RenderBackend target) {
+        double[] data = this.data;
+        for (int i = 0, size = this.size; i < size;) {
+            int op = (int) data[i];
+            switch (op) {
+                case OP_CLEAR_ALL:
+                    target.clear(null);
+                    i += 1;
+                    break;
+                case OP_CLEAR:
+                    target.clear(new Rect(data[i + 1], data[i + 2], data[i + 3], data[i + 4]));
+                    i += 5;
+                    break;
+                case OP_PUSH_TRANSLATE:
+                    target.pushTranslate(data[i + 1], data[i + 2]);
+                    i += 3;
+                    break;
+                case OP_POP_TRANSLATE:
+                    target.popTranslate();
+                    i += 1;
+                    break;
+                case OP_PUSH_SCISSOR:
+                    target.pushScissor(new Rect(data[i + 1], data[i + 2], data[i + 3], data[i + 4]));
+                    i += 5;
+                    break;
+                case OP_POP_SCISSOR:
+                    target.popScissor();
+                    i += 1;
+                    break;
+                case OP_FILL_RECT:
+                    target.fillRect(data[i + 1], data[i + 2], data[i + 3], data[i + 4], data[i + 5], (float) data[i + 6], (float) data[i + 7], (float) data[i + 8], (float) data[i + 9]);
+                    i += 10;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown frame command opcode: " + op);
+            }
+        }
+    }
+
+    public double getWidth() {
+        return this.width;
+    }
+
+    public double getHeight() {
+        return this.height;
+    }
+
+    public double getPixelScale() {
+        return this.pixelScale;
+    }
+
+    /**
+     * Returns whether this frame clears and draws the whole target, and therefore does not depend on what was drawn before it
+     */
+    public boolean isFullFrame() {
+        return this.isFullFrame;
+    }
+
+    public int getCommandCount() {
+        return this.commandCount;
+    }
+
+    public boolean isEmpty() {
+        return this.commandCount == 0;
+    }
+
+    @Override
+    public void dispose() {
+
+    }
+}
@@ -0,0 +1,164 @@
+package reghzy.breezeui.render;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands recorded frames from the thread that records them (the producer, e.g. the UI thread) to the thread
+ * that draws them (the consumer, e.g. a {@link RenderThread}), without either thread taking a lock
+ * <p>
+ *     This is a triple buffer: the producer records into one list, the consumer draws another, and the
+ *     third holds the newest published frame. Publishing and taking a frame just swap lists, so the
+ *     producer never waits for the consumer to finish drawing (e.g. while it waits for vsync)
+ * </p>
+ * <p>
+ *     Frames usually only contain the areas that changed, so a published frame must not be replaced before it is
+ *     taken. The producer should check {@link #deferUntilTaken()} before recording; if a frame is still waiting, it
+ *     should keep its damage for later, and the wake-up callback is called once the consumer takes the frame.
+ *     This also paces the producer to the rate the consumer draws at
+ * </p>
+ */
+public final class FrameQueue {
+    private static final int INDEX_MASK = 3;
+
+    // set on the ready index while the frame in it has not been taken
+    private static final int IS_PENDING = 4;
+
+    private final FrameCommandList[] frames;
+
+    // the list holding the newest published frame, OR'd with IS_PENDING
+    private final AtomicInteger ready;
+
+    // only used by the producer and consumer respectively
+    private int writeIndex;
+    private int readIndex;
+
+    private final AtomicBoolean isProducerWaiting;
+    private final Runnable onFrameTaken;
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param onFrameTaken Called (on the consumer's thread) when a frame is taken while the producer is waiting
+     *                     for it to be taken. This should wake the producer up, e.g. by posting an empty event
+     */
+    public FrameQueue(Runnable onFrameTaken) {
+        this.frames = new FrameCommandList[] {new FrameCommandList(), new FrameCommandList(), new FrameCommandList()};
+        this.writeIndex = 0;
+        this.ready = new AtomicInteger(1);
+        this.readIndex = 2;
+        this.isProducerWaiting = new AtomicBoolean();
+        this.onFrameTaken = onFrameTaken;
+    }
+
+    // ------------------------------ Producer ------------------------------
+
+    /**
+     * Returns the list that the next frame should be recorded into. This is only valid until {@link #publish()}
+     */
+    public FrameCommandList getWriteFrame() {
+        return this.frames[this.writeIndex];
+    }
+
+    /**
+     * Publishes the frame recorded into {@link #getWriteFrame()}, and wakes the consumer up if it is waiting for one
+     * @return True if a frame that had not been taken yet was replaced (and therefore never drawn)
+     */
+    public boolean publish() {
+        int previous = this.ready.getAndSet(this.writeIndex | IS_PENDING);
+        this.writeIndex = previous & INDEX_MASK;
+        Thread consumer = this.waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+
+        return (previous & IS_PENDING) != 0;
+    }
+
+    /**
+     * Returns whether a published frame has not been taken by the consumer yet
+     */
+    public boolean hasPendingFrame() {
+        return (this.ready.get() & IS_PENDING) != 0;
+    }
+
+    /**
+     * Returns whether a published frame is still waiting to be taken, in which case the producer should not publish
+     * another. If this returns true, the wake-up callback is called once the consumer takes the frame
+     */
+    public boolean deferUntilTaken() {
+        if (!hasPendingFrame()) {
+            return false;
+        }
+
+        // set the flag before checking again, so that either the consumer sees the flag after taking
+        // the frame, or the frame has already been taken and there is nothing to wait for
+        this.isProducerWaiting.set(true);
+        if (hasPendingFrame()) {
+            return true;
+        }
+
+        this.isProducerWaiting.set(false);
+        return false;
+    }
+
+    // ------------------------------ Consumer ------------------------------
+
+    /**
+     * Takes the newest published frame, or returns null if no frame has been published since the last one was taken.
+     * The returned list belongs to the consumer until the next frame is taken
+     */
+    public FrameCommandList takeFrame() {
+        if ((this.ready.get() & IS_PENDING) == 0) {
+            return null;
+        }
+
+        int previous = this.ready.getAndSet(this.readIndex);
+        this.readIndex = previous & INDEX_MASK;
+        if (this.isProducerWaiting.getAndSet(false) && this.onFrameTaken != null) {
+            this.onFrameTaken.run();
+        }
+
+        return this.frames[this.readIndex];
+    }
+
+    /**
+     * Waits for a frame to be published and takes it
+     * @param timeout The longest time to wait, or 0 to wait until a frame is published or the thread is interrupted
+     * @return The frame, or null if none was published in time or the thread was interrupted
+     */
+    public FrameCommandList awaitFrame(long timeout, TimeUnit unit) {
+        FrameCommandList frame = takeFrame();
+        if (frame != null) {
+            return frame;
+        }
+
+        long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0L;
+        this.waitingConsumer = Thread.currentThread();
+        try {
+            while ((frame = takeFrame()) == null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+
+                if (timeout > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+
+                    LockSupport.parkNanos(this, remaining);
+                }
+                else {
+                    LockSupport.park(this);
+                }
+            }
+
+            return frame;
+        }
+        finally {
+            this.waitingConsumer = null;
+        }
+    }
+}
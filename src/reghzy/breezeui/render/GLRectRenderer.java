@@ -0,0 +1,271 @@
+package reghzy.breezeui.render;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GL31;
+import org.lwjgl.opengl.GL32;
+import org.lwjgl.opengl.GL33;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Draws the rects collected by a {@link RectBatcher}, using one instanced draw call per batch
+ * <p>
+ *     The instances are uploaded into a vertex buffer split into {@link #SEGMENTS} segments, which are used in turn.
+ *     If buffer storage is supported (GL 4.4), the buffer is mapped once and written to directly, and a fence is
+ *     waited on before a segment is reused; otherwise the segment is uploaded with glBufferSubData
+ * </p>
+ */
+public final class GLRectRenderer {
+    private static final int SEGMENTS = 3;
+
+    private static final String VERTEX_SHADER =
+            "#version 150 core\n" +
+            "in vec4 rect;\n" +
+            "in float radius;\n" +
+            "in vec4 colour;\n" +
+            "uniform vec2 viewSize;\n" +
+            "out vec2 localPos;\n" +
+            "out vec2 halfSize;\n" +
+            "out float cornerRadius;\n" +
+            "out vec4 fillColour;\n" +
+            "void main() {\n" +
+            "    vec2 corner = vec2(gl_VertexID & 1, gl_VertexID >> 1);\n" +
+            "    vec2 pos = rect.xy + corner * rect.zw;\n" +
+            "    halfSize = rect.zw * 0.5;\n" +
+            "    localPos = (corner - 0.5) * rect.zw;\n" +
+            "    cornerRadius = min(radius, min(halfSize.x, halfSize.y));\n" +
+            "    fillColour = colour;\n" +
+            "    gl_Position = vec4(pos.x / viewSize.x * 2.0 - 1.0, 1.0 - pos.y / viewSize.y * 2.0, 0.0, 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#version 150 core\n" +
+            "in vec2 localPos;\n" +
+            "in vec2 halfSize;\n" +
+            "in float cornerRadius;\n" +
+            "in vec4 fillColour;\n" +
+            "uniform float pixelScale;\n" +
+            "out vec4 outColour;\n" +
+            "void main() {\n" +
+            "    float alpha = 1.0;\n" +
+            "    if (cornerRadius > 0.0) {\n" +
+            "        vec2 q = abs(localPos) - halfSize + cornerRadius;\n" +
+            "        float dist = length(max(q, 0.0)) + min(max(q.x, q.y), 0.0) - cornerRadius;\n" +
+            "        alpha = clamp(0.5 - dist * pixelScale, 0.0, 1.0);\n" +
+            "    }\n" +
+            "    outColour = vec4(fillColour.rgb, fillColour.a * alpha);\n" +
+            "}\n";
+
+    private final int capacity;
+    private final int program;
+    private final int viewSizeLocation;
+    private final int pixelScaleLocation;
+    private final int vao;
+    private final int vbo;
+    private final int rectAttrib;
+    private final int radiusAttrib;
+    private final int colourAttrib;
+
+    // the persistently mapped buffer, or null if buffer storage is not supported
+    private final ByteBuffer mapped;
+    private final long[] fences;
+    private int segment;
+
+    /**
+     * Creates the renderer's GL objects. This requires a current context that supports instanced arrays
+     * @param capacity The maximum number of instances drawn at once (the capacity of the batcher being drawn)
+     */
+    public GLRectRenderer(int capacity) {
+        this.capacity = capacity;
+        this.program = createProgram();
+        this.viewSizeLocation = GL20.glGetUniformLocation(this.program, "viewSize");
+        this.pixelScaleLocation = GL20.glGetUniformLocation(this.program, "pixelScale");
+        this.rectAttrib = GL20.glGetAttribLocation(this.program, "rect");
+        this.radiusAttrib = GL20.glGetAttribLocation(this.program, "radius");
+        this.colourAttrib = GL20.glGetAttribLocation(this.program, "colour");
+
+        this.vao = GL30.glGenVertexArrays();
+        this.vbo = GL15.glGenBuffers();
+        this.fences = new long[SEGMENTS];
+        GL30.glBindVertexArray(this.vao);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.vbo);
+        long size = (long) capacity * RectBatcher.INSTANCE_SIZE * SEGMENTS;
+        if (isBufferStorageSupported()) {
+            int flags = GL30.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+            GL44.glBufferStorage(GL15.GL_ARRAY_BUFFER, size, flags);
+            this.mapped = GL30.glMapBufferRange(GL15.GL_ARRAY_BUFFER, 0, size, flags);
+        }
+        else {
+            GL15.glBufferData(GL15.GL_ARRAY_BUFFER, size, GL15.GL_STREAM_DRAW);
+            this.mapped = null;
+        }
+
+        GL20.glEnableVertexAttribArray(this.rectAttrib);
+        GL20.glEnableVertexAttribArray(this.radiusAttrib);
+        GL20.glEnableVertexAttribArray(this.colourAttrib);
+        GL33.glVertexAttribDivisor(this.rectAttrib, 1);
+        GL33.glVertexAttribDivisor(this.radiusAttrib, 1);
+        GL33.glVertexAttribDivisor(this.colourAttrib, 1);
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Returns whether the current context supports everything this renderer needs (instanced arrays, from GL 3.3)
+     */
+    public static boolean isSupported() {
+        return GL.getCapabilities().OpenGL33;
+    }
+
+    private static boolean isBufferStorageSupported() {
+        GLCapabilities caps = GL.getCapabilities();
+        return caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+    }
+
+    /**
+     * Draws every batch in the given batcher into the bound framebuffer
+     * @param viewW      The width of the view, in the units the rects are in
+     * @param viewH      The height of the view, in the units the rects are in
+     * @param pixelScale The number of framebuffer pixels per unit
+     */
+    public void draw(RectBatcher batcher, double viewW, double viewH, double pixelScale) {
+        int count = batcher.getInstanceCount();
+        if (count == 0) {
+            return;
+        }
+        else if (count > this.capacity) {
+            throw new IllegalArgumentException("Batcher has more instances than this renderer's capacity: " + count);
+        }
+
+        long base = upload(batcher);
+        GL20.glUseProgram(this.program);
+        GL20.glUniform2f(this.viewSizeLocation, (float) viewW, (float) viewH);
+        GL20.glUniform1f(this.pixelScaleLocation, (float) pixelScale);
+        GL30.glBindVertexArray(this.vao);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.vbo);
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+
+        int fbH = (int) Math.round(viewH * pixelScale);
+        for (int i = 0, batches = batcher.getBatchCount(); i < batches; i++) {
+            int size = batcher.getBatchSize(i);
+            if (size == 0) {
+                continue;
+            }
+
+            Rect scissor = batcher.getBatchScissor(i);
+            if (scissor != null) {
+                int x1 = (int) Math.floor(scissor.x * pixelScale), x2 = (int) Math.ceil(scissor.getX2() * pixelScale);
+                int y1 = (int) Math.floor(scissor.y * pixelScale), y2 = (int) Math.ceil(scissor.getY2() * pixelScale);
+                GL11.glEnable(GL11.GL_SCISSOR_TEST);
+                GL11.glScissor(x1, fbH - y2, x2 - x1, y2 - y1);
+            }
+
+            // the instance attributes start at the batch's first instance, so a plain instanced draw can be used
+            long offset = base + (long) batcher.getBatchFirst(i) * RectBatcher.INSTANCE_SIZE;
+            GL20.glVertexAttribPointer(this.rectAttrib, 4, GL11.GL_FLOAT, false, RectBatcher.INSTANCE_SIZE, offset);
+            GL20.glVertexAttribPointer(this.radiusAttrib, 1, GL11.GL_FLOAT, false, RectBatcher.INSTANCE_SIZE, offset + 16);
+            GL20.glVertexAttribPointer(this.colourAttrib, 4, GL11.GL_UNSIGNED_BYTE, true, RectBatcher.INSTANCE_SIZE, offset + 20);
+            GL31.glDrawArraysInstanced(GL11.GL_TRIANGLE_STRIP, 0, 4, size);
+            if (scissor != null) {
+                GL11.glDisable(GL11.GL_SCISSOR_TEST);
+            }
+        }
+
+        if (this.mapped != null) {
+            this.fences[this.segment] = GL32.glFenceSync(GL32.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        }
+
+        this.segment = (this.segment + 1) % SEGMENTS;
+        GL30.glBindVertexArray(0);
+        GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        GL20.glUseProgram(0);
+    }
+
+    /**
+     * Copies the batcher's instances into the next segment of the buffer
+     * @return The offset of the segment in the buffer
+     */
+    private long upload(RectBatcher batcher) {
+        int bytes = batcher.getInstanceCount() * RectBatcher.INSTANCE_SIZE;
+        long base = (long) this.segment * this.capacity * RectBatcher.INSTANCE_SIZE;
+        ByteBuffer data = batcher.getInstanceData();
+        if (this.mapped != null) {
+            // the segment may still be being read by a previous frame's draw
+            long fence = this.fences[this.segment];
+            if (fence != 0L) {
+                GL32.glClientWaitSync(fence, GL32.GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+                GL32.glDeleteSync(fence);
+                this.fences[this.segment] = 0L;
+            }
+
+            MemoryUtil.memCopy(MemoryUtil.memAddress(data), MemoryUtil.memAddress(this.mapped) + base, bytes);
+        }
+        else {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.vbo);
+            data.limit(bytes).position(0);
+            GL15.glBufferSubData(GL15.GL_ARRAY_BUFFER, base, data);
+            data.clear();
+        }
+
+        return base;
+    }
+
+    private static int createProgram() {
+        int vertex = compileShader(GL20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragment = compileShader(GL20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+        int program = GL20.glCreateProgram();
+        GL20.glAttachShader(program, vertex);
+        GL20.glAttachShader(program, fragment);
+        GL30.glBindFragDataLocation(program, 0, "outColour");
+        GL20.glLinkProgram(program);
+        GL20.glDeleteShader(vertex);
+        GL20.glDeleteShader(fragment);
+        if (GL20.glGetProgrami(program, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            String log = GL20.glGetProgramInfoLog(program);
+            GL20.glDeleteProgram(program);
+            throw new IllegalStateException("Failed to link rect shader: " + log);
+        }
+
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GL20.glCreateShader(type);
+        GL20.glShaderSource(shader, source);
+        GL20.glCompileShader(shader);
+        if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+            String log = GL20.glGetShaderInfoLog(shader);
+            GL20.glDeleteShader(shader);
+            throw new IllegalStateException("Failed to compile rect shader: " + log);
+        }
+
+        return shader;
+    }
+
+    public void dispose() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            if (this.fences[i] != 0L) {
+                GL32.glDeleteSync(this.fences[i]);
+                this.fences[i] = 0L;
+            }
+        }
+
+        if (this.mapped != null) {
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, this.vbo);
+            GL15.glUnmapBuffer(GL15.GL_ARRAY_BUFFER);
+            GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, 0);
+        }
+
+        GL15.glDeleteBuffers(this.vbo);
+        GL30.glDeleteVertexArrays(this.vao);
+        GL20.glDeleteProgram(this.program);
+    }
+}
@@ -0,0 +1,320 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.UIElement;
+import reghzy.breezeui.core.utils.CacheMode;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the layers that the subtrees of cached elements ({@link UIElement#CACHE_MODE}) are drawn into, for one backend
+ * <p>
+ *     Each frame, {@link #update(RenderCuller, List)} draws the layers of the cached elements that are about to be drawn, if
+ *     they are missing or out of date (see {@link UIElement#getLayerVersion()}). The elements are then drawn with their layer
+ *     (see {@link RenderCuller#draw(UIElement, Rect)}), and their descendants are skipped. Elements inside another cached
+ *     element are drawn into that element's layer as usual
+ * </p>
+ * <p>
+ *     The memory used by layers is limited to a budget. When a new layer would not fit, the least recently drawn layers are
+ *     released until it does, except for layers drawn in the same frame (so that layers that cannot all fit do not keep
+ *     releasing each other). Elements whose layers do not fit are not cached, and neither are any while the backend
+ *     cannot draw layers (e.g. a {@link FrameCommandList}); their subtrees are drawn in full
+ * </p>
+ */
+public final class LayerCache {
+    public static final long DEFAULT_BUDGET = 64L * 1024L * 1024L;
+
+    private final RenderBackend backend;
+
+    // in order of last use, least recently used first
+    private final LinkedHashMap<UIElement, Entry> entries;
+    private long budget;
+    private long usedBytes;
+
+    // incremented by each update, so that the layers used in the current frame can be told apart
+    private int frame;
+
+    // reused to draw subtrees into layers
+    private final RenderCuller culler;
+    private final ArrayList<UIElement> level;
+    private final ArrayList<UIElement> nextLevel;
+
+    private long drawCount;
+    private long hitCount;
+    private long evictionCount;
+
+    /**
+     * @param backend The backend that layers are created with and drawn into
+     * @param budget  The most memory (in bytes) that layers can use, assuming 4 bytes per pixel
+     */
+    public LayerCache(RenderBackend backend, long budget) {
+        this.backend = backend;
+        this.budget = budget;
+        this.entries = new LinkedHashMap<UIElement, Entry>(16, 0.75f, true);
+        this.culler = new RenderCuller();
+        this.level = new ArrayList<UIElement>();
+        this.nextLevel = new ArrayList<UIElement>();
+    }
+
+    /**
+     * Sets the most memory (in bytes) that layers can use, releasing the least recently used layers until they fit
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        trim(budget, false);
+    }
+
+    public long getBudget() {
+        return this.budget;
+    }
+
+    /**
+     * Returns the memory (in bytes) used by the layers currently kept
+     */
+    public long getUsedBytes() {
+        return this.usedBytes;
+    }
+
+    /**
+     * Returns the number of layers currently kept
+     */
+    public int getLayerCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the number of times a layer has been drawn (or drawn again)
+     */
+    public long getDrawCount() {
+        return this.drawCount;
+    }
+
+    /**
+     * Returns the number of times a layer was about to be drawn into a frame and was already up to date
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * Returns the number of layers released to stay within the budget
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /**
+     * Returns whether the given element has a layer, even if it is out of date
+     */
+    public boolean hasLayer(UIElement element) {
+        return this.entries.containsKey(element);
+    }
+
+    /**
+     * Returns the given element's layer if it is up to date, or null if the element has to be drawn in full
+     */
+    public RenderLayer getLayer(UIElement element) {
+        Entry entry = this.entries.get(element);
+        return entry != null && entry.isUpToDate(RenderContext.getFramePixelScale()) ? entry.layer : null;
+    }
+
+    /**
+     * Draws the layers of the cached elements that can be seen in any of the given areas of the current frame, if they
+     * are missing or out of date, and releases the layers of elements that are no longer cached. This must be called
+     * before anything else is drawn into the frame
+     * @param culler The culler that the frame is drawn with, which has been begun
+     * @param areas  The areas of the frame about to be drawn
+     */
+    public void update(RenderCuller culler, List<Rect> areas) {
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (!isCacheRoot(entry.element)) {
+                iterator.remove();
+                release(entry);
+            }
+        }
+
+        int frame = ++this.frame;
+        double scale = RenderContext.getFramePixelScale();
+        for (UIElement element : UIElement.getCachedElements()) {
+            if (!isCacheRoot(element) || !isVisible(element, culler, areas)) {
+                continue;
+            }
+
+            Entry entry = this.entries.get(element);
+            if (entry != null && entry.isUpToDate(scale)) {
+                entry.frame = frame;
+                this.hitCount++;
+                continue;
+            }
+
+            Rect bounds = element.getLayoutRect();
+            int pixelWidth = (int) Math.ceil(bounds.w * scale);
+            int pixelHeight = (int) Math.ceil(bounds.h * scale);
+            long bytes = pixelWidth * (long) pixelHeight * 4L;
+            if (entry != null && (entry.layer.getPixelWidth() != pixelWidth || entry.layer.getPixelHeight() != pixelHeight)) {
+                this.entries.remove(element);
+                release(entry);
+                entry = null;
+            }
+
+            if (entry == null) {
+                if (pixelWidth < 1 || pixelHeight < 1 || !trim(this.budget - bytes, true)) {
+                    continue;
+                }
+
+                RenderLayer layer = this.backend.createLayer(pixelWidth, pixelHeight);
+                if (layer == null) {
+                    return; // the backend cannot draw layers
+                }
+
+                entry = new Entry(element, layer, bytes);
+                this.entries.put(element, entry);
+                this.usedBytes += bytes;
+            }
+
+            entry.frame = frame;
+            draw(entry, scale);
+        }
+    }
+
+    /**
+     * Returns whether the given element's subtree should be drawn into its own layer: it is cached and in a
+     * tree, and it is not inside another cached element (in which case it is drawn into that element's layer)
+     */
+    private static boolean isCacheRoot(UIElement element) {
+        if (!element.isValid() || element.getCacheMode() != CacheMode.Bitmap) {
+            return false;
+        }
+
+        for (UIElement parent = element.getParent(); parent != null; parent = parent.getParent()) {
+            if (parent.getCacheMode() == CacheMode.Bitmap) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isVisible(UIElement element, RenderCuller culler, List<Rect> areas) {
+        Rect bounds = element.getLayoutRect();
+        Rect clip = culler.getVisibleClip(element);
+        if (clip == null || !bounds.intersects(clip)) {
+            return false;
+        }
+
+        for (Rect area : areas) {
+            if (bounds.intersects(area)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Draws the subtree of the given entry's element into its layer, in draw order
+     */
+    private void draw(Entry entry, double scale) {
+        UIElement root = entry.element;
+        Rect bounds = new Rect(root.getLayoutRect());
+        RenderCuller culler = this.culler;
+        ArrayList<UIElement> level = this.level;
+        ArrayList<UIElement> next = this.nextLevel;
+        this.backend.beginLayer(entry.layer, bounds);
+        culler.beginSubtree(root, bounds);
+        try {
+            level.add(root);
+            while (!level.isEmpty()) {
+                for (UIElement element : level) {
+                    if (element.isValid()) {
+                        culler.draw(element, bounds);
+                    }
+
+                    if (culler.getChildClip(element) != null) {
+                        for (int i = 0, size = element.getVisualChildCount(); i < size; i++) {
+                            next.add(element.getVisualChild(i));
+                        }
+                    }
+                }
+
+                ArrayList<UIElement> temp = level;
+                level = next;
+                next = temp;
+                next.clear();
+            }
+        }
+        finally {
+            this.level.clear();
+            this.nextLevel.clear();
+            culler.end();
+            this.backend.endLayer();
+        }
+
+        root.onLayerDrawn();
+        entry.version = root.getLayerVersion();
+        entry.pixelScale = scale;
+        entry.isDrawn = true;
+        this.drawCount++;
+    }
+
+    /**
+     * Releases the least recently used layers until they use no more than the given number of bytes
+     * @param isKeepingFrame Whether to stop at the layers used in the current frame, instead of releasing them too
+     * @return True if the layers now use no more than the given number of bytes
+     */
+    private boolean trim(long maxBytes, boolean isKeepingFrame) {
+        for (Iterator<Entry> iterator = this.entries.values().iterator(); this.usedBytes > maxBytes && iterator.hasNext();) {
+            Entry entry = iterator.next();
+            if (isKeepingFrame && entry.frame == this.frame) {
+                break; // every layer after this one was used more recently
+            }
+
+            iterator.remove();
+            release(entry);
+            this.evictionCount++;
+        }
+
+        return this.usedBytes <= maxBytes;
+    }
+
+    private void release(Entry entry) {
+        this.usedBytes -= entry.byteSize;
+        this.backend.disposeLayer(entry.layer);
+    }
+
+    /**
+     * Releases every layer
+     */
+    public void clear() {
+        for (Entry entry : this.entries.values()) {
+            this.backend.disposeLayer(entry.layer);
+        }
+
+        this.entries.clear();
+        this.usedBytes = 0L;
+    }
+
+    private static final class Entry {
+        private final UIElement element;
+        private final RenderLayer layer;
+        private final long byteSize;
+        private boolean isDrawn;
+        private int frame;
+        private int version;
+        private double pixelScale;
+
+        private Entry(UIElement element, RenderLayer layer, long byteSize) {
+            this.element = element;
+            this.layer = layer;
+            this.byteSize = byteSize;
+        }
+
+        private boolean isUpToDate(double pixelScale) {
+            return this.isDrawn && this.version == this.element.getLayerVersion() && this.pixelScale == pixelScale;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package reghzy.breezeui.render;
+
+import org.lwjgl.nanovg.NVGColor;
+import org.lwjgl.nanovg.NVGLUFramebuffer;
+import org.lwjgl.nanovg.NVGPaint;
+import org.lwjgl.system.MemoryStack;
+import reghzy.breezeui.core.ContextLayoutManager;
+import reghzy.breezeui.core.utils.Maths;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.lwjgl.nanovg.NanoVG.nvgBeginFrame;
+import static org.lwjgl.nanovg.NanoVG.nvgBeginPath;
+import static org.lwjgl.nanovg.NanoVG.nvgEndFrame;
+import static org.lwjgl.nanovg.NanoVG.nvgFill;
+import static org.lwjgl.nanovg.NanoVG.NVG_IMAGE_FLIPY;
+import static org.lwjgl.nanovg.NanoVG.NVG_IMAGE_PREMULTIPLIED;
+import static org.lwjgl.nanovg.NanoVG.nvgFillColor;
+import static org.lwjgl.nanovg.NanoVG.nvgFillPaint;
+import static org.lwjgl.nanovg.NanoVG.nvgImagePattern;
+import static org.lwjgl.nanovg.NanoVG.nvgRect;
+import static org.lwjgl.nanovg.NanoVG.nvgRestore;
+import static org.lwjgl.nanovg.NanoVG.nvgRoundedRect;
+import static org.lwjgl.nanovg.NanoVG.nvgSave;
+import static org.lwjgl.nanovg.NanoVG.nvgScissor;
+import static org.lwjgl.nanovg.NanoVG.nvgShapeAntiAlias;
+import static org.lwjgl.nanovg.NanoVG.nvgTranslate;
+import static org.lwjgl.nanovg.NanoVGGL3.NVG_ANTIALIAS;
+import static org.lwjgl.nanovg.NanoVGGL3.nvgCreate;
+import static org.lwjgl.nanovg.NanoVGGL3.nvgDelete;
+import static org.lwjgl.nanovg.NanoVGGL3.nvgluCreateFramebuffer;
+import static org.lwjgl.nanovg.NanoVGGL3.nvgluDeleteFramebuffer;
+import static org.lwjgl.opengl.GL11.GL_COLOR_BUFFER_BIT;
+import static org.lwjgl.opengl.GL11.GL_COLOR_CLEAR_VALUE;
+import static org.lwjgl.opengl.GL11.GL_DEPTH_BUFFER_BIT;
+import static org.lwjgl.opengl.GL11.GL_SCISSOR_TEST;
+import static org.lwjgl.opengl.GL11.GL_STENCIL_BUFFER_BIT;
+import static org.lwjgl.opengl.GL11.GL_VIEWPORT;
+import static org.lwjgl.opengl.GL11.glClear;
+import static org.lwjgl.opengl.GL11.glClearColor;
+import static org.lwjgl.opengl.GL11.glDisable;
+import static org.lwjgl.opengl.GL11.glEnable;
+import static org.lwjgl.opengl.GL11.glGetFloatv;
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL11.glGetIntegerv;
+import static org.lwjgl.opengl.GL11.glScissor;
+import static org.lwjgl.opengl.GL11.glViewport;
+import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER;
+import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER_BINDING;
+import static org.lwjgl.opengl.GL30.glBindFramebuffer;
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * Draws into the bound OpenGL framebuffer using NanoVG (GL3). This requires a current OpenGL context
+ * <p>
+ *     Solid rects can instead be drawn with {@link GLRectRenderer} (see {@link #setRectBatchingEnabled(boolean)})
+ * </p>
+ * <p>
+ *     Layers are NanoVG framebuffers. Drawing into one flushes the frame drawn so far, and then begins
+ *     the frame again afterwards, so layers should be drawn before most of the frame is
+ * </p>
+ */
+public class NanoVGRenderBackend implements RenderBackend {
+    private static volatile boolean isRectBatchingEnabled;
+
+    private final long vg;
+
+    // reused by every fill, so that drawing does not allocate native memory
+    private final NVGColor fillColour;
+    private final NVGPaint layerPaint;
+
+    private final RectBatcher rectBatcher;
+    private GLRectRenderer rectRenderer;
+    private boolean isBatchingRects;
+
+    // the translations pushed so far, summed, so that batched rects and pixel alignment can use absolute positions
+    private double[] translations;
+    private int translationCount;
+    private double translateX;
+    private double translateY;
+
+    // the scissor rects pushed so far, intersected with the ones below them
+    private final ArrayList<Rect> scissors;
+
+    // whether each translation or scissor rect pushed so far (in order) is a scissor rect, so that they can be pushed
+    // again when the NanoVG frame has to be begun again in the middle of the frame
+    private boolean[] isScissorPushed;
+    private int pushCount;
+
+    private double width;
+    private double height;
+    private double pixelScale;
+
+    // the framebuffer, viewport and clear colour to go back to after drawing a layer
+    private boolean isDrawingLayer;
+    private boolean wasBatchingRects;
+    private int frameFramebuffer;
+    private final int[] frameViewport = new int[4];
+    private final float[] frameClearColour = new float[4];
+
+    public NanoVGRenderBackend() {
+        this.vg = nvgCreate(NVG_ANTIALIAS);
+        if (this.vg == NULL) {
+            throw new RuntimeException("Failed to create NVG");
+        }
+
+        this.fillColour = NVGColor.calloc();
+        this.layerPaint = NVGPaint.calloc();
+        this.rectBatcher = new RectBatcher();
+        this.translations = new double[16];
+        this.scissors = new ArrayList<Rect>();
+        this.isScissorPushed = new boolean[16];
+    }
+
+    /**
+     * Enables drawing solid and rounded rects with {@link GLRectRenderer}, which draws every rect in a batch with a
+     * single instanced draw call, instead of with NanoVG (which fills each rect as a separate path). This takes effect
+     * from the next frame, and is ignored if the context does not support instancing
+     * <p>
+     *     Batched rects are drawn before anything drawn with NanoVG in the same frame, which is only correct while
+     *     rects are the only primitives that overlap each other. Layers are the exception: drawing one draws the
+     *     rects batched before it, and then the layer, so that rects drawn after it are drawn above it
+     * </p>
+     */
+    public static void setRectBatchingEnabled(boolean enabled) {
+        isRectBatchingEnabled = enabled;
+    }
+
+    public static boolean isRectBatchingEnabled() {
+        return isRectBatchingEnabled;
+    }
+
+    /**
+     * Returns the NanoVG context handle
+     */
+    public long getHandle() {
+        return this.vg;
+    }
+
+    @Override
+    public void beginFrame(double width, double height, double pixelScale) {
+        this.width = width;
+        this.height = height;
+        this.pixelScale = pixelScale;
+        this.translationCount = 0;
+        this.translateX = this.translateY = 0d;
+        this.scissors.clear();
+        this.pushCount = 0;
+        nvgBeginFrame(this.vg, (float) width, (float) height, (float) pixelScale);
+        if (isRectBatchingEnabled && this.rectRenderer == null && GLRectRenderer.isSupported()) {
+            this.rectRenderer = new GLRectRenderer(this.rectBatcher.getCapacity());
+        }
+
+        this.isBatchingRects = isRectBatchingEnabled && this.rectRenderer != null;
+        this.rectBatcher.setScissor(null);
+    }
+
+    @Override
+    public void endFrame() {
+        try {
+            flushRects();
+        }
+        finally {
+            this.isBatchingRects = false;
+            this.rectBatcher.clear();
+        }
+
+        nvgEndFrame(this.vg);
+    }
+
+    @Override
+    public void clear(Rect area) {
+        if (area == null) {
+            glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
+            return;
+        }
+
+        // the rect is expanded to whole pixels, and GL's Y axis starts at the bottom
+        double scale = this.pixelScale;
+        int fbH = (int) Math.round(this.height * scale);
+        int x1 = (int) Math.floor(area.x * scale), x2 = (int) Math.ceil(area.getX2() * scale);
+        int y1 = (int) Math.floor(area.y * scale), y2 = (int) Math.ceil(area.getY2() * scale);
+        glEnable(GL_SCISSOR_TEST);
+        glScissor(x1, fbH - y2, x2 - x1, y2 - y1);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
+        glDisable(GL_SCISSOR_TEST);
+    }
+
+    @Override
+    public void pushTranslate(double x, double y) {
+        int index = this.translationCount * 2;
+        if (index == this.translations.length) {
+            this.translations = Arrays.copyOf(this.translations, index * 2);
+        }
+
+        this.translations[index] = this.translateX;
+        this.translations[index + 1] = this.translateY;
+        this.translationCount++;
+        this.translateX += x;
+        this.translateY += y;
+        addPush(false);
+        nvgSave(this.vg);
+        nvgTranslate(this.vg, (float) x, (float) y);
+    }
+
+    @Override
+    public void popTranslate() {
+        int index = --this.translationCount * 2;
+        this.translateX = this.translations[index];
+        this.translateY = this.translations[index + 1];
+        this.pushCount--;
+        nvgRestore(this.vg);
+    }
+
+    @Override
+    public void pushScissor(Rect rect) {
+        // nested scissors clip to the intersection
+        if (!this.scissors.isEmpty()) {
+            Rect outer = this.scissors.get(this.scissors.size() - 1);
+            Rect clip = Rect.intersect(outer, rect);
+            rect = clip != null ? clip : new Rect(outer.x, outer.y, 0d, 0d);
+        }
+
+        this.scissors.add(rect);
+        addPush(true);
+
+        // NanoVG transforms the scissor by the current translation, but the rect is absolute
+        nvgSave(this.vg);
+        nvgScissor(this.vg, (float) (rect.x - this.translateX), (float) (rect.y - this.translateY), (float) rect.w, (float) rect.h);
+        this.rectBatcher.setScissor(rect);
+    }
+
+    @Override
+    public void popScissor() {
+        nvgRestore(this.vg);
+        this.pushCount--;
+        this.scissors.remove(this.scissors.size() - 1);
+        this.rectBatcher.setScissor(this.scissors.isEmpty() ? null : this.scissors.get(this.scissors.size() - 1));
+    }
+
+    private void addPush(boolean isScissor) {
+        if (this.pushCount == this.isScissorPushed.length) {
+            this.isScissorPushed = Arrays.copyOf(this.isScissorPushed, this.pushCount * 2);
+        }
+
+        this.isScissorPushed[this.pushCount++] = isScissor;
+    }
+
+    /**
+     * Pushes every translation and scissor rect that is currently pushed onto NanoVG's state again, in the order
+     * they were pushed, after the NanoVG frame has been begun again
+     */
+    private void restorePushes() {
+        long vg = this.vg;
+        int translation = 0, scissor = 0;
+        double x = 0d, y = 0d;
+        for (int i = 0; i < this.pushCount; i++) {
+            nvgSave(vg);
+            if (this.isScissorPushed[i]) {
+                Rect rect = this.scissors.get(scissor++);
+                nvgScissor(vg, (float) (rect.x - x), (float) (rect.y - y), (float) rect.w, (float) rect.h);
+            }
+            else {
+                // each entry is the translation before a push, so the one after it is the translation it pushed to
+                int next = ++translation * 2;
+                double nextX = translation < this.translationCount ? this.translations[next] : this.translateX;
+                double nextY = translation < this.translationCount ? this.translations[next + 1] : this.translateY;
+                nvgTranslate(vg, (float) (nextX - x), (float) (nextY - y));
+                x = nextX;
+                y = nextY;
+            }
+        }
+    }
+
+    @Override
+    public void fillRect(double x, double y, double w, double h, double radius, float r, float g, float b, float a) {
+        if (this.isBatchingRects) {
+            double absX = this.translateX + x, absY = this.translateY + y;
+            if (!this.rectBatcher.add(absX, absY, w, h, radius, r, g, b, a)) {
+                flushRects();
+                this.rectBatcher.add(absX, absY, w, h, radius, r, g, b, a);
+            }
+
+            return;
+        }
+
+        // the edges are exactly on pixels, so anti-aliasing them would only cost fill time
+        long vg = this.vg;
+        boolean isAliased = radius <= 0d && isPixelAligned(this.translateX + x, this.translateY + y, w, h);
+        if (isAliased) {
+            nvgShapeAntiAlias(vg, false);
+        }
+
+        NVGColor colour = this.fillColour;
+        colour.r(r);
+        colour.g(g);
+        colour.b(b);
+        colour.a(a);
+        nvgBeginPath(vg);
+        nvgFillColor(vg, colour);
+        if (radius > 0d) {
+            nvgRoundedRect(vg, (float) x, (float) y, (float) w, (float) h, (float) radius);
+        }
+        else {
+            nvgRect(vg, (float) x, (float) y, (float) w, (float) h);
+        }
+
+        nvgFill(vg);
+        if (isAliased) {
+            nvgShapeAntiAlias(vg, true);
+        }
+    }
+
+    /**
+     * Returns whether the edges of the given rect lie exactly on device pixels. This is only
+     * checked when layout rounding is enabled, as layouts are rarely aligned otherwise
+     */
+    private static boolean isPixelAligned(double x, double y, double w, double h) {
+        if (!ContextLayoutManager.isLayoutRounding()) {
+            return false;
+        }
+
+        double scale = ContextLayoutManager.getLayoutScale();
+        return Maths.isPixelAligned(x, scale) && Maths.isPixelAligned(y, scale) &&
+               Maths.isPixelAligned(x + w, scale) && Maths.isPixelAligned(y + h, scale);
+    }
+
+    /**
+     * Draws the rects batched so far
+     */
+    private void flushRects() {
+        if (!this.rectBatcher.isEmpty()) {
+            this.rectRenderer.draw(this.rectBatcher, this.width, this.height, this.pixelScale);
+            this.rectBatcher.clear();
+        }
+    }
+
+    @Override
+    public RenderLayer createLayer(int pixelWidth, int pixelHeight) {
+        NVGLUFramebuffer framebuffer = nvgluCreateFramebuffer(this.vg, pixelWidth, pixelHeight, NVG_IMAGE_FLIPY | NVG_IMAGE_PREMULTIPLIED);
+        return framebuffer != null ? new NanoVGLayer(framebuffer, pixelWidth, pixelHeight) : null;
+    }
+
+    @Override
+    public void beginLayer(RenderLayer layer, Rect area) {
+        if (this.isDrawingLayer || this.translationCount != 0 || !this.scissors.isEmpty()) {
+            throw new IllegalStateException("Layers cannot be begun while drawing a layer, or while translations or scissor rects are pushed");
+        }
+
+        // NanoVG cannot draw into two targets at once, so the frame so far is flushed
+        flushRects();
+        nvgEndFrame(this.vg);
+        this.frameFramebuffer = glGetInteger(GL_FRAMEBUFFER_BINDING);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer viewport = stack.mallocInt(4);
+            FloatBuffer clearColour = stack.mallocFloat(4);
+            glGetIntegerv(GL_VIEWPORT, viewport);
+            glGetFloatv(GL_COLOR_CLEAR_VALUE, clearColour);
+            viewport.get(this.frameViewport);
+            clearColour.get(this.frameClearColour);
+        }
+
+        NanoVGLayer target = (NanoVGLayer) layer;
+        glBindFramebuffer(GL_FRAMEBUFFER, target.framebuffer.fbo());
+        glViewport(0, 0, target.pixelWidth, target.pixelHeight);
+        glClearColor(0f, 0f, 0f, 0f);
+        glClear(GL_COLOR_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
+        float[] clear = this.frameClearColour;
+        glClearColor(clear[0], clear[1], clear[2], clear[3]);
+
+        // batched rects are drawn in frame units, so layers draw every rect with NanoVG
+        this.isDrawingLayer = true;
+        this.wasBatchingRects = this.isBatchingRects;
+        this.isBatchingRects = false;
+        double scale = this.pixelScale;
+        nvgBeginFrame(this.vg, (float) (target.pixelWidth / scale), (float) (target.pixelHeight / scale), (float) scale);
+        nvgTranslate(this.vg, (float) -area.x, (float) -area.y);
+    }
+
+    @Override
+    public void endLayer() {
+        if (!this.isDrawingLayer) {
+            throw new IllegalStateException("No layer is being drawn");
+        }
+
+        nvgEndFrame(this.vg);
+        int[] viewport = this.frameViewport;
+        glBindFramebuffer(GL_FRAMEBUFFER, this.frameFramebuffer);
+        glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        this.isDrawingLayer = false;
+        this.isBatchingRects = this.wasBatchingRects;
+        this.translationCount = 0;
+        this.translateX = this.translateY = 0d;
+        this.scissors.clear();
+        this.pushCount = 0;
+        nvgBeginFrame(this.vg, (float) this.width, (float) this.height, (float) this.pixelScale);
+    }
+
+    @Override
+    public void drawLayer(RenderLayer layer, double x, double y, double w, double h) {
+        // batched rects are drawn when the frame ends, after everything drawn with NanoVG, so the rects batched
+        // so far are drawn first, and the layer is drawn before any more are batched (which go above it)
+        long vg = this.vg;
+        flushRects();
+        NVGPaint paint = nvgImagePattern(vg, (float) x, (float) y, (float) w, (float) h, 0f, ((NanoVGLayer) layer).framebuffer.image(), 1f, this.layerPaint);
+        nvgBeginPath(vg);
+        nvgRect(vg, (float) x, (float) y, (float) w, (float) h);
+        nvgFillPaint(vg, paint);
+        nvgFill(vg);
+        if (this.isBatchingRects) {
+            nvgEndFrame(vg);
+            nvgBeginFrame(vg, (float) this.width, (float) this.height, (float) this.pixelScale);
+            restorePushes();
+        }
+    }
+
+    @Override
+    public void disposeLayer(RenderLayer layer) {
+        nvgluDeleteFramebuffer(this.vg, ((NanoVGLayer) layer).framebuffer);
+    }
+
+    @Override
+    public void dispose() {
+        if (this.rectRenderer != null) {
+            this.rectRenderer.dispose();
+            this.rectRenderer = null;
+        }
+
+        nvgDelete(this.vg);
+        this.fillColour.free();
+        this.layerPaint.free();
+    }
+
+    private static final class NanoVGLayer implements RenderLayer {
+        private final NVGLUFramebuffer framebuffer;
+        private final int pixelWidth;
+        private final int pixelHeight;
+
+        private NanoVGLayer(NVGLUFramebuffer framebuffer, int pixelWidth, int pixelHeight) {
+            this.framebuffer = framebuffer;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        @Override
+        public int getPixelWidth() {
+            return this.pixelWidth;
+        }
+
+        @Override
+        public int getPixelHeight() {
+            return this.pixelHeight;
+        }
+    }
+}
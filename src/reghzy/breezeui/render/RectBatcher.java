@@ -0,0 +1,176 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Collects solid (and rounded) rects into instance data that can be drawn with a single instanced draw per batch
+ * <p>
+ *     This class does not use OpenGL; it only packs the instances and splits them into batches, which is done whenever
+ *     the scissor rect changes. Once it is full, {@link #add(double, double, double, double, double, float, float, float, float)}
+ *     returns false, and the instances must be drawn (e.g. by {@link GLRectRenderer}) and cleared before adding more
+ * </p>
+ * <p>
+ *     Each instance is {@link #INSTANCE_SIZE} bytes: the rect (x, y, w, h) and corner radius as floats, followed
+ *     by the colour as 4 unsigned, normalised bytes (r, g, b, a)
+ * </p>
+ */
+public final class RectBatcher {
+    public static final int INSTANCE_SIZE = 24;
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int capacity;
+    private final ByteBuffer data;
+    private int count;
+
+    // each batch's first instance and scissor rect (x, y, w, h; NaN width for no scissor)
+    private int[] batchFirst;
+    private double[] batchScissor;
+    private int batchCount;
+
+    private Rect scissor;
+    private boolean isScissorChanged;
+
+    public RectBatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RectBatcher(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be greater than 0: " + capacity);
+        }
+
+        this.capacity = capacity;
+        this.data = ByteBuffer.allocateDirect(capacity * INSTANCE_SIZE).order(ByteOrder.nativeOrder());
+        this.batchFirst = new int[8];
+        this.batchScissor = new double[8 * 4];
+    }
+
+    /**
+     * Sets the rect that instances added from now on are clipped to, or null to not clip them. This starts a new batch
+     */
+    public void setScissor(Rect scissor) {
+        if (scissor == null ? this.scissor != null : (this.scissor == null || !scissor.isCloseTo(this.scissor))) {
+            this.scissor = scissor == null ? null : new Rect(scissor);
+            this.isScissorChanged = true;
+        }
+    }
+
+    public Rect getScissor() {
+        return this.scissor;
+    }
+
+    /**
+     * Adds a rect instance
+     * @return True if it was added, or false if this batcher is full
+     */
+    public boolean add(double x, double y, double w, double h, double radius, float r, float g, float b, float a) {
+        if (this.count == this.capacity) {
+            return false;
+        }
+
+        if (this.batchCount == 0 || this.isScissorChanged) {
+            beginBatch();
+        }
+
+        ByteBuffer data = this.data;
+        int offset = this.count * INSTANCE_SIZE;
+        data.putFloat(offset, (float) x);
+        data.putFloat(offset + 4, (float) y);
+        data.putFloat(offset + 8, (float) w);
+        data.putFloat(offset + 12, (float) h);
+        data.putFloat(offset + 16, (float) radius);
+        data.put(offset + 20, toByte(r));
+        data.put(offset + 21, toByte(g));
+        data.put(offset + 22, toByte(b));
+        data.put(offset + 23, toByte(a));
+        this.count++;
+        return true;
+    }
+
+    private void beginBatch() {
+        this.isScissorChanged = false;
+        int index = this.batchCount;
+        if (index > 0 && this.batchFirst[index - 1] == this.count) {
+            index--; // the last batch is empty, so it can be reused
+        }
+        else if (index == this.batchFirst.length) {
+            this.batchFirst = Arrays.copyOf(this.batchFirst, index * 2);
+            this.batchScissor = Arrays.copyOf(this.batchScissor, index * 2 * 4);
+        }
+
+        Rect scissor = this.scissor;
+        this.batchFirst[index] = this.count;
+        this.batchScissor[index * 4] = scissor != null ? scissor.x : 0d;
+        this.batchScissor[index * 4 + 1] = scissor != null ? scissor.y : 0d;
+        this.batchScissor[index * 4 + 2] = scissor != null ? scissor.w : Double.NaN;
+        this.batchScissor[index * 4 + 3] = scissor != null ? scissor.h : 0d;
+        this.batchCount = index + 1;
+    }
+
+    private static byte toByte(float value) {
+        return (byte) Math.round(Math.max(0f, Math.min(value, 1f)) * 255f);
+    }
+
+    /**
+     * Clears the instances and batches. The scissor rect is kept, and applies to the next batch
+     */
+    public void clear() {
+        this.count = 0;
+        this.batchCount = 0;
+        this.isScissorChanged = true;
+    }
+
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of instances that have been added
+     */
+    public int getInstanceCount() {
+        return this.count;
+    }
+
+    /**
+     * Returns the instance data. The first {@link #getInstanceCount()} * {@link #INSTANCE_SIZE} bytes are valid
+     */
+    public ByteBuffer getInstanceData() {
+        return this.data;
+    }
+
+    public int getBatchCount() {
+        return this.batchCount;
+    }
+
+    /**
+     * Returns the index of the given batch's first instance
+     */
+    public int getBatchFirst(int batch) {
+        return this.batchFirst[batch];
+    }
+
+    /**
+     * Returns the number of instances in the given batch
+     */
+    public int getBatchSize(int batch) {
+        int end = batch + 1 < this.batchCount ? this.batchFirst[batch + 1] : this.count;
+        return end - this.batchFirst[batch];
+    }
+
+    /**
+     * Returns the rect the given batch is clipped to, or null if it is not clipped
+     */
+    public Rect getBatchScissor(int batch) {
+        double[] s = this.batchScissor;
+        int i = batch * 4;
+        return Double.isNaN(s[i + 2]) ? null : new Rect(s[i], s[i + 1], s[i + 2], s[i + 3]);
+    }
+}
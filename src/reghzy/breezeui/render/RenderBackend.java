@@ -0,0 +1,78 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.utils.Rect;
+
+/**
+ * Draws the primitives issued through a {@link RenderContext} into some target
+ * <p>
+ *     Coordinates are in layout units, relative to the current translation. Translations and scissor rects
+ *     are pushed and popped in pairs, and scissor rects are in absolute layout units (they ignore the translation)
+ * </p>
+ * @see NanoVGRenderBackend
+ * @see SoftwareRenderBackend
+ */
+public interface RenderBackend {
+    /**
+     * Begins a frame
+     * @param width      The width of the frame, in layout units
+     * @param height     The height of the frame, in layout units
+     * @param pixelScale The number of device pixels per layout unit
+     */
+    void beginFrame(double width, double height, double pixelScale);
+
+    /**
+     * Ends the frame, making sure everything drawn in it has reached the target
+     */
+    void endFrame();
+
+    /**
+     * Clears the given area of the target, or all of it if the rect is null
+     */
+    void clear(Rect area);
+
+    void pushTranslate(double x, double y);
+
+    void popTranslate();
+
+    /**
+     * Clips everything drawn until {@link #popScissor()} to the given rect
+     */
+    void pushScissor(Rect rect);
+
+    void popScissor();
+
+    /**
+     * Fills a rect with a solid colour (non-premultiplied)
+     * @param radius The radius of the rect's corners, or 0 for square corners
+     */
+    void fillRect(double x, double y, double w, double h, double radius, float r, float g, float b, float a);
+
+    /**
+     * Creates a layer of the given size, in device pixels
+     * @return The layer, or null if this backend cannot draw into layers
+     */
+    RenderLayer createLayer(int pixelWidth, int pixelHeight);
+
+    /**
+     * Draws everything until {@link #endLayer()} into the given layer (cleared to transparent) instead of the frame
+     * <p>
+     *     The layer covers the given area of the frame, so primitives and scissor rects are positioned as they would be in
+     *     the frame. This must be called during a frame, while no translations or scissor rects are pushed
+     * </p>
+     */
+    void beginLayer(RenderLayer layer, Rect area);
+
+    void endLayer();
+
+    /**
+     * Draws the given layer into the frame, stretched over the given rect
+     */
+    void drawLayer(RenderLayer layer, double x, double y, double w, double h);
+
+    void disposeLayer(RenderLayer layer);
+
+    /**
+     * Releases any resources this backend holds
+     */
+    void dispose();
+}
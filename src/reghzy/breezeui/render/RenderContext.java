@@ -1,31 +1,16 @@
 package reghzy.breezeui.render;
 
-import org.joml.Matrix4d;
 import org.joml.Vector2d;
-import org.joml.Vector4fc;
 import org.lwjgl.nanovg.NVGColor;
-import org.lwjgl.nanovg.NanoVG;
-import org.lwjgl.nanovg.NanoVGGL3;
-import org.lwjgl.opengl.GL11;
 import reghzy.breezeui.core.UIElement;
 import reghzy.breezeui.core.utils.Rect;
 import reghzy.breezeui.utils.Colour;
 import reghzy.breezeui.window.Window;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Stack;
 
-import static org.lwjgl.nanovg.NanoVG.nvgBeginPath;
-import static org.lwjgl.nanovg.NanoVG.nvgEndFrame;
-import static org.lwjgl.nanovg.NanoVG.nvgFill;
-import static org.lwjgl.nanovg.NanoVG.nvgFillColor;
-import static org.lwjgl.nanovg.NanoVG.nvgRect;
-import static org.lwjgl.nanovg.NanoVG.nvgRestore;
-import static org.lwjgl.nanovg.NanoVG.nvgSave;
-import static org.lwjgl.nanovg.NanoVG.nvgTransformPoint;
-import static org.lwjgl.nanovg.NanoVG.nvgTranslate;
-import static org.lwjgl.nanovg.NanoVGGL3.NVG_ANTIALIAS;
-import static org.lwjgl.nanovg.NanoVGGL3.nvgCreate;
-import static org.lwjgl.nanovg.NanoVGGL3.nvgDelete;
 import static org.lwjgl.opengl.GL11.GL_BLEND;
 import static org.lwjgl.opengl.GL11.GL_DEPTH_TEST;
 import static org.lwjgl.opengl.GL11.GL_ONE_MINUS_SRC_ALPHA;
@@ -33,25 +18,95 @@ import static org.lwjgl.opengl.GL11.GL_SRC_ALPHA;
 import static org.lwjgl.opengl.GL11.glBlendFunc;
 import static org.lwjgl.opengl.GL11.glDisable;
 import static org.lwjgl.opengl.GL11.glEnable;
-import static org.lwjgl.system.MemoryUtil.NULL;
 
+/**
+ * Issues draw commands for an element, either into the element's {@link DisplayList} or straight to the
+ * {@link RenderBackend} of the frame being drawn
+ * <p>
+ *     Windows are drawn with a {@link NanoVGRenderBackend}, which is created when the first window frame begins (as it
+ *     needs an OpenGL context). Other backends, such as a {@link SoftwareRenderBackend}, can be drawn into with
+ *     {@link #beginRender(RenderBackend, double, double, double)}, which does not need a window or a GPU
+ * </p>
+ * <p>
+ *     Frames drawn into windows cache the subtrees of cached elements ({@link UIElement#CACHE_MODE}) in a {@link LayerCache}
+ *     (see {@link #setLayerCacheBudget(long)}). Other frames only do so when given a layer cache for their backend
+ * </p>
+ */
 public class RenderContext {
     private final UIElement element;
     private final Vector2d offset;
 
-    private static final long VG;
+    // the list that draw commands are recorded into, or null if they are drawn immediately
+    private final DisplayList displayList;
 
     private static Stack<Window> WINDOW_FRAMES = new Stack<Window>();
 
     private static Window ACTIVE_WINDOW;
 
+    // the backend that windows are drawn with, and the backend of the frame currently being drawn
+    private static NanoVGRenderBackend WINDOW_BACKEND;
+    private static RenderBackend BACKEND;
+    private static boolean IS_WINDOW_FRAME;
+
+    // the bounds of the frame currently being drawn, in layout units
+    private static Rect FRAME_BOUNDS;
+    private static double FRAME_PIXEL_SCALE;
+
+    // the layers of the window backend, and the layers of the frame currently being drawn (if any)
+    private static long WINDOW_LAYER_CACHE_BUDGET = LayerCache.DEFAULT_BUDGET;
+    private static LayerCache WINDOW_LAYER_CACHE;
+    private static LayerCache LAYER_CACHE;
+
+    private static volatile RenderStatistics STATISTICS;
+    private static RenderStatistics FRAME_STATISTICS;
+    private static final RenderCuller TREE_CULLER = new RenderCuller();
+
+    // the GL state last set by this class, so that it is only changed when it needs to be. NanoVG's flush
+    // enables blending and disables depth testing too, which matches the state set in beginRender
+    private static boolean IS_BLEND_ENABLED;
+    private static boolean IS_DEPTH_TEST_ENABLED = true;
+
+    /**
+     * Creates a render context for the given element, which draws straight into the current frame. The element's
+     * offset is applied to the backend here (once per element, rather than once per primitive) until this context is closed
+     */
     public RenderContext(UIElement element, Vector2d layoutOffset) {
         this.element = element;
         this.offset = layoutOffset;
+        this.displayList = null;
+        getBackend().pushTranslate(layoutOffset.x, layoutOffset.y);
+    }
+
+    /**
+     * Creates a render context that records the given element's draw commands into the given display list (which
+     * should already have been begun), instead of drawing them. The list can then be drawn with {@link #replay(DisplayList, double, double)}
+     */
+    public RenderContext(UIElement element, DisplayList displayList) {
+        this.element = element;
+        this.offset = null;
+        this.displayList = displayList;
+        RenderStatistics statistics = FRAME_STATISTICS;
+        if (statistics != null) {
+            statistics.onRecorded();
+        }
+    }
+
+    /**
+     * Returns whether this context records draw commands into a display list instead of drawing them
+     */
+    public boolean isRecording() {
+        return this.displayList != null;
     }
 
     public static NVGColor createNVGColour(Colour colour) {
-        NVGColor color = NVGColor.calloc();
+        return setNVGColour(NVGColor.calloc(), colour);
+    }
+
+    /**
+     * Writes the given colour into the given NanoVG colour
+     * @return The given NanoVG colour
+     */
+    public static NVGColor setNVGColour(NVGColor color, Colour colour) {
         color.r(colour.r);
         color.g(colour.g);
         color.b(colour.b);
@@ -62,20 +117,161 @@ public class RenderContext {
     // ------------------------------ Rendering functions ------------------------------
 
     public void drawRect(Rect rect, Colour colour) {
-        // GL11.glPushMatrix();
-        // GL11.glTranslatef(25f, 0.5f, 0f);
+        drawRect(rect.x, rect.y, rect.w, rect.h, colour);
+    }
+
+    public void drawRect(double x, double y, double w, double h, Colour colour) {
+        if (this.displayList != null) {
+            this.displayList.addFillRect((float) x, (float) y, (float) w, (float) h, colour.r, colour.g, colour.b, colour.a);
+        }
+        else {
+            getBackend().fillRect(x, y, w, h, 0d, colour.r, colour.g, colour.b, colour.a);
+        }
+    }
+
+    public void drawRoundedRect(double x, double y, double w, double h, double radius, Colour colour) {
+        if (this.displayList != null) {
+            this.displayList.addFillRoundedRect((float) x, (float) y, (float) w, (float) h, (float) radius, colour.r, colour.g, colour.b, colour.a);
+        }
+        else {
+            getBackend().fillRect(x, y, w, h, radius, colour.r, colour.g, colour.b, colour.a);
+        }
+    }
+
+    /**
+     * Draws the commands in the given display list into the current frame, with the given offset applied to them
+     */
+    public static void replay(DisplayList list, double offsetX, double offsetY) {
+        RenderStatistics statistics = FRAME_STATISTICS;
+        if (statistics != null) {
+            statistics.onDrawn();
+        }
 
+        if (list.isEmpty()) {
+            return;
+        }
+
+        RenderBackend backend = getBackend();
+        backend.pushTranslate(offsetX, offsetY);
+        float[] data = list.getData();
+        for (int i = 0, size = list.getSize(); i < size;) {
+            int op = (int) data[i];
+            if (op == DisplayList.OP_FILL_RECT) {
+                backend.fillRect(data[i + 1], data[i + 2], data[i + 3], data[i + 4], 0d, data[i + 5], data[i + 6], data[i + 7], data[i + 8]);
+                i += 9;
+            }
+            else if (op == DisplayList.OP_FILL_ROUNDED_RECT) {
+                backend.fillRect(data[i + 1], data[i + 2], data[i + 3], data[i + 4], data[i + 5], data[i + 6], data[i + 7], data[i + 8], data[i + 9]);
+                i += 10;
+            }
+            else {
+                throw new IllegalStateException("Unknown display list opcode: " + op);
+            }
+        }
+
+        backend.popTranslate();
+    }
+
+    /**
+     * Clips everything drawn until {@link #popScissor()} to the given rect, in window units
+     */
+    public static void pushScissor(Rect rect) {
+        getBackend().pushScissor(rect);
+    }
+
+    public static void popScissor() {
+        getBackend().popScissor();
+    }
+
+    /**
+     * Clears the given area of the current frame, or all of it if the rect is null
+     */
+    public static void clear(Rect area) {
+        getBackend().clear(area);
+    }
+
+    /**
+     * Draws the given element and all of its visual descendants into the current frame, in draw order (every element
+     * at one depth before the next depth, and in the order they appear in their parents). This is mainly useful for
+     * drawing into a headless backend, as windows only draw the areas that changed
+     * <p>
+     *     Elements outside of the frame or their ancestors' clip are culled, along with the subtrees of elements that clip
+     *     their children to an area that cannot be seen
+     * </p>
+     * <p>
+     *     If the frame has a layer cache, the subtrees of cached elements are drawn with their layers. Layers are only drawn
+     *     again once they are invalidated by {@link UIElement#addDamage(DamageRegion)}, which windows call for each element in
+     *     the render queue; callers drawing trees themselves should do the same before each frame
+     * </p>
+     */
+    public static void drawTree(UIElement root) {
+        Rect viewport = FRAME_BOUNDS;
+        RenderCuller culler = TREE_CULLER;
+        culler.begin(viewport);
+        ArrayList<UIElement> level = new ArrayList<UIElement>();
+        ArrayList<UIElement> next = new ArrayList<UIElement>();
+        level.add(root);
+        try {
+            if (LAYER_CACHE != null) {
+                LAYER_CACHE.update(culler, Collections.singletonList(viewport));
+            }
 
-        try (NVGColor fillColor = createNVGColour(colour)) {
-            nvgSave(VG);
-            nvgTranslate(VG, (float) this.offset.x, (float) this.offset.y);
-            nvgBeginPath(VG);
-            nvgFillColor(VG, fillColor);
-            nvgRect(VG, (float) (rect.x), (float) (rect.y), (float) rect.w, (float) rect.h);
-            nvgFill(VG);
-            nvgRestore(VG);
+            while (!level.isEmpty()) {
+                for (UIElement element : level) {
+                    if (element.isValid()) {
+                        culler.draw(element, viewport);
+                    }
+
+                    if (culler.getLayerRoot(element) != null) {
+                        continue; // drawn with a layer
+                    }
+
+                    if (culler.getChildClip(element) != null) {
+                        for (int i = 0, size = element.getVisualChildCount(); i < size; i++) {
+                            next.add(element.getVisualChild(i));
+                        }
+                    }
+                    else if (FRAME_STATISTICS != null) {
+                        FRAME_STATISTICS.onSubtreeCulled();
+                    }
+                }
+
+                ArrayList<UIElement> temp = level;
+                level = next;
+                next = temp;
+                next.clear();
+            }
+        }
+        finally {
+            culler.end();
+        }
+    }
+
+    /**
+     * Enables drawing solid and rounded rects with instancing in windows
+     * @see NanoVGRenderBackend#setRectBatchingEnabled(boolean)
+     */
+    public static void setRectBatchingEnabled(boolean enabled) {
+        NanoVGRenderBackend.setRectBatchingEnabled(enabled);
+    }
+
+    public static boolean isRectBatchingEnabled() {
+        return NanoVGRenderBackend.isRectBatchingEnabled();
+    }
+
+    /**
+     * Sets the most memory (in bytes) that the layers of cached elements can use in windows
+     * @see LayerCache
+     */
+    public static void setLayerCacheBudget(long budget) {
+        WINDOW_LAYER_CACHE_BUDGET = budget;
+        if (WINDOW_LAYER_CACHE != null) {
+            WINDOW_LAYER_CACHE.setBudget(budget);
         }
-        // GL11.glPopMatrix();
+    }
+
+    public static long getLayerCacheBudget() {
+        return WINDOW_LAYER_CACHE_BUDGET;
     }
 
     // ---------------------------------------------------------------------------------
@@ -92,34 +288,199 @@ public class RenderContext {
         return ACTIVE_WINDOW;
     }
 
+    /**
+     * Returns the backend of the frame currently being drawn
+     */
+    public static RenderBackend getBackend() {
+        if (BACKEND == null) {
+            throw new IllegalStateException("No frame is being rendered");
+        }
+
+        return BACKEND;
+    }
+
+    /**
+     * Returns the bounds of the frame currently being drawn, in layout units
+     */
+    public static Rect getFrameBounds() {
+        if (FRAME_BOUNDS == null) {
+            throw new IllegalStateException("No frame is being rendered");
+        }
+
+        return FRAME_BOUNDS;
+    }
+
+    /**
+     * Returns the number of device pixels per layout unit in the frame currently being drawn
+     */
+    public static double getFramePixelScale() {
+        return FRAME_PIXEL_SCALE;
+    }
+
+    /**
+     * Returns the layer cache of the frame currently being drawn, or null if it does not cache layers
+     */
+    public static LayerCache getLayerCache() {
+        return LAYER_CACHE;
+    }
+
+    /**
+     * Returns the layer cache that windows are drawn with, or null if no window has been drawn yet
+     */
+    public static LayerCache getWindowLayerCache() {
+        return WINDOW_LAYER_CACHE;
+    }
+
+    /**
+     * Installs statistics that count the work done to draw each frame, or uninstalls them if null. This takes effect from the next frame
+     * @see RenderStatistics
+     */
+    public static void setRenderStatistics(RenderStatistics statistics) {
+        STATISTICS = statistics;
+    }
+
+    /**
+     * Returns the statistics counting the frame currently being drawn, or null if none are installed
+     */
+    public static RenderStatistics getRenderStatistics() {
+        return FRAME_STATISTICS;
+    }
+
+    /**
+     * Returns the backend that windows are drawn with, or null if no window has been drawn yet
+     */
+    public static NanoVGRenderBackend getWindowBackend() {
+        return WINDOW_BACKEND;
+    }
+
+    /**
+     * Begins a frame for the active window. Every element rendered in a tick should be drawn between
+     * a single call to this and {@link #endRender()}, as ending the frame flushes NanoVG
+     */
     public static void beginRender() {
         Window window = getActiveWindow();
+        if (BACKEND != null) {
+            throw new IllegalStateException("A frame is already being rendered");
+        }
+
+        setDepthTest(false);
+        setBlend(true);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA); // NanoVG changes this when it flushes
 
-        glDisable(GL_DEPTH_TEST);
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        window.beginRenderFrame();
+        if (WINDOW_BACKEND == null) {
+            WINDOW_BACKEND = new NanoVGRenderBackend();
+            WINDOW_LAYER_CACHE = new LayerCache(WINDOW_BACKEND, WINDOW_LAYER_CACHE_BUDGET);
+        }
 
-        window.beginRenderFrame(VG);
+        WINDOW_BACKEND.beginFrame(window.getActualWidth(), window.getActualHeight(), window.getPixelScale());
+        BACKEND = WINDOW_BACKEND;
+        LAYER_CACHE = WINDOW_LAYER_CACHE;
+        IS_WINDOW_FRAME = true;
+        onFrameBegun(window.getActualWidth(), window.getActualHeight(), window.getPixelScale());
+    }
+
+    /**
+     * Begins a frame drawn with the given backend, instead of into a window
+     * @param width      The width of the frame, in layout units
+     * @param height     The height of the frame, in layout units
+     * @param pixelScale The number of device pixels per layout unit
+     */
+    public static void beginRender(RenderBackend backend, double width, double height, double pixelScale) {
+        beginRender(backend, null, width, height, pixelScale);
+    }
+
+    /**
+     * Begins a frame drawn with the given backend, instead of into a window
+     * @param layerCache The cache of the layers that cached elements are drawn with, which must have been created for
+     *                   the given backend, or null to draw cached elements in full
+     * @param width      The width of the frame, in layout units
+     * @param height     The height of the frame, in layout units
+     * @param pixelScale The number of device pixels per layout unit
+     */
+    public static void beginRender(RenderBackend backend, LayerCache layerCache, double width, double height, double pixelScale) {
+        if (BACKEND != null) {
+            throw new IllegalStateException("A frame is already being rendered");
+        }
+
+        backend.beginFrame(width, height, pixelScale);
+        BACKEND = backend;
+        LAYER_CACHE = layerCache;
+        IS_WINDOW_FRAME = false;
+        onFrameBegun(width, height, pixelScale);
+    }
+
+    private static void onFrameBegun(double width, double height, double pixelScale) {
+        FRAME_BOUNDS = new Rect(0d, 0d, width, height);
+        FRAME_PIXEL_SCALE = pixelScale;
+        RenderStatistics statistics = STATISTICS;
+        FRAME_STATISTICS = statistics;
+        if (statistics != null) {
+            statistics.beginFrame();
+        }
     }
 
     public static void endRender() {
-        nvgEndFrame(VG);
-        glDisable(GL_BLEND);
-        glEnable(GL_DEPTH_TEST);
+        RenderBackend backend = getBackend();
+        try {
+            backend.endFrame();
+        }
+        finally {
+            BACKEND = null;
+            LAYER_CACHE = null;
+            FRAME_BOUNDS = null;
+            if (FRAME_STATISTICS != null) {
+                FRAME_STATISTICS.endFrame();
+                FRAME_STATISTICS = null;
+            }
+        }
+
+        if (IS_WINDOW_FRAME) {
+            getActiveWindow().endRenderFrame();
+            setBlend(false);
+            setDepthTest(true);
+        }
     }
 
-    public static void disposeNVG() {
-        nvgDelete(VG);
+    private static void setBlend(boolean enabled) {
+        if (IS_BLEND_ENABLED != enabled) {
+            IS_BLEND_ENABLED = enabled;
+            if (enabled) {
+                glEnable(GL_BLEND);
+            }
+            else {
+                glDisable(GL_BLEND);
+            }
+        }
     }
 
-    static {
-        VG = nvgCreate(NVG_ANTIALIAS);
-        if (VG == NULL) {
-            throw new RuntimeException("Failed to create NVG");
+    private static void setDepthTest(boolean enabled) {
+        if (IS_DEPTH_TEST_ENABLED != enabled) {
+            IS_DEPTH_TEST_ENABLED = enabled;
+            if (enabled) {
+                glEnable(GL_DEPTH_TEST);
+            }
+            else {
+                glDisable(GL_DEPTH_TEST);
+            }
         }
     }
 
-    public void close() {
+    public static void disposeNVG() {
+        if (WINDOW_LAYER_CACHE != null) {
+            WINDOW_LAYER_CACHE.clear();
+            WINDOW_LAYER_CACHE = null;
+        }
 
+        if (WINDOW_BACKEND != null) {
+            WINDOW_BACKEND.dispose();
+            WINDOW_BACKEND = null;
+        }
+    }
+
+    public void close() {
+        if (this.displayList == null) {
+            getBackend().popTranslate();
+        }
     }
 }
@@ -0,0 +1,173 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.UIElement;
+import reghzy.breezeui.core.utils.Rect;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Skips drawing elements that cannot be seen, and clips the ones that can only partly be seen
+ * <p>
+ *     An element can only be seen inside its visible clip: the viewport, intersected with the bounds of every
+ *     ancestor that clips to its bounds ({@link UIElement#CLIP_TO_BOUNDS}). The clip each element gives its
+ *     children is worked out once per frame, so once an element's clip is empty, each of its descendants is
+ *     culled by a single lookup, without testing any bounds
+ * </p>
+ * <p>
+ *     Elements whose subtree is cached in an up to date layer of the frame's {@link LayerCache} are drawn with that layer,
+ *     and their descendants are skipped
+ * </p>
+ */
+public final class RenderCuller {
+    // the clip each element gives its children, or null if its children cannot be seen
+    private final IdentityHashMap<UIElement, Rect> childClips;
+    private Rect viewport;
+
+    // the element drawn with a layer that each element is drawn in (or null if none), and the cache
+    // of the layers, which is null while this draws a subtree into a layer
+    private final IdentityHashMap<UIElement, UIElement> layerRoots;
+    private LayerCache layerCache;
+
+    // the element treated as the root of the tree, or null if it is the real root
+    private UIElement subtreeRoot;
+
+    public RenderCuller() {
+        this.childClips = new IdentityHashMap<UIElement, Rect>();
+        this.layerRoots = new IdentityHashMap<UIElement, UIElement>();
+    }
+
+    /**
+     * Begins culling against the given viewport. The clips worked out so far are discarded, as layouts may have changed
+     */
+    public void begin(Rect viewport) {
+        this.viewport = viewport;
+        this.layerCache = RenderContext.getLayerCache();
+        this.subtreeRoot = null;
+        this.childClips.clear();
+        this.layerRoots.clear();
+    }
+
+    /**
+     * Begins culling the given element's subtree against the given viewport, ignoring the element's ancestors (and
+     * without drawing any element with a layer). This is used to draw the subtree into a layer
+     */
+    public void beginSubtree(UIElement root, Rect viewport) {
+        begin(viewport);
+        this.layerCache = null;
+        this.subtreeRoot = root;
+    }
+
+    public void end() {
+        this.viewport = null;
+        this.layerCache = null;
+        this.subtreeRoot = null;
+        this.childClips.clear();
+        this.layerRoots.clear();
+    }
+
+    /**
+     * Returns the area the given element can be seen in, or null if none of it can be seen
+     */
+    public Rect getVisibleClip(UIElement element) {
+        UIElement parent = element.getParent();
+        return parent == null || element == this.subtreeRoot ? this.viewport : getChildClip(parent);
+    }
+
+    /**
+     * Returns the outermost element (the given element or one of its ancestors) that is drawn with its layer, in
+     * which case the given element is drawn as part of that layer, or null if the given element is drawn itself
+     */
+    public UIElement getLayerRoot(UIElement element) {
+        if (this.layerCache == null || this.layerCache.getLayerCount() == 0) {
+            return null;
+        }
+
+        UIElement root = this.layerRoots.get(element);
+        if (root == null && !this.layerRoots.containsKey(element)) {
+            UIElement parent = element.getParent();
+            root = parent != null ? getLayerRoot(parent) : null;
+            if (root == null && element.isValid() && this.layerCache.getLayer(element) != null) {
+                root = element;
+            }
+
+            this.layerRoots.put(element, root);
+        }
+
+        return root;
+    }
+
+    /**
+     * Returns the area the given element's children can be seen in, or null if none of them can be seen
+     */
+    public Rect getChildClip(UIElement element) {
+        Rect clip = this.childClips.get(element);
+        if (clip == null && !this.childClips.containsKey(element)) {
+            clip = getVisibleClip(element);
+            if (clip != null && element.isClipToBounds()) {
+                Rect bounds = element.getLayoutRect();
+                clip = bounds != null ? Rect.intersect(clip, bounds) : null;
+            }
+
+            this.childClips.put(element, clip);
+        }
+
+        return clip;
+    }
+
+    /**
+     * Draws the given element into the current frame, unless none of it can be seen inside the given area (which should
+     * be the area currently scissored to, or the viewport). If an ancestor only lets part of it be seen, it is scissored
+     * @return True if the element was drawn, or false if it was culled or is drawn as part of an ancestor's layer
+     */
+    public boolean draw(UIElement element, Rect area) {
+        UIElement layerRoot = getLayerRoot(element);
+        if (layerRoot != null && layerRoot != element) {
+            return false;
+        }
+
+        Rect bounds = element.getLayoutRect();
+        Rect clip = getVisibleClip(element);
+        if (bounds == null || clip == null || !bounds.intersects(clip) || !bounds.intersects(area)) {
+            RenderStatistics statistics = RenderContext.getRenderStatistics();
+            if (statistics != null) {
+                statistics.onCulled();
+            }
+
+            return false;
+        }
+
+        if (clip == this.viewport || clip.contains(bounds)) {
+            drawElement(element, layerRoot);
+        }
+        else {
+            Rect scissor = Rect.intersect(clip, area);
+            if (scissor == null) {
+                RenderStatistics statistics = RenderContext.getRenderStatistics();
+                if (statistics != null) {
+                    statistics.onCulled();
+                }
+
+                return false;
+            }
+
+            RenderContext.pushScissor(scissor);
+            try {
+                drawElement(element, layerRoot);
+            }
+            finally {
+                RenderContext.popScissor();
+            }
+        }
+
+        return true;
+    }
+
+    private void drawElement(UIElement element, UIElement layerRoot) {
+        if (layerRoot == element) {
+            element.drawLayer(this.layerCache.getLayer(element));
+        }
+        else {
+            element.draw();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package reghzy.breezeui.render;
+
+/**
+ * An offscreen image created by a {@link RenderBackend}, which can be drawn into and then drawn into frames
+ * @see RenderBackend#createLayer(int, int)
+ */
+public interface RenderLayer {
+    int getPixelWidth();
+
+    int getPixelHeight();
+}
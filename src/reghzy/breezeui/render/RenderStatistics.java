@@ -0,0 +1,129 @@
+package reghzy.breezeui.render;
+
+/**
+ * Counts the work done to draw each frame, in order to find out why drawing is slow
+ * <p>
+ *     Install statistics with {@link RenderContext#setRenderStatistics(RenderStatistics)}. While installed, every frame begun
+ *     with {@link RenderContext#beginRender()} (or a headless backend) counts the elements drawn, the display lists recorded,
+ *     and the elements culled because none of them could be seen. When no statistics are installed, the only cost is
+ *     reading a field per element
+ * </p>
+ */
+public final class RenderStatistics {
+    // the frame currently being counted
+    private int drawnCount;
+    private int recordedCount;
+    private int culledCount;
+    private int culledSubtreeCount;
+
+    // the last finished frame
+    private long frameCount;
+    private int lastDrawnCount;
+    private int lastRecordedCount;
+    private int lastCulledCount;
+    private int lastCulledSubtreeCount;
+
+    private long totalDrawnCount;
+    private long totalRecordedCount;
+    private long totalCulledCount;
+
+    void beginFrame() {
+        this.drawnCount = 0;
+        this.recordedCount = 0;
+        this.culledCount = 0;
+        this.culledSubtreeCount = 0;
+    }
+
+    void endFrame() {
+        synchronized (this) {
+            this.frameCount++;
+            this.lastDrawnCount = this.drawnCount;
+            this.lastRecordedCount = this.recordedCount;
+            this.lastCulledCount = this.culledCount;
+            this.lastCulledSubtreeCount = this.culledSubtreeCount;
+            this.totalDrawnCount += this.drawnCount;
+            this.totalRecordedCount += this.recordedCount;
+            this.totalCulledCount += this.culledCount;
+        }
+    }
+
+    void onDrawn() {
+        this.drawnCount++;
+    }
+
+    void onRecorded() {
+        this.recordedCount++;
+    }
+
+    void onCulled() {
+        this.culledCount++;
+    }
+
+    void onSubtreeCulled() {
+        this.culledSubtreeCount++;
+    }
+
+    /**
+     * Returns the number of frames counted
+     */
+    public synchronized long getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * Returns the number of elements drawn in the last frame
+     */
+    public synchronized int getDrawnCount() {
+        return this.lastDrawnCount;
+    }
+
+    /**
+     * Returns the number of elements whose display lists were recorded again in the last frame
+     */
+    public synchronized int getRecordedCount() {
+        return this.lastRecordedCount;
+    }
+
+    /**
+     * Returns the number of elements that were not drawn in the last frame, because they were
+     * entirely outside of the viewport, the area being drawn, or their ancestors' clip
+     */
+    public synchronized int getCulledCount() {
+        return this.lastCulledCount;
+    }
+
+    /**
+     * Returns the number of subtrees that were skipped in the last frame without visiting their elements, because
+     * their root clips its children to an area that cannot be seen. Only {@link RenderContext#drawTree(reghzy.breezeui.core.UIElement)}
+     * walks subtrees; windows find the elements to draw by their bounds, so their culled elements are counted individually
+     */
+    public synchronized int getCulledSubtreeCount() {
+        return this.lastCulledSubtreeCount;
+    }
+
+    public synchronized long getTotalDrawnCount() {
+        return this.totalDrawnCount;
+    }
+
+    public synchronized long getTotalRecordedCount() {
+        return this.totalRecordedCount;
+    }
+
+    public synchronized long getTotalCulledCount() {
+        return this.totalCulledCount;
+    }
+
+    /**
+     * Resets every count
+     */
+    public synchronized void clear() {
+        this.frameCount = 0;
+        this.lastDrawnCount = this.lastRecordedCount = this.lastCulledCount = this.lastCulledSubtreeCount = 0;
+        this.totalDrawnCount = this.totalRecordedCount = this.totalCulledCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RenderStatistics[" + this.frameCount + " frames, last: " + this.lastDrawnCount + " drawn, " + this.lastRecordedCount + " recorded, " + this.lastCulledCount + " culled]";
+    }
+}
@@ -0,0 +1,127 @@
+package reghzy.breezeui.render;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread that takes the frames published to a {@link FrameQueue} and draws them, so that the thread recording them
+ * never waits on drawing (or on the GPU). By default, frames are drawn with the backend given to the constructor;
+ * subclasses can create their backend in {@link #onStart()} and override {@link #presentFrame(FrameCommandList)}
+ * to present each frame (e.g. swapping a window's buffers)
+ */
+public class RenderThread {
+    private final FrameQueue queue;
+    private final Thread thread;
+    private volatile boolean isRunning;
+    private volatile Throwable error;
+    private volatile Runnable onError;
+    private RenderBackend backend;
+
+    /**
+     * @param name    The name of the thread
+     * @param queue   The queue that frames are taken from
+     * @param backend The backend to draw frames with, or null if it is set in {@link #onStart()}
+     */
+    public RenderThread(String name, FrameQueue queue, RenderBackend backend) {
+        this.queue = queue;
+        this.backend = backend;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.isRunning = true;
+        this.thread.start();
+    }
+
+    /**
+     * Stops this thread after it finishes drawing its current frame (if any), and waits for it to finish
+     */
+    public void stop() throws InterruptedException {
+        this.isRunning = false;
+        this.thread.interrupt();
+        this.thread.join();
+    }
+
+    private void run() {
+        try {
+            onStart();
+            while (this.isRunning) {
+                FrameCommandList frame = this.queue.awaitFrame(0L, TimeUnit.MILLISECONDS);
+                if (frame != null) {
+                    presentFrame(frame);
+                }
+                else if (this.isRunning) {
+                    Thread.interrupted(); // woken up without a frame or being stopped; just wait again
+                }
+            }
+        }
+        catch (Throwable e) {
+            this.error = e;
+            Runnable callback = this.onError;
+            if (callback != null) {
+                callback.run();
+            }
+        }
+        finally {
+            try {
+                onStop();
+            }
+            catch (Throwable e) {
+                if (this.error == null) {
+                    this.error = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called on this thread before any frames are drawn
+     */
+    protected void onStart() {
+
+    }
+
+    /**
+     * Draws (and presents) the given frame. Called on this thread for each frame taken from the queue
+     */
+    protected void presentFrame(FrameCommandList frame) {
+        frame.submit(this.backend);
+    }
+
+    /**
+     * Called on this thread after it stops drawing frames, even if it failed
+     */
+    protected void onStop() {
+
+    }
+
+    protected void setBackend(RenderBackend backend) {
+        this.backend = backend;
+    }
+
+    public RenderBackend getBackend() {
+        return this.backend;
+    }
+
+    /**
+     * Sets the callback called (on this thread) if drawing a frame fails, which stops this thread
+     */
+    public void setOnError(Runnable onError) {
+        this.onError = onError;
+    }
+
+    /**
+     * Returns the error that stopped this thread, or null if it has not failed
+     */
+    public Throwable getError() {
+        return this.error;
+    }
+
+    public boolean isRunning() {
+        return this.isRunning && this.thread.isAlive();
+    }
+
+    public Thread getThread() {
+        return this.thread;
+    }
+}
@@ -0,0 +1,366 @@
+package reghzy.breezeui.render;
+
+import reghzy.breezeui.core.utils.Rect;
+
+import java.awt.image.BufferedImage;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Draws into an in-memory ARGB framebuffer in pure Java, without a GPU. This is meant for headless rendering
+ * (e.g. screenshots in tests or on servers) and for measuring the cost of generating draw commands
+ * <p>
+ *     Rects are anti-aliased by their exact coverage of each pixel, and rounded corners by their distance
+ *     from the corner. Colours are blended over the framebuffer's contents (source-over, non-premultiplied)
+ * </p>
+ * <p>
+ *     Layers are in-memory images too, and are drawn into frames with nearest-pixel sampling
+ * </p>
+ */
+public class SoftwareRenderBackend implements RenderBackend {
+    private final int pixelWidth;
+    private final int pixelHeight;
+    private final int[] pixels;
+    private int clearColour = 0xFF333333;
+
+    // the pixels being drawn into (the framebuffer, or a layer), and the position of their top left in the frame
+    private int[] target;
+    private int targetWidth;
+    private int targetHeight;
+    private double originX;
+    private double originY;
+    private boolean isDrawingLayer;
+
+    private double pixelScale = 1d;
+
+    // the translations and scissor rects (x1, y1, x2, y2 in pixels) pushed so far
+    private double[] translations;
+    private int translationCount;
+    private double translateX;
+    private double translateY;
+    private double[] scissors;
+    private int scissorCount;
+    private double clipX1;
+    private double clipY1;
+    private double clipX2;
+    private double clipY2;
+
+    /**
+     * Creates a backend with a framebuffer of the given size, in device pixels
+     */
+    public SoftwareRenderBackend(int pixelWidth, int pixelHeight) {
+        if (pixelWidth < 1 || pixelHeight < 1) {
+            throw new IllegalArgumentException("Size must be at least 1x1: " + pixelWidth + "x" + pixelHeight);
+        }
+
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+        this.pixels = new int[pixelWidth * pixelHeight];
+        this.target = this.pixels;
+        this.targetWidth = pixelWidth;
+        this.targetHeight = pixelHeight;
+        this.translations = new double[16];
+        this.scissors = new double[16];
+        resetClip();
+    }
+
+    /**
+     * Sets the colour (ARGB) that {@link #clear(Rect)} fills with
+     */
+    public void setClearColour(int argb) {
+        this.clearColour = argb;
+    }
+
+    public int getClearColour() {
+        return this.clearColour;
+    }
+
+    public int getPixelWidth() {
+        return this.pixelWidth;
+    }
+
+    public int getPixelHeight() {
+        return this.pixelHeight;
+    }
+
+    /**
+     * Returns the framebuffer's pixels (ARGB, row by row from the top left)
+     */
+    public IntBuffer getPixels() {
+        return IntBuffer.wrap(this.pixels);
+    }
+
+    public int getPixel(int x, int y) {
+        return this.pixels[y * this.pixelWidth + x];
+    }
+
+    /**
+     * Copies the framebuffer into a new image
+     */
+    public BufferedImage toImage() {
+        BufferedImage image = new BufferedImage(this.pixelWidth, this.pixelHeight, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, this.pixelWidth, this.pixelHeight, this.pixels, 0, this.pixelWidth);
+        return image;
+    }
+
+    @Override
+    public void beginFrame(double width, double height, double pixelScale) {
+        this.pixelScale = pixelScale;
+        this.translationCount = 0;
+        this.scissorCount = 0;
+        this.translateX = this.translateY = 0d;
+        if (this.isDrawingLayer) {
+            endLayer(); // the last frame failed while drawing a layer
+        }
+
+        resetClip();
+    }
+
+    @Override
+    public void endFrame() {
+
+    }
+
+    private void resetClip() {
+        this.clipX1 = this.clipY1 = 0d;
+        this.clipX2 = this.targetWidth;
+        this.clipY2 = this.targetHeight;
+    }
+
+    @Override
+    public void clear(Rect area) {
+        int colour = this.isDrawingLayer ? 0 : this.clearColour;
+        if (area == null) {
+            Arrays.fill(this.target, colour);
+            return;
+        }
+
+        // expanded to whole pixels, like a GL scissored clear
+        double scale = this.pixelScale;
+        int x1 = Math.max((int) Math.floor((area.x - this.originX) * scale), 0);
+        int y1 = Math.max((int) Math.floor((area.y - this.originY) * scale), 0);
+        int x2 = Math.min((int) Math.ceil((area.getX2() - this.originX) * scale), this.targetWidth);
+        int y2 = Math.min((int) Math.ceil((area.getY2() - this.originY) * scale), this.targetHeight);
+        for (int y = y1; y < y2; y++) {
+            Arrays.fill(this.target, y * this.targetWidth + x1, y * this.targetWidth + Math.max(x2, x1), colour);
+        }
+    }
+
+    @Override
+    public void pushTranslate(double x, double y) {
+        int index = this.translationCount * 2;
+        if (index == this.translations.length) {
+            this.translations = Arrays.copyOf(this.translations, index * 2);
+        }
+
+        this.translations[index] = this.translateX;
+        this.translations[index + 1] = this.translateY;
+        this.translationCount++;
+        this.translateX += x;
+        this.translateY += y;
+    }
+
+    @Override
+    public void popTranslate() {
+        int index = --this.translationCount * 2;
+        this.translateX = this.translations[index];
+        this.translateY = this.translations[index + 1];
+    }
+
+    @Override
+    public void pushScissor(Rect rect) {
+        int index = this.scissorCount * 4;
+        if (index == this.scissors.length) {
+            this.scissors = Arrays.copyOf(this.scissors, index * 2);
+        }
+
+        this.scissors[index] = this.clipX1;
+        this.scissors[index + 1] = this.clipY1;
+        this.scissors[index + 2] = this.clipX2;
+        this.scissors[index + 3] = this.clipY2;
+        this.scissorCount++;
+
+        // nested scissors clip to the intersection
+        double scale = this.pixelScale;
+        this.clipX1 = Math.max(this.clipX1, (rect.x - this.originX) * scale);
+        this.clipY1 = Math.max(this.clipY1, (rect.y - this.originY) * scale);
+        this.clipX2 = Math.min(this.clipX2, (rect.getX2() - this.originX) * scale);
+        this.clipY2 = Math.min(this.clipY2, (rect.getY2() - this.originY) * scale);
+    }
+
+    @Override
+    public void popScissor() {
+        int index = --this.scissorCount * 4;
+        this.clipX1 = this.scissors[index];
+        this.clipY1 = this.scissors[index + 1];
+        this.clipX2 = this.scissors[index + 2];
+        this.clipY2 = this.scissors[index + 3];
+    }
+
+    @Override
+    public void fillRect(double x, double y, double w, double h, double radius, float r, float g, float b, float a) {
+        if (!(w > 0d) || !(h > 0d) || !(a > 0f)) {
+            return;
+        }
+
+        double scale = this.pixelScale;
+        double rx1 = (this.translateX + x - this.originX) * scale, ry1 = (this.translateY + y - this.originY) * scale;
+        double rx2 = rx1 + w * scale, ry2 = ry1 + h * scale;
+        double x1 = Math.max(rx1, this.clipX1), y1 = Math.max(ry1, this.clipY1);
+        double x2 = Math.min(rx2, this.clipX2), y2 = Math.min(ry2, this.clipY2);
+        if (!(x1 < x2) || !(y1 < y2)) {
+            return;
+        }
+
+        double cornerRadius = Math.min(radius * scale, Math.min(rx2 - rx1, ry2 - ry1) / 2d);
+        int sr = Math.round(r * 255f), sg = Math.round(g * 255f), sb = Math.round(b * 255f);
+        int px1 = (int) Math.floor(x1), px2 = (int) Math.ceil(x2);
+        int py1 = (int) Math.floor(y1), py2 = (int) Math.ceil(y2);
+        int[] pixels = this.target;
+        for (int py = py1; py < py2; py++) {
+            // the fraction of this row of pixels that the (clipped) rect covers
+            double coverY = Math.min(py + 1d, y2) - Math.max(py, y1);
+            int row = py * this.targetWidth;
+            for (int px = px1; px < px2; px++) {
+                double coverage = coverY * (Math.min(px + 1d, x2) - Math.max(px, x1));
+                if (cornerRadius > 0d) {
+                    coverage *= getCornerCoverage(px + 0.5d, py + 0.5d, rx1, ry1, rx2, ry2, cornerRadius);
+                }
+
+                if (coverage > 0d) {
+                    int i = row + px;
+                    pixels[i] = blend(pixels[i], sr, sg, sb, a * (float) coverage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how much of the pixel centred at the given point is inside the rounded corners of the given rect
+     */
+    private static double getCornerCoverage(double px, double py, double x1, double y1, double x2, double y2, double radius) {
+        double cx = px < x1 + radius ? x1 + radius : px > x2 - radius ? x2 - radius : px;
+        double cy = py < y1 + radius ? y1 + radius : py > y2 - radius ? y2 - radius : py;
+        if (cx == px || cy == py) {
+            return 1d; // not in a corner
+        }
+
+        double dx = px - cx, dy = py - cy;
+        double distance = Math.sqrt(dx * dx + dy * dy) - radius;
+        return Math.max(0d, Math.min(1d, 0.5d - distance));
+    }
+
+    private static int blend(int dst, int sr, int sg, int sb, float alpha) {
+        float da = (dst >>> 24) / 255f;
+        float outA = alpha + da * (1f - alpha);
+        if (outA <= 0f) {
+            return 0;
+        }
+
+        float dstWeight = da * (1f - alpha) / outA, srcWeight = alpha / outA;
+        int or = Math.round(sr * srcWeight + ((dst >> 16) & 0xFF) * dstWeight);
+        int og = Math.round(sg * srcWeight + ((dst >> 8) & 0xFF) * dstWeight);
+        int ob = Math.round(sb * srcWeight + (dst & 0xFF) * dstWeight);
+        return (Math.round(outA * 255f) << 24) | (or << 16) | (og << 8) | ob;
+    }
+
+    @Override
+    public RenderLayer createLayer(int pixelWidth, int pixelHeight) {
+        return new SoftwareLayer(pixelWidth, pixelHeight);
+    }
+
+    @Override
+    public void beginLayer(RenderLayer layer, Rect area) {
+        if (this.isDrawingLayer || this.translationCount != 0 || this.scissorCount != 0) {
+            throw new IllegalStateException("Layers cannot be begun while drawing a layer, or while translations or scissor rects are pushed");
+        }
+
+        SoftwareLayer image = (SoftwareLayer) layer;
+        this.isDrawingLayer = true;
+        this.target = image.pixels;
+        this.targetWidth = image.pixelWidth;
+        this.targetHeight = image.pixelHeight;
+        this.originX = area.x;
+        this.originY = area.y;
+        Arrays.fill(image.pixels, 0);
+        resetClip();
+    }
+
+    @Override
+    public void endLayer() {
+        if (!this.isDrawingLayer) {
+            throw new IllegalStateException("No layer is being drawn");
+        }
+
+        this.isDrawingLayer = false;
+        this.target = this.pixels;
+        this.targetWidth = this.pixelWidth;
+        this.targetHeight = this.pixelHeight;
+        this.originX = this.originY = 0d;
+        resetClip();
+    }
+
+    @Override
+    public void drawLayer(RenderLayer layer, double x, double y, double w, double h) {
+        SoftwareLayer image = (SoftwareLayer) layer;
+        double scale = this.pixelScale;
+        int rx1 = (int) Math.round((this.translateX + x - this.originX) * scale);
+        int ry1 = (int) Math.round((this.translateY + y - this.originY) * scale);
+        int rx2 = (int) Math.round((this.translateX + x + w - this.originX) * scale);
+        int ry2 = (int) Math.round((this.translateY + y + h - this.originY) * scale);
+        int px1 = Math.max(rx1, (int) Math.round(this.clipX1)), px2 = Math.min(rx2, (int) Math.round(this.clipX2));
+        int py1 = Math.max(ry1, (int) Math.round(this.clipY1)), py2 = Math.min(ry2, (int) Math.round(this.clipY2));
+        if (px1 >= px2 || py1 >= py2) {
+            return;
+        }
+
+        int[] pixels = this.target, src = image.pixels;
+        int srcW = image.pixelWidth, srcH = image.pixelHeight;
+        for (int py = py1; py < py2; py++) {
+            int srcRow = (int) ((long) (py - ry1) * srcH / (ry2 - ry1)) * srcW;
+            int row = py * this.targetWidth;
+            for (int px = px1; px < px2; px++) {
+                int argb = src[srcRow + (int) ((long) (px - rx1) * srcW / (rx2 - rx1))];
+                int alpha = argb >>> 24;
+                if (alpha == 255) {
+                    pixels[row + px] = argb;
+                }
+                else if (alpha != 0) {
+                    pixels[row + px] = blend(pixels[row + px], (argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF, alpha / 255f);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void disposeLayer(RenderLayer layer) {
+
+    }
+
+    @Override
+    public void dispose() {
+
+    }
+
+    private static final class SoftwareLayer implements RenderLayer {
+        private final int pixelWidth;
+        private final int pixelHeight;
+        private final int[] pixels;
+
+        private SoftwareLayer(int pixelWidth, int pixelHeight) {
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+            this.pixels = new int[pixelWidth * pixelHeight];
+        }
+
+        @Override
+        public int getPixelWidth() {
+            return this.pixelWidth;
+        }
+
+        @Override
+        public int getPixelHeight() {
+            return this.pixelHeight;
+        }
+    }
+}
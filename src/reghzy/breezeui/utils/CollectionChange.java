@@ -0,0 +1,94 @@
+package reghzy.breezeui.utils;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a single batch of changes made to an {@link ObservableList}
+ * <p>
+ *     Every change affects one contiguous range of indices, so a listener only needs
+ *     to process {@link #getCount()} items starting at {@link #getIndex()}
+ * </p>
+ */
+public final class CollectionChange<E> {
+    private final Action action;
+    private final int index;
+    private final int newIndex;
+    private final List<E> newItems;
+    private final List<E> oldItems;
+
+    private CollectionChange(Action action, int index, int newIndex, List<E> newItems, List<E> oldItems) {
+        this.action = action;
+        this.index = index;
+        this.newIndex = newIndex;
+        this.newItems = newItems;
+        this.oldItems = oldItems;
+    }
+
+    public static <E> CollectionChange<E> add(int index, List<E> items) {
+        return new CollectionChange<E>(Action.ADD, index, index, items, Collections.emptyList());
+    }
+
+    public static <E> CollectionChange<E> remove(int index, List<E> items) {
+        return new CollectionChange<E>(Action.REMOVE, index, index, Collections.emptyList(), items);
+    }
+
+    public static <E> CollectionChange<E> replace(int index, List<E> oldItems, List<E> newItems) {
+        return new CollectionChange<E>(Action.REPLACE, index, index, newItems, oldItems);
+    }
+
+    public static <E> CollectionChange<E> move(int oldIndex, int newIndex, List<E> items) {
+        return new CollectionChange<E>(Action.MOVE, oldIndex, newIndex, items, items);
+    }
+
+    public Action getAction() {
+        return this.action;
+    }
+
+    /**
+     * The index of the first affected item. For moves, this is the index the items were moved from
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * The index the items were moved to. For anything other than moves, this is the same as {@link #getIndex()}
+     */
+    public int getNewIndex() {
+        return this.newIndex;
+    }
+
+    /**
+     * The number of items affected by this change
+     */
+    public int getCount() {
+        return Math.max(this.newItems.size(), this.oldItems.size());
+    }
+
+    /**
+     * The items that were added, or for moves, the items that were moved
+     */
+    public List<E> getNewItems() {
+        return this.newItems;
+    }
+
+    /**
+     * The items that were removed or replaced, or for moves, the items that were moved
+     */
+    public List<E> getOldItems() {
+        return this.oldItems;
+    }
+
+    @Override
+    public String toString() {
+        return "CollectionChange[" + this.action + ", index=" + this.index + ", newIndex=" + this.newIndex + ", count=" + getCount() + "]";
+    }
+
+    public enum Action {
+        ADD,
+        REMOVE,
+        REPLACE,
+        MOVE
+    }
+}
@@ -0,0 +1,5 @@
+package reghzy.breezeui.utils;
+
+public interface CollectionChangedListener<E> {
+    void onCollectionChanged(ObservableList<E> list, CollectionChange<E> change);
+}
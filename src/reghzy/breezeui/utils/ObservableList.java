@@ -0,0 +1,159 @@
+package reghzy.breezeui.utils;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An ArrayList-backed list that notifies its listeners when it is modified
+ * <p>
+ *     Range operations ({@link #addAll(int, Collection)}, {@link #removeRange(int, int)} and {@link #move(int, int, int)})
+ *     raise a single notification for the whole batch, rather than one per item
+ * </p>
+ * @param <E> The type of elements in this list
+ */
+public class ObservableList<E> extends AbstractList<E> implements RandomAccess {
+    private final ArrayList<E> items;
+    private final ArrayList<CollectionChangedListener<E>> listeners;
+
+    public ObservableList() {
+        this.items = new ArrayList<E>();
+        this.listeners = new ArrayList<CollectionChangedListener<E>>();
+    }
+
+    public ObservableList(int initialCapacity) {
+        this.items = new ArrayList<E>(initialCapacity);
+        this.listeners = new ArrayList<CollectionChangedListener<E>>();
+    }
+
+    public ObservableList(Collection<? extends E> collection) {
+        this.items = new ArrayList<E>(collection);
+        this.listeners = new ArrayList<CollectionChangedListener<E>>();
+    }
+
+    public void addListener(CollectionChangedListener<E> listener) {
+        Validate.notNull(listener, "Listener cannot be null");
+        this.listeners.add(listener);
+    }
+
+    public boolean removeListener(CollectionChangedListener<E> listener) {
+        return this.listeners.remove(listener);
+    }
+
+    @Override
+    public E get(int index) {
+        return this.items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return this.items.size();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E old = this.items.set(index, element);
+        raiseChanged(CollectionChange.replace(index, Collections.singletonList(old), Collections.singletonList(element)));
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        this.items.add(index, element);
+        this.modCount++;
+        raiseChanged(CollectionChange.add(index, Collections.singletonList(element)));
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> collection) {
+        return addAll(this.items.size(), collection);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> collection) {
+        if (collection.isEmpty()) {
+            return false;
+        }
+
+        ArrayList<E> added = new ArrayList<E>(collection);
+        this.items.addAll(index, added);
+        this.modCount++;
+        raiseChanged(CollectionChange.add(index, Collections.unmodifiableList(added)));
+        return true;
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = this.items.remove(index);
+        this.modCount++;
+        raiseChanged(CollectionChange.remove(index, Collections.singletonList(old)));
+        return old;
+    }
+
+    /**
+     * Removes all items between the given indices
+     * @param fromIndex The index of the first item to remove
+     * @param toIndex   The index after the last item to remove
+     */
+    @Override
+    public void removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > this.items.size() || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("fromIndex=" + fromIndex + ", toIndex=" + toIndex + ", size=" + this.items.size());
+        }
+
+        if (fromIndex == toIndex) {
+            return;
+        }
+
+        List<E> range = this.items.subList(fromIndex, toIndex);
+        ArrayList<E> removed = new ArrayList<E>(range);
+        range.clear();
+        this.modCount++;
+        raiseChanged(CollectionChange.remove(fromIndex, Collections.unmodifiableList(removed)));
+    }
+
+    @Override
+    public void clear() {
+        removeRange(0, this.items.size());
+    }
+
+    /**
+     * Moves a single item from one index to another
+     */
+    public void move(int oldIndex, int newIndex) {
+        move(oldIndex, newIndex, 1);
+    }
+
+    /**
+     * Moves a range of items so that the first item ends up at the given new index
+     * @param oldIndex The index of the first item to move
+     * @param newIndex The index the first item will be at, once moved
+     * @param count    The number of items to move
+     */
+    public void move(int oldIndex, int newIndex, int count) {
+        int size = this.items.size();
+        if (count < 0 || oldIndex < 0 || newIndex < 0 || oldIndex + count > size || newIndex + count > size) {
+            throw new IndexOutOfBoundsException("oldIndex=" + oldIndex + ", newIndex=" + newIndex + ", count=" + count + ", size=" + size);
+        }
+
+        if (count == 0 || oldIndex == newIndex) {
+            return;
+        }
+
+        List<E> range = this.items.subList(oldIndex, oldIndex + count);
+        ArrayList<E> moved = new ArrayList<E>(range);
+        range.clear();
+        this.items.addAll(newIndex, moved);
+        this.modCount++;
+        raiseChanged(CollectionChange.move(oldIndex, newIndex, Collections.unmodifiableList(moved)));
+    }
+
+    protected void raiseChanged(CollectionChange<E> change) {
+        for (int i = 0, size = this.listeners.size(); i < size; i++) {
+            this.listeners.get(i).onCollectionChanged(this, change);
+        }
+    }
+}
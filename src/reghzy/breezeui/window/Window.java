@@ -5,13 +5,19 @@ import org.joml.Vector2i;
 import org.lwjgl.glfw.Callbacks;
 import org.lwjgl.glfw.GLFW;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
 import org.lwjgl.system.MemoryStack;
 import reghzy.breezeui.core.ContentControl;
+import reghzy.breezeui.core.ContextLayoutManager;
+import reghzy.breezeui.core.FlatLayoutTree;
+import reghzy.breezeui.core.SpatialIndex;
+import reghzy.breezeui.core.UIElement;
 import reghzy.breezeui.core.properties.DependencyProperty;
 import reghzy.breezeui.core.properties.PropertyMeta;
 import reghzy.breezeui.core.properties.framework.FrameworkPropertyMeta;
 import reghzy.breezeui.core.properties.framework.FrameworkPropertyMetaFlags;
 import reghzy.breezeui.core.utils.Rect;
+import reghzy.breezeui.render.DamageRegion;
 import reghzy.breezeui.utils.Disposable;
 
 import java.nio.IntBuffer;
@@ -19,11 +25,12 @@ import java.nio.IntBuffer;
 import static org.lwjgl.glfw.GLFW.glfwGetFramebufferSize;
 import static org.lwjgl.glfw.GLFW.glfwGetWindowPos;
 import static org.lwjgl.glfw.GLFW.glfwGetWindowSize;
+import static org.lwjgl.glfw.GLFW.glfwSetCursorEnterCallback;
+import static org.lwjgl.glfw.GLFW.glfwSetCursorPosCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowPos;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowSize;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowSizeCallback;
 import static org.lwjgl.glfw.GLFW.glfwSetWindowTitle;
-import static org.lwjgl.nanovg.NanoVG.nvgBeginFrame;
 import static org.lwjgl.system.MemoryStack.stackPush;
 import static org.lwjgl.system.MemoryUtil.NULL;
 
@@ -34,17 +41,48 @@ public class Window extends ContentControl implements Disposable {
     private boolean isDisposed;
 
     static {
-        WIDTH.overrideMetadata(Window.class, new FrameworkPropertyMeta(Double.NaN, (property, owner, oldValue, newValue) -> ((Window) owner).glfwSetSize((Double) newValue, owner.getValue(HEIGHT)), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
-        HEIGHT.overrideMetadata(Window.class, new FrameworkPropertyMeta(Double.NaN, (property, owner, oldValue, newValue) -> ((Window) owner).glfwSetSize(owner.getValue(WIDTH), (Double) newValue), FrameworkPropertyMetaFlags.AFFECTS_LAYOUT));
+        WIDTH.overrideMetadata(Window.class, new FrameworkPropertyMeta(Double.NaN, (property, owner, oldValue, newValue) -> ((Window) owner).glfwSetSize((Double) newValue, owner.getValue(HEIGHT)), FrameworkPropertyMetaFlags.AFFECTS_HORIZONTAL_LAYOUT));
+        HEIGHT.overrideMetadata(Window.class, new FrameworkPropertyMeta(Double.NaN, (property, owner, oldValue, newValue) -> ((Window) owner).glfwSetSize(owner.getValue(WIDTH), (Double) newValue), FrameworkPropertyMetaFlags.AFFECTS_VERTICAL_LAYOUT));
     }
 
     private int frameBufferX;
     private int frameBufferY;
 
+    // the viewport last set by beginRenderFrame
+    private int viewportW = -1;
+    private int viewportH = -1;
+
+    // the framebuffer that this window is rendered into, which keeps its contents between frames so
+    // that only the damaged areas have to be drawn again. It is copied to the window when presenting
+    private int fbo;
+    private int fboColourBuffer;
+    private int fboDepthStencilBuffer;
+    private int fboW;
+    private int fboH;
+    private final DamageRegion damageRegion = new DamageRegion();
+
+    // set by a render thread when the framebuffer's contents were lost, so that the whole window is drawn again
+    private volatile boolean isFramebufferLost;
+
+    // the layout rounding state that this window's elements were last laid out with
+    private boolean isLayoutRounded;
+    private double layoutScale = 1d;
+
+    private FlatLayoutTree flatLayoutTree;
+
+    private double mouseX;
+    private double mouseY;
+    private boolean isMouseInside;
+    private boolean isMouseMoved;
+    private int lastHitTestVersion;
+    private UIElement mouseOverElement;
+
     private Window(long id) {
         this.hWnd = id;
         this.bypassMeasurementPolicies = true;
         glfwSetWindowSizeCallback(id, (window, width, height) -> processSizeChanged(width, height));
+        glfwSetCursorPosCallback(id, (window, x, y) -> processMouseMoved(x, y));
+        glfwSetCursorEnterCallback(id, (window, entered) -> processMouseEntered(entered));
     }
 
     public void processSizeChanged(int width, int height) {
@@ -62,6 +100,65 @@ public class Window extends ContentControl implements Disposable {
         updateLayout();
     }
 
+    public void processMouseMoved(double x, double y) {
+        this.mouseX = x;
+        this.mouseY = y;
+        this.isMouseInside = true;
+        this.isMouseMoved = true;
+    }
+
+    public void processMouseEntered(boolean entered) {
+        this.isMouseInside = entered;
+        this.isMouseMoved = true;
+    }
+
+    /**
+     * Finds the element under the mouse, and moves {@link #IS_MOUSE_OVER} from the last element under the mouse to it
+     * <p>
+     *     This only hit tests if the mouse has moved or an element's bounds have changed since the last time, and
+     *     only the element that the mouse left and the element that the mouse entered are changed
+     * </p>
+     * @param index The index to hit test with
+     */
+    public void updateMouseOver(SpatialIndex index) {
+        int version = index.getVersion();
+        if (!this.isMouseMoved && version == this.lastHitTestVersion) {
+            return;
+        }
+
+        this.isMouseMoved = false;
+        this.lastHitTestVersion = version;
+        UIElement element = this.isMouseInside ? index.hitTest(this.mouseX, this.mouseY) : null;
+        UIElement last = this.mouseOverElement;
+        if (element == last) {
+            return;
+        }
+
+        this.mouseOverElement = element;
+        if (last != null) {
+            last.setValue(IS_MOUSE_OVER, false);
+        }
+
+        if (element != null) {
+            element.setValue(IS_MOUSE_OVER, true);
+        }
+    }
+
+    /**
+     * Returns the topmost element that the mouse was over the last time {@link #updateMouseOver(SpatialIndex)} was called
+     */
+    public UIElement getMouseOverElement() {
+        return this.mouseOverElement;
+    }
+
+    public double getMouseX() {
+        return this.mouseX;
+    }
+
+    public double getMouseY() {
+        return this.mouseY;
+    }
+
     private void onTitleChanged(String title) {
         glfwSetWindowTitle(this.hWnd, title != null ? title : "");
     }
@@ -69,7 +166,21 @@ public class Window extends ContentControl implements Disposable {
     public void updateLayout() {
         Vector2d size = new Vector2d(getWidth(), getHeight());
         this.isLayoutDirty = true;
-        this.measure(new Rect(0, 0, size));
+        Rect rect = new Rect(0, 0, size);
+        if (!ContextLayoutManager.tryFlatLayout(this, rect)) {
+            this.measure(rect);
+        }
+    }
+
+    /**
+     * Returns the flat layout tree of this window's visual tree, used when the flat layout backend is enabled
+     */
+    public FlatLayoutTree getFlatLayoutTree() {
+        if (this.flatLayoutTree == null) {
+            this.flatLayoutTree = new FlatLayoutTree(this);
+        }
+
+        return this.flatLayoutTree;
     }
 
     public static void app_init() {
@@ -104,6 +215,46 @@ public class Window extends ContentControl implements Disposable {
             this.frameBufferX = x.get(0);
             this.frameBufferY = y.get(0);
         }
+
+        if (this.isFramebufferLost) {
+            this.isFramebufferLost = false;
+            this.damageRegion.addAll();
+        }
+
+        updateLayoutScale();
+    }
+
+    /**
+     * Returns the number of framebuffer pixels per unit of this window's size (e.g. 2 on a high DPI display)
+     */
+    public double getPixelScale() {
+        double w = getWidth();
+        return this.frameBufferX > 0 && w > 0d ? (double) this.frameBufferX / w : 1d;
+    }
+
+    /**
+     * Passes this window's pixel scale on to the layout manager, and lays out every element again if
+     * layout rounding has been toggled or the scale changed while it was enabled
+     */
+    private void updateLayoutScale() {
+        double scale = getPixelScale();
+        if (scale != ContextLayoutManager.getLayoutScale()) {
+            ContextLayoutManager.setLayoutScale(scale);
+        }
+
+        boolean isRounding = ContextLayoutManager.isLayoutRounding();
+        if (isRounding != this.isLayoutRounded || (isRounding && scale != this.layoutScale)) {
+            this.isLayoutRounded = isRounding;
+            this.layoutScale = scale;
+            invalidateLayoutTree(this);
+        }
+    }
+
+    private static void invalidateLayoutTree(UIElement element) {
+        element.invalidateLayout();
+        for (int i = 0, size = element.getVisualChildCount(); i < size; i++) {
+            invalidateLayoutTree(element.getVisualChild(i));
+        }
     }
 
     public void glfwSetPos(int x, int y) {
@@ -174,14 +325,106 @@ public class Window extends ContentControl implements Disposable {
 
     @Override
     public void dispose() {
+        disposeFramebuffer();
         glfwFreeCallbacks();
         glfwDestroyWindow();
         this.isDisposed = true;
     }
 
-    public void beginRenderFrame(long nvg) {
+    /**
+     * Binds this window's framebuffer and sets the viewport, ready for a frame to be drawn into it. If the framebuffer
+     * had to be created again (e.g. because the window was resized), the whole window is marked as damaged
+     */
+    public void beginRenderFrame() {
         double w = getWidth(), h = getHeight();
-        GL11.glViewport(0, 0, (int) w, (int) h);
-        nvgBeginFrame(nvg, (float) w, (float) h, (float) ((double) this.frameBufferX / w));
+        int fbW = this.frameBufferX > 0 ? this.frameBufferX : (int) w;
+        int fbH = this.frameBufferY > 0 ? this.frameBufferY : (int) h;
+        if (beginRenderFrame(fbW, fbH)) {
+            this.damageRegion.addAll();
+        }
+    }
+
+    /**
+     * Binds this window's framebuffer, (re)creating it with the given size in pixels if needed, and sets the
+     * viewport. This can be called from the thread that owns the OpenGL context, e.g. a render thread
+     * @return True if the framebuffer was created again, meaning its previous contents were lost
+     */
+    public boolean beginRenderFrame(int fbW, int fbH) {
+        boolean isCreated = this.fbo == 0 || fbW != this.fboW || fbH != this.fboH;
+        if (isCreated) {
+            createFramebuffer(fbW, fbH);
+        }
+        else {
+            GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.fbo);
+        }
+
+        if (fbW != this.viewportW || fbH != this.viewportH) {
+            this.viewportW = fbW;
+            this.viewportH = fbH;
+            GL11.glViewport(0, 0, fbW, fbH);
+        }
+
+        return isCreated;
+    }
+
+    /**
+     * Marks the contents of this window's framebuffer as lost, so that the whole window is drawn again in the
+     * next tick, and wakes the application up. This is safe to call from any thread
+     */
+    public void markFramebufferLost() {
+        this.isFramebufferLost = true;
+        GLFW.glfwPostEmptyEvent();
+    }
+
+    /**
+     * Copies this window's framebuffer to the window, ready for {@link #swapBuffers()}. Called after the NanoVG frame has ended
+     */
+    public void endRenderFrame() {
+        GL30.glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, this.fbo);
+        GL30.glBindFramebuffer(GL30.GL_DRAW_FRAMEBUFFER, 0);
+        GL30.glBlitFramebuffer(0, 0, this.fboW, this.fboH, 0, 0, this.fboW, this.fboH, GL11.GL_COLOR_BUFFER_BIT, GL11.GL_NEAREST);
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, 0);
+    }
+
+    private void createFramebuffer(int w, int h) {
+        disposeFramebuffer();
+        this.fbo = GL30.glGenFramebuffers();
+        this.fboColourBuffer = GL30.glGenRenderbuffers();
+        this.fboDepthStencilBuffer = GL30.glGenRenderbuffers();
+        this.fboW = w;
+        this.fboH = h;
+
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, this.fboColourBuffer);
+        GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, GL11.GL_RGBA8, w, h);
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, this.fboDepthStencilBuffer);
+        GL30.glRenderbufferStorage(GL30.GL_RENDERBUFFER, GL30.GL_DEPTH24_STENCIL8, w, h);
+        GL30.glBindRenderbuffer(GL30.GL_RENDERBUFFER, 0);
+
+        GL30.glBindFramebuffer(GL30.GL_FRAMEBUFFER, this.fbo);
+        GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL30.GL_RENDERBUFFER, this.fboColourBuffer);
+        GL30.glFramebufferRenderbuffer(GL30.GL_FRAMEBUFFER, GL30.GL_DEPTH_STENCIL_ATTACHMENT, GL30.GL_RENDERBUFFER, this.fboDepthStencilBuffer);
+        int status = GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER);
+        if (status != GL30.GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Window framebuffer is incomplete: 0x" + Integer.toHexString(status));
+        }
+    }
+
+    /**
+     * Deletes this window's framebuffer. This must be called on the thread that owns the OpenGL context
+     */
+    public void disposeFramebuffer() {
+        if (this.fbo != 0) {
+            GL30.glDeleteFramebuffers(this.fbo);
+            GL30.glDeleteRenderbuffers(this.fboColourBuffer);
+            GL30.glDeleteRenderbuffers(this.fboDepthStencilBuffer);
+            this.fbo = this.fboColourBuffer = this.fboDepthStencilBuffer = 0;
+        }
+    }
+
+    /**
+     * Returns the areas of this window that need to be drawn again
+     */
+    public DamageRegion getDamageRegion() {
+        return this.damageRegion;
     }
 }
@@ -0,0 +1,76 @@
+package reghzy.breezeui.window;
+
+import org.lwjgl.glfw.GLFW;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL11;
+import reghzy.breezeui.render.FrameCommandList;
+import reghzy.breezeui.render.FrameQueue;
+import reghzy.breezeui.render.NanoVGRenderBackend;
+import reghzy.breezeui.render.RenderBackend;
+import reghzy.breezeui.render.RenderThread;
+
+import static org.lwjgl.system.MemoryUtil.NULL;
+
+/**
+ * A render thread that owns a window's OpenGL context, and draws each frame into the window's framebuffer
+ * with NanoVG before presenting it. The context must not be current on any other thread when this starts
+ */
+public class WindowRenderThread extends RenderThread {
+    private final Window window;
+
+    // whether a frame was skipped or the framebuffer was created again since the last full frame, in
+    // which case frames that only draw the areas that changed cannot be presented
+    private boolean isContentLost = true;
+
+    public WindowRenderThread(Window window, FrameQueue queue) {
+        super("Render Thread", queue, null);
+        this.window = window;
+    }
+
+    @Override
+    protected void onStart() {
+        this.window.glfwMakeContextCurrent();
+        GL.createCapabilities();
+        setBackend(new NanoVGRenderBackend());
+    }
+
+    @Override
+    protected void presentFrame(FrameCommandList frame) {
+        int fbW = (int) Math.round(frame.getWidth() * frame.getPixelScale());
+        int fbH = (int) Math.round(frame.getHeight() * frame.getPixelScale());
+        if (fbW < 1 || fbH < 1) {
+            this.isContentLost = true; // e.g. the window is minimised
+            return;
+        }
+
+        if (this.window.beginRenderFrame(fbW, fbH)) {
+            this.isContentLost = true;
+        }
+
+        if (this.isContentLost && !frame.isFullFrame()) {
+            // the rest of the window would be missing, so have the UI thread record all of it
+            this.window.markFramebufferLost();
+            return;
+        }
+
+        GL11.glDisable(GL11.GL_DEPTH_TEST);
+        GL11.glEnable(GL11.GL_BLEND);
+        GL11.glBlendFunc(GL11.GL_SRC_ALPHA, GL11.GL_ONE_MINUS_SRC_ALPHA);
+        frame.submit(getBackend());
+        this.window.endRenderFrame();
+        this.window.swapBuffers();
+        this.isContentLost = false;
+    }
+
+    @Override
+    protected void onStop() {
+        RenderBackend backend = getBackend();
+        if (backend != null) {
+            backend.dispose();
+            setBackend(null);
+        }
+
+        this.window.disposeFramebuffer();
+        GLFW.glfwMakeContextCurrent(NULL);
+    }
+}